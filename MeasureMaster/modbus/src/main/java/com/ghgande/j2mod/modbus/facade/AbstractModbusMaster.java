@@ -17,6 +17,8 @@ package com.ghgande.j2mod.modbus.facade;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.facade.RegisterMap.Table;
 import com.ghgande.j2mod.modbus.io.AbstractModbusTransport;
 import com.ghgande.j2mod.modbus.io.ModbusTransaction;
 import com.ghgande.j2mod.modbus.msg.*;
@@ -24,6 +26,10 @@ import com.ghgande.j2mod.modbus.procimg.InputRegister;
 import com.ghgande.j2mod.modbus.procimg.Register;
 import com.ghgande.j2mod.modbus.util.BitVector;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Modbus/TCP Master facade - common methods for all the facade implementations
  * The emphasis is in making callas to Modbus devices as simple as possible
@@ -48,6 +54,9 @@ abstract public class AbstractModbusMaster {
     private WriteMultipleRegistersRequest writeMultipleRegistersRequest;
     private MaskWriteRegisterRequest maskWriteRegisterRequest;
     protected int timeout = Modbus.DEFAULT_TIMEOUT;
+    private final ExceptionResponseCache exceptionCache = new ExceptionResponseCache();
+    private final Object writeListenerLock = new Object();
+    private volatile WriteListener[] writeListeners = new WriteListener[0];
 
     /**
      * Sets the transaction to use
@@ -94,8 +103,7 @@ abstract public class AbstractModbusMaster {
         readCoilsRequest.setUnitID(unitId);
         readCoilsRequest.setReference(ref);
         readCoilsRequest.setBitCount(count);
-        transaction.setRequest(readCoilsRequest);
-        transaction.execute();
+        executeTransaction(readCoilsRequest, ref, count);
         BitVector bv = ((ReadCoilsResponse) getAndCheckResponse()).getCoils();
         bv.forceSize(count);
         return bv;
@@ -121,8 +129,8 @@ abstract public class AbstractModbusMaster {
         writeCoilRequest.setUnitID(unitId);
         writeCoilRequest.setReference(ref);
         writeCoilRequest.setCoil(state);
-        transaction.setRequest(writeCoilRequest);
-        transaction.execute();
+        executeTransaction(writeCoilRequest, ref, 1);
+        written(unitId, Table.COILS, ref, 1);
         return ((WriteCoilResponse) getAndCheckResponse()).getCoil();
     }
 
@@ -147,8 +155,8 @@ abstract public class AbstractModbusMaster {
         writeMultipleCoilsRequest.setUnitID(unitId);
         writeMultipleCoilsRequest.setReference(ref);
         writeMultipleCoilsRequest.setCoils(coils);
-        transaction.setRequest(writeMultipleCoilsRequest);
-        transaction.execute();
+        executeTransaction(writeMultipleCoilsRequest, ref, coils.size());
+        written(unitId, Table.COILS, ref, coils.size());
     }
 
     /**
@@ -175,8 +183,7 @@ abstract public class AbstractModbusMaster {
         readInputDiscretesRequest.setUnitID(unitId);
         readInputDiscretesRequest.setReference(ref);
         readInputDiscretesRequest.setBitCount(count);
-        transaction.setRequest(readInputDiscretesRequest);
-        transaction.execute();
+        executeTransaction(readInputDiscretesRequest, ref, count);
         BitVector bv = ((ReadInputDiscretesResponse)getAndCheckResponse()).getDiscretes();
         bv.forceSize(count);
         return bv;
@@ -205,8 +212,7 @@ abstract public class AbstractModbusMaster {
         readInputRegistersRequest.setUnitID(unitId);
         readInputRegistersRequest.setReference(ref);
         readInputRegistersRequest.setWordCount(count);
-        transaction.setRequest(readInputRegistersRequest);
-        transaction.execute();
+        executeTransaction(readInputRegistersRequest, ref, count);
         return ((ReadInputRegistersResponse) getAndCheckResponse()).getRegisters();
     }
 
@@ -233,11 +239,83 @@ abstract public class AbstractModbusMaster {
         readMultipleRegistersRequest.setUnitID(unitId);
         readMultipleRegistersRequest.setReference(ref);
         readMultipleRegistersRequest.setWordCount(count);
-        transaction.setRequest(readMultipleRegistersRequest);
-        transaction.execute();
+        executeTransaction(readMultipleRegistersRequest, ref, count);
         return ((ReadMultipleRegistersResponse) getAndCheckResponse()).getRegisters();
     }
 
+    /**
+     * Reads a block of registers that may be larger than a single request
+     * and guarantees that all of the values come from the same version of
+     * the slave data.
+     * <p>
+     * The slave must maintain a sequence register that changes whenever the
+     * block is updated (see <tt>SimpleProcessImage.setSequenceRegister</tt>).
+     * The sequence register is read before the first chunk and after every
+     * chunk.  A chunk is only accepted if the sequence value either side of
+     * it is the same even number, and only the chunks that were read under an
+     * older or in-progress version are read again.
+     *
+     * @param unitId      the slave unit id.
+     * @param ref         the offset of the register to start reading from.
+     * @param count       the number of registers to be read.
+     * @param sequenceRef the offset of the slave's sequence register.
+     * @param blockSize   the maximum number of registers to read per request.
+     * @param retries     the number of times the sequence may change before giving up.
+     *
+     * @return a <tt>Register[]</tt> holding a consistent snapshot of the registers.
+     *
+     * @throws ModbusException if an I/O error, a slave exception or
+     *                         a transaction error occurs or a consistent
+     *                         snapshot cannot be read within the retries.
+     */
+    public Register[] readConsistentRegisters(int unitId, int ref, int count, int sequenceRef, int blockSize, int retries) throws ModbusException {
+        if (count < 1 || blockSize < 1) {
+            throw new ModbusException("Invalid count %d or block size %d", count, blockSize);
+        }
+        int chunks = (count + blockSize - 1) / blockSize;
+        int[] versions = new int[chunks];
+        for (int i = 0; i < chunks; i++) {
+            versions[i] = -1;
+        }
+        Register[] snapshot = new Register[count];
+        int sequence = readMultipleRegisters(unitId, sequenceRef, 1)[0].getValue();
+        int attempt = 0;
+        while (true) {
+            for (int i = 0; i < chunks; i++) {
+                if (versions[i] == sequence) {
+                    continue;
+                }
+                int offset = i * blockSize;
+                int length = Math.min(blockSize, count - offset);
+                Register[] regs = readMultipleRegisters(unitId, ref + offset, length);
+                if (regs.length != length) {
+                    throw new ModbusException("Expected %d registers at %d but received %d", length, ref + offset, regs.length);
+                }
+                System.arraycopy(regs, 0, snapshot, offset, length);
+                int after = readMultipleRegisters(unitId, sequenceRef, 1)[0].getValue();
+                if (after == sequence && (sequence & 1) == 0) {
+                    versions[i] = sequence;
+                }
+                else {
+                    versions[i] = -1;
+                    sequence = after;
+                }
+            }
+
+            // Finished if every chunk was read under the current version
+            boolean consistent = (sequence & 1) == 0;
+            for (int i = 0; consistent && i < chunks; i++) {
+                consistent = versions[i] == sequence;
+            }
+            if (consistent) {
+                return snapshot;
+            }
+            if (++attempt > retries) {
+                throw new ModbusException("Could not read a consistent snapshot of %d registers at %d (tried %d times)", count, ref, attempt);
+            }
+        }
+    }
+
     /**
      * Writes a single register to the slave.
      *
@@ -259,8 +337,8 @@ abstract public class AbstractModbusMaster {
         writeSingleRegisterRequest.setUnitID(unitId);
         writeSingleRegisterRequest.setReference(ref);
         writeSingleRegisterRequest.setRegister(register);
-        transaction.setRequest(writeSingleRegisterRequest);
-        transaction.execute();
+        executeTransaction(writeSingleRegisterRequest, ref, 1);
+        written(unitId, Table.HOLDING_REGISTERS, ref, 1);
         return ((WriteSingleRegisterResponse) getAndCheckResponse()).getRegisterValue();
     }
 
@@ -285,8 +363,8 @@ abstract public class AbstractModbusMaster {
         writeMultipleRegistersRequest.setUnitID(unitId);
         writeMultipleRegistersRequest.setReference(ref);
         writeMultipleRegistersRequest.setRegisters(registers);
-        transaction.setRequest(writeMultipleRegistersRequest);
-        transaction.execute();
+        executeTransaction(writeMultipleRegistersRequest, ref, registers.length);
+        written(unitId, Table.HOLDING_REGISTERS, ref, registers.length);
         return ((WriteMultipleRegistersResponse) transaction.getResponse()).getWordCount();
     }
 
@@ -312,8 +390,8 @@ abstract public class AbstractModbusMaster {
         maskWriteRegisterRequest.setReference(ref);
         maskWriteRegisterRequest.setAndMask(andMask);
         maskWriteRegisterRequest.setOrMask(orMask);
-        transaction.setRequest(maskWriteRegisterRequest);
-        transaction.execute();
+        executeTransaction(maskWriteRegisterRequest, ref, 1);
+        written(unitId, Table.HOLDING_REGISTERS, ref, 1);
 
         MaskWriteRegisterResponse response = (MaskWriteRegisterResponse) getAndCheckResponse();
         return response.getReference() == maskWriteRegisterRequest.getReference() &&
@@ -474,6 +552,48 @@ abstract public class AbstractModbusMaster {
         return maskWriteRegister(DEFAULT_UNIT_ID, ref, andMask, orMask);
     }
 
+    /**
+     * Executes the request using the current transaction.
+     * Requests that the slave has recently rejected as an illegal function or
+     * illegal address are rejected locally without being sent, and new
+     * rejections of this kind are remembered.
+     *
+     * @param request Request to send
+     * @param ref     Starting reference addressed by the request
+     * @param count   Number of items addressed by the request
+     *
+     * @throws ModbusException if an I/O error, a slave exception or
+     *                         a transaction error occurs.
+     */
+    private void executeTransaction(ModbusRequest request, int ref, int count) throws ModbusException {
+        int cached = exceptionCache.get(request.getUnitID(), request.getFunctionCode(), ref, count);
+        if (cached >= 0) {
+            throw new ModbusSlaveException(cached);
+        }
+        transaction.setRequest(request);
+        try {
+            transaction.execute();
+        }
+        catch (ModbusSlaveException e) {
+            exceptionCache.put(request.getUnitID(), request.getFunctionCode(), ref, count, e.getType());
+            throw e;
+        }
+    }
+
+    /**
+     * Tells the write listeners of a write the slave has accepted
+     *
+     * @param unitId Unit ID written to
+     * @param table  Table written to
+     * @param ref    First address written
+     * @param count  Number of items written
+     */
+    private void written(int unitId, Table table, int ref, int count) {
+        for (WriteListener listener : writeListeners) {
+            listener.written(unitId, table, ref, count);
+        }
+    }
+
     /**
      * Reads the response from the transaction
      * If there is no response, then it throws an error
@@ -543,6 +663,43 @@ abstract public class AbstractModbusMaster {
         }
     }
 
+    /**
+     * Returns the cache of illegal function and illegal address rejections
+     * used to avoid sending requests that are known to fail.  The cache is
+     * disabled until a TTL is set on it
+     *
+     * @return Exception response cache
+     */
+    public ExceptionResponseCache getExceptionCache() {
+        return exceptionCache;
+    }
+
+    /**
+     * Adds a listener that is told of every write the slave accepts
+     *
+     * @param listener Listener to add
+     */
+    public void addWriteListener(WriteListener listener) {
+        synchronized (writeListenerLock) {
+            WriteListener[] updated = Arrays.copyOf(writeListeners, writeListeners.length + 1);
+            updated[writeListeners.length] = listener;
+            writeListeners = updated;
+        }
+    }
+
+    /**
+     * Removes a write listener
+     *
+     * @param listener Listener to remove
+     */
+    public void removeWriteListener(WriteListener listener) {
+        synchronized (writeListenerLock) {
+            List<WriteListener> list = new ArrayList<WriteListener>(Arrays.asList(writeListeners));
+            list.remove(listener);
+            writeListeners = list.toArray(new WriteListener[list.size()]);
+        }
+    }
+
     /**
      * Returns the transport being used by the
      *
@@ -0,0 +1,640 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import android.util.Log;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+import com.ghgande.j2mod.modbus.util.BitVector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent store-and-forward queue for writes to a slave that may be
+ * temporarily unreachable.
+ * <p>
+ * Each write is appended to a log file and forced to disk before the call
+ * returns, so a queued write survives a restart of the application.  Writers
+ * that arrive while a force is in progress share the next one (group commit),
+ * so the cost of the sync is spread over all of the writes made at the same
+ * time.  A drain thread sends the writes to the slave in order through the
+ * master; while the slave is unreachable it reconnects with a back off and
+ * resumes where it left off.
+ * <p>
+ * A write to an address that is already queued replaces the earlier write and
+ * moves to the back of the queue, so only the latest value is sent.  Writes
+ * that the slave rejects with an exception response are dropped as they can
+ * never succeed.
+ * <p>
+ * Delivered writes are recorded in the log without forcing it to disk, so
+ * after a crash a few writes may be sent a second time.  Modbus writes set
+ * absolute values so this is harmless for everything except mask writes,
+ * which are therefore not supported.  The log is truncated whenever the queue
+ * becomes empty.
+ * <p>
+ * The drain thread synchronizes on the master while it sends a write, so the
+ * application should do the same when it shares the master.
+ */
+public class StoreAndForwardQueue {
+
+    private static final String TAG = "StoreAndForwardQueue";
+
+    /**
+     * Default time to wait before retrying after the slave was unreachable (=<tt>1000</tt>)
+     */
+    public static final long DEFAULT_RETRY_INTERVAL = 1000;
+
+    /**
+     * Longest time to wait between reconnection attempts (=<tt>30000</tt>)
+     */
+    public static final long MAX_RETRY_INTERVAL = 30000;
+
+    private static final int MAX_WRITE_COILS = 1968;
+    private static final int MAX_WRITE_REGISTERS = 123;
+    private static final byte RECORD_WRITE = 1;
+    private static final byte RECORD_DELIVERED = 2;
+    private static final int HEADER_LENGTH = 4 + 1 + 8;
+    private static final int MAX_RECORD_LENGTH = HEADER_LENGTH + 6 + 2 * Modbus.MAX_BITS + 4;
+
+    private final AbstractModbusMaster master;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(MAX_RECORD_LENGTH);
+    private final CRC32 crc = new CRC32();
+    private final Map<Long, Write> queue = new LinkedHashMap<Long, Write>();
+    private long sequence;
+    private long writtenSequence;
+    private long syncedSequence;
+    private boolean syncing;
+    private long retryInterval = DEFAULT_RETRY_INTERVAL;
+    private volatile boolean running;
+    private Thread drainThread;
+
+    private long drained;
+    private long dropped;
+    private long windowStart = System.currentTimeMillis();
+    private long windowDrained;
+    private double drainRate;
+
+    /**
+     * Opens the queue, recovering any writes left in the log by a previous run.
+     * The queue does not send anything until {@link #start()} is called.
+     *
+     * @param master Master to send the writes with
+     * @param file   Log file, created if it doesn't exist
+     * @throws IOException If the log cannot be opened or read
+     */
+    public StoreAndForwardQueue(AbstractModbusMaster master, File file) throws IOException {
+        this.master = master;
+        this.file = file;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        recover();
+    }
+
+    /**
+     * Queues a write of a single coil (function code 5)
+     *
+     * @param unitId Unit ID of the slave
+     * @param ref    Coil address
+     * @param state  State to write
+     * @throws IOException If the write cannot be stored
+     * @throws IllegalArgumentException If the unit or address is not valid
+     */
+    public void writeCoil(int unitId, int ref, boolean state) throws IOException {
+        checkWrite(unitId, ref, 1, 1);
+        append(new Write(unitId, Modbus.WRITE_COIL, ref, new int[]{state ? 1 : 0}));
+    }
+
+    /**
+     * Queues a write of a number of coils (function code 15)
+     *
+     * @param unitId Unit ID of the slave
+     * @param ref    First coil address
+     * @param coils  States to write, at most 1968
+     * @throws IOException If the write cannot be stored
+     * @throws IllegalArgumentException If the unit, address or number of coils is not valid
+     */
+    public void writeMultipleCoils(int unitId, int ref, BitVector coils) throws IOException {
+        checkWrite(unitId, ref, coils.size(), MAX_WRITE_COILS);
+        int[] values = new int[coils.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = coils.getBit(i) ? 1 : 0;
+        }
+        append(new Write(unitId, Modbus.WRITE_MULTIPLE_COILS, ref, values));
+    }
+
+    /**
+     * Queues a write of a single register (function code 6)
+     *
+     * @param unitId Unit ID of the slave
+     * @param ref    Register address
+     * @param value  Value to write
+     * @throws IOException If the write cannot be stored
+     * @throws IllegalArgumentException If the unit or address is not valid
+     */
+    public void writeSingleRegister(int unitId, int ref, int value) throws IOException {
+        checkWrite(unitId, ref, 1, 1);
+        append(new Write(unitId, Modbus.WRITE_SINGLE_REGISTER, ref, new int[]{value & 0xffff}));
+    }
+
+    /**
+     * Queues a write of a number of registers (function code 16)
+     *
+     * @param unitId Unit ID of the slave
+     * @param ref    First register address
+     * @param values Values to write, at most 123
+     * @throws IOException If the write cannot be stored
+     * @throws IllegalArgumentException If the unit, address or number of values is not valid
+     */
+    public void writeMultipleRegisters(int unitId, int ref, int[] values) throws IOException {
+        checkWrite(unitId, ref, values.length, MAX_WRITE_REGISTERS);
+        int[] copy = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            copy[i] = values[i] & 0xffff;
+        }
+        append(new Write(unitId, Modbus.WRITE_MULTIPLE_REGISTERS, ref, copy));
+    }
+
+    /**
+     * Starts the drain thread
+     */
+    public synchronized void start() {
+        if (!running) {
+            running = true;
+            drainThread = new Thread(new Drain());
+            drainThread.setName("Modbus Store and Forward " + file.getName());
+            drainThread.setDaemon(true);
+            drainThread.start();
+        }
+    }
+
+    /**
+     * Stops the drain thread.  Queued writes stay in the log.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            thread = drainThread;
+            drainThread = null;
+            notifyAll();
+        }
+        thread.interrupt();
+        try {
+            thread.join(5000);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the drain thread and closes the log
+     */
+    public void close() {
+        stop();
+        synchronized (this) {
+            try {
+                channel.force(false);
+                raf.close();
+            }
+            catch (IOException e) {
+                Log.w(TAG, "Cannot close " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of writes waiting to be sent
+     *
+     * @return Backlog depth
+     */
+    public synchronized int getBacklog() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of writes sent to the slave per second, measured over
+     * the last complete second of draining
+     *
+     * @return Drain rate
+     */
+    public synchronized double getDrainRate() {
+        updateDrainRate(System.currentTimeMillis());
+        return drainRate;
+    }
+
+    /**
+     * Returns the number of writes sent since the queue was opened
+     *
+     * @return Number of writes delivered
+     */
+    public synchronized long getDrainedCount() {
+        return drained;
+    }
+
+    /**
+     * Returns the number of writes dropped because the slave rejected them
+     *
+     * @return Number of writes dropped
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Returns the initial time to wait before retrying when the slave is unreachable
+     *
+     * @return Retry interval in milliseconds
+     */
+    public synchronized long getRetryInterval() {
+        return retryInterval;
+    }
+
+    /**
+     * Sets the initial time to wait before retrying when the slave is unreachable.
+     * The interval doubles on each failure up to {@link #MAX_RETRY_INTERVAL}.
+     *
+     * @param retryInterval Retry interval in milliseconds
+     */
+    public synchronized void setRetryInterval(long retryInterval) {
+        this.retryInterval = Math.max(1, retryInterval);
+    }
+
+    /**
+     * Stores the write in the log, queues it and waits until the log is on disk
+     *
+     * @param write Write to queue
+     * @throws IOException If the write cannot be stored
+     */
+    private void append(Write write) throws IOException {
+        long seq;
+        synchronized (this) {
+            seq = ++sequence;
+            write.sequence = seq;
+            writeRecord(RECORD_WRITE, write);
+            writtenSequence = seq;
+            queue.remove(write.key);
+            queue.put(write.key, write);
+            notifyAll();
+        }
+        sync(seq);
+    }
+
+    /**
+     * Waits until the log has been forced to disk up to and including the sequence.
+     * The first caller to find no force in progress forces the log on behalf of
+     * every record written so far; the others wait for it.
+     *
+     * @param seq Sequence number of the record
+     * @throws IOException If the log cannot be forced
+     */
+    private void sync(long seq) throws IOException {
+        long target;
+        synchronized (this) {
+            while (syncedSequence < seq && syncing) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the log to be written");
+                }
+            }
+            if (syncedSequence >= seq) {
+                return;
+            }
+            syncing = true;
+            target = writtenSequence;
+        }
+        try {
+            channel.force(false);
+        }
+        finally {
+            synchronized (this) {
+                syncing = false;
+                syncedSequence = Math.max(syncedSequence, target);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Checks that a write can be sent to a slave before it is queued, as a
+     * write that can never succeed would otherwise be retried for ever
+     *
+     * @param unitId   Unit ID of the slave
+     * @param ref      First address written
+     * @param count    Number of coils or registers written
+     * @param maxCount Most that the function code can write
+     */
+    private static void checkWrite(int unitId, int ref, int count, int maxCount) {
+        if (unitId < 0 || unitId > 255) {
+            throw new IllegalArgumentException(String.format("Invalid unit ID %d", unitId));
+        }
+        if (count < 1 || count > maxCount) {
+            throw new IllegalArgumentException(String.format("Cannot write %d values, must be 1 to %d", count, maxCount));
+        }
+        if (ref < 0 || ref + count > 65536) {
+            throw new IllegalArgumentException(String.format("Invalid address %d for %d values", ref, count));
+        }
+    }
+
+    /**
+     * Appends a record to the log.  The caller must hold the lock.
+     *
+     * @param type  Record type
+     * @param write Write to record
+     * @throws IOException If the log cannot be written
+     */
+    private void writeRecord(byte type, Write write) throws IOException {
+        ByteBuffer buffer = recordBuffer;
+        buffer.clear();
+        buffer.putInt(0);
+        buffer.put(type);
+        buffer.putLong(write.sequence);
+        if (type == RECORD_WRITE) {
+            buffer.put((byte)write.unitId);
+            buffer.put((byte)write.functionCode);
+            buffer.putShort((short)write.ref);
+            buffer.putShort((short)write.values.length);
+            for (int value : write.values) {
+                buffer.putShort((short)value);
+            }
+        }
+        buffer.putInt(0, buffer.position() + 4);
+        crc.reset();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int)crc.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads the log, rebuilding the queue from the writes that were not
+     * delivered.  A torn record at the end of the log is discarded.
+     *
+     * @throws IOException If the log cannot be read
+     */
+    private synchronized void recover() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(channel.size(), Integer.MAX_VALUE));
+        channel.position(0);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // Keep reading
+        }
+        buffer.flip();
+        int valid = 0;
+        int recovered = 0;
+        while (buffer.remaining() >= HEADER_LENGTH + 4) {
+            int start = buffer.position();
+            int length = buffer.getInt(start);
+            if (length < HEADER_LENGTH + 4 || length > MAX_RECORD_LENGTH || length > buffer.remaining()) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.array(), start, length - 4);
+            if ((int)crc.getValue() != buffer.getInt(start + length - 4)) {
+                break;
+            }
+            buffer.position(start + 4);
+            byte type = buffer.get();
+            long seq = buffer.getLong();
+            if (type == RECORD_WRITE) {
+                int unitId = buffer.get() & 0xff;
+                int functionCode = buffer.get() & 0xff;
+                int ref = buffer.getShort() & 0xffff;
+                int[] values = new int[buffer.getShort() & 0xffff];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = buffer.getShort() & 0xffff;
+                }
+                Write write = new Write(unitId, functionCode, ref, values);
+                write.sequence = seq;
+                queue.remove(write.key);
+                queue.put(write.key, write);
+                recovered++;
+            }
+            else if (type == RECORD_DELIVERED) {
+                Iterator<Write> iterator = queue.values().iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().sequence == seq) {
+                        iterator.remove();
+                        break;
+                    }
+                }
+            }
+            sequence = Math.max(sequence, seq);
+            buffer.position(start + length);
+            valid = start + length;
+        }
+        if (valid < channel.size()) {
+            Log.w(TAG, "Discarding " + (channel.size() - valid) + " bytes of incomplete log " + file);
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        writtenSequence = syncedSequence = sequence;
+        if (queue.isEmpty()) {
+            channel.truncate(0);
+        }
+        Log.d(TAG, String.format("Recovered %d of %d writes from %s", queue.size(), recovered, file));
+    }
+
+    /**
+     * Removes a write that has been delivered or dropped from the queue and
+     * records this in the log
+     *
+     * @param write Write that has been dealt with
+     * @param sent  True if it was delivered, false if it was dropped
+     */
+    private synchronized void complete(Write write, boolean sent) {
+        long now = System.currentTimeMillis();
+        updateDrainRate(now);
+        if (sent) {
+            drained++;
+            windowDrained++;
+        }
+        else {
+            dropped++;
+        }
+
+        // The write may have been superseded while it was being sent
+        if (queue.get(write.key) == write) {
+            queue.remove(write.key);
+        }
+        try {
+            if (queue.isEmpty() && syncedSequence >= writtenSequence && !syncing) {
+                channel.truncate(0);
+            }
+            else {
+                writeRecord(RECORD_DELIVERED, write);
+            }
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Cannot record delivery in " + file, e);
+        }
+    }
+
+    /**
+     * Rolls the drain rate measurement window over once a second has passed
+     *
+     * @param now Current time
+     */
+    private void updateDrainRate(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed >= 1000) {
+            drainRate = elapsed >= 2000 ? 0 : windowDrained * 1000.0 / elapsed;
+            windowDrained = 0;
+            windowStart = now;
+        }
+    }
+
+    /**
+     * Waits for the next write to send
+     *
+     * @return Write at the head of the queue or null if stopped
+     */
+    private synchronized Write next() {
+        while (running && queue.isEmpty()) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                // Check running
+            }
+        }
+        return running ? queue.values().iterator().next() : null;
+    }
+
+    /**
+     * Sends a write using the master
+     *
+     * @param write Write to send
+     * @throws ModbusException If the write fails
+     */
+    private void send(Write write) throws ModbusException {
+        synchronized (master) {
+            if (master.transaction == null) {
+                try {
+                    master.connect();
+                }
+                catch (Exception e) {
+                    throw new ModbusException("Cannot connect - %s", e.getMessage());
+                }
+            }
+            switch (write.functionCode) {
+                case Modbus.WRITE_COIL:
+                    master.writeCoil(write.unitId, write.ref, write.values[0] != 0);
+                    break;
+                case Modbus.WRITE_MULTIPLE_COILS:
+                    BitVector coils = new BitVector(write.values.length);
+                    for (int i = 0; i < write.values.length; i++) {
+                        coils.setBit(i, write.values[i] != 0);
+                    }
+                    master.writeMultipleCoils(write.unitId, write.ref, coils);
+                    break;
+                case Modbus.WRITE_SINGLE_REGISTER:
+                    master.writeSingleRegister(write.unitId, write.ref, new SimpleRegister(write.values[0]));
+                    break;
+                default:
+                    Register[] registers = new Register[write.values.length];
+                    for (int i = 0; i < registers.length; i++) {
+                        registers[i] = new SimpleRegister(write.values[i]);
+                    }
+                    master.writeMultipleRegisters(write.unitId, write.ref, registers);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Sends the queued writes in order, backing off while the slave is unreachable
+     */
+    private class Drain implements Runnable {
+
+        @Override
+        public void run() {
+            long backoff = 0;
+            Write write;
+            while ((write = next()) != null) {
+                try {
+                    send(write);
+                    complete(write, true);
+                    backoff = 0;
+                }
+                catch (ModbusSlaveException e) {
+                    Log.w(TAG, String.format("Dropping write to unit %d address %d - %s", write.unitId, write.ref, e.getMessage()));
+                    complete(write, false);
+                }
+                catch (ModbusException e) {
+                    synchronized (StoreAndForwardQueue.this) {
+                        backoff = backoff == 0 ? retryInterval : Math.min(backoff * 2, MAX_RETRY_INTERVAL);
+                    }
+                    Log.d(TAG, String.format("Slave unreachable, %d writes queued, retrying in %d ms - %s", getBacklog(), backoff, e.getMessage()));
+                    synchronized (master) {
+                        master.disconnect();
+                    }
+                    try {
+                        Thread.sleep(backoff);
+                    }
+                    catch (InterruptedException ie) {
+                        // Check running
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A queued write
+     */
+    private static class Write {
+        final int unitId;
+        final int functionCode;
+        final int ref;
+        final int[] values;
+        final Long key;
+        long sequence;
+
+        Write(int unitId, int functionCode, int ref, int[] values) {
+            this.unitId = unitId;
+            this.functionCode = functionCode;
+            this.ref = ref;
+            this.values = values;
+
+            // Writes of the same items replace each other
+            this.key = ((long)(unitId & 0xff) << 48) | ((long)(functionCode & 0xff) << 40) |
+                       ((long)(ref & 0xffff) << 16) | (values.length & 0xffff);
+        }
+    }
+}
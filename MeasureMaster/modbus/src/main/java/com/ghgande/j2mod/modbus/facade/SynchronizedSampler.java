@@ -0,0 +1,329 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends a request to each of several slaves at the same scheduled instant,
+ * so that the samples they return reflect the same moment rather than
+ * drifting apart by the time sequential polling takes.
+ * <p>
+ * Each target is a master with its own connection and a request, either a
+ * read or a trigger such as a write that starts a measurement.  Every target
+ * has a thread of its own that is parked until shortly before the scheduled
+ * instant, takes the lock on its master and then spins until the instant, so
+ * the requests leave within microseconds of each other.  The
+ * <tt>System.nanoTime()</tt> around each transaction and the resulting skew
+ * are reported in a {@link SampleSet}.
+ * <p>
+ * Targets must not share a master, as the transactions of one master are
+ * serialised.  A master that is not connected is connected on the first
+ * round.  A target that cannot take part in a round, because the sampler
+ * was stopped or its thread died, has an error recorded for it instead.
+ */
+public class SynchronizedSampler {
+
+    /**
+     * Default time between scheduling a round and firing it, to let the
+     * target threads wake up (=<tt>5</tt> ms)
+     */
+    public static final long DEFAULT_LEAD_TIME = 5;
+
+    // How long before the instant the threads stop parking and start spinning
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    // How often a caller waiting for a round checks that the target threads are alive
+    private static final long CHECK_MILLIS = 1000;
+
+    private final List<Target> targets = new ArrayList<Target>();
+    private long leadTime = DEFAULT_LEAD_TIME;
+    private Round round;
+    private boolean running;
+
+    /**
+     * Adds a target
+     *
+     * @param master  Master with a connection of its own
+     * @param request Request to send each round
+     * @return Target number in the sample sets
+     */
+    public synchronized int addTarget(AbstractModbusMaster master, ModbusRequest request) {
+        if (running) {
+            throw new IllegalStateException("Sampler has already been started");
+        }
+        for (Target target : targets) {
+            if (target.master == master) {
+                throw new IllegalArgumentException("Targets must not share a master");
+            }
+        }
+        targets.add(new Target(targets.size(), master, request));
+        return targets.size() - 1;
+    }
+
+    /**
+     * Returns the time between scheduling a round and firing it
+     *
+     * @return Lead time in milliseconds
+     */
+    public synchronized long getLeadTime() {
+        return leadTime;
+    }
+
+    /**
+     * Sets the time between scheduling a round and firing it
+     *
+     * @param leadTime Lead time in milliseconds
+     */
+    public synchronized void setLeadTime(long leadTime) {
+        this.leadTime = Math.max(1, leadTime);
+    }
+
+    /**
+     * Starts the target threads
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (Target target : targets) {
+            target.thread = new Thread(target, "Modbus Sampler " + target.number);
+            target.thread.setDaemon(true);
+            target.thread.setPriority(Thread.MAX_PRIORITY);
+            target.thread.start();
+        }
+    }
+
+    /**
+     * Stops the target threads once the round in progress has finished.  The
+     * targets that had not started a round that is waiting fail it
+     */
+    public void stop() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        for (Target target : targets) {
+            if (target.thread != null) {
+                try {
+                    target.thread.join();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                target.thread = null;
+            }
+        }
+        Round pending;
+        synchronized (this) {
+            pending = round;
+        }
+        if (pending != null) {
+            failDeadTargets(pending);
+        }
+    }
+
+    /**
+     * Fires a round after the lead time and waits for it
+     *
+     * @return Sample set
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public SampleSet sample() throws InterruptedException {
+        long lead;
+        synchronized (this) {
+            lead = leadTime;
+        }
+        return sampleAt(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lead));
+    }
+
+    /**
+     * Fires a round at an instant and waits for it.  Rounds are sequential;
+     * a round scheduled while another is running starts when it finishes.
+     *
+     * @param instant <tt>System.nanoTime()</tt> value to send the requests at
+     * @return Sample set
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if the sampler is not running
+     */
+    public SampleSet sampleAt(long instant) throws InterruptedException {
+        Round next;
+        synchronized (this) {
+            while (running && round != null && round.done.getCount() > 0) {
+                wait();
+            }
+            if (!running) {
+                throw new IllegalStateException("Sampler is not running");
+            }
+            next = new Round(new SampleSet(instant, targets.size()));
+            round = next;
+            notifyAll();
+        }
+        while (!next.done.await(CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+            failDeadTargets(next);
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+        return next.samples;
+    }
+
+    /**
+     * Waits on the lock for a round newer than the last one a target ran
+     *
+     * @param last Last round run
+     * @return Next round or null when stopping
+     */
+    private synchronized Round nextRound(Round last) {
+        while (running && (round == null || round == last)) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                return null;
+            }
+        }
+        return running ? round : null;
+    }
+
+    /**
+     * Records that a target has finished a round, once only
+     *
+     * @param target Target number
+     * @param done   Round
+     */
+    private synchronized void finish(int target, Round done) {
+        if (!done.finished[target]) {
+            done.finished[target] = true;
+            done.done.countDown();
+        }
+    }
+
+    /**
+     * Fails a round for every target whose thread is no longer running, so
+     * that the caller waiting for the round is not left waiting for ever
+     *
+     * @param pending Round
+     */
+    private synchronized void failDeadTargets(Round pending) {
+        for (Target target : targets) {
+            Thread thread = target.thread;
+            if (!pending.finished[target.number] && (thread == null || !thread.isAlive())) {
+                pending.samples.errors[target.number] = new ModbusException(running ? "Sampler thread has died" : "Sampler stopped");
+                finish(target.number, pending);
+            }
+        }
+    }
+
+    /**
+     * Parks and then spins until an instant
+     *
+     * @param instant <tt>System.nanoTime()</tt> value
+     */
+    private static void waitUntil(long instant) {
+        long remaining;
+        while ((remaining = instant - System.nanoTime()) > SPIN_NANOS) {
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+        }
+        while (System.nanoTime() - instant < 0) {
+            // Yield rather than burn the CPU the other targets need on small devices
+            Thread.yield();
+        }
+    }
+
+    /**
+     * One scheduled round
+     */
+    private static class Round {
+        final SampleSet samples;
+        final CountDownLatch done;
+        final boolean[] finished;
+
+        Round(SampleSet samples) {
+            this.samples = samples;
+            done = new CountDownLatch(samples.size());
+            finished = new boolean[samples.size()];
+        }
+    }
+
+    /**
+     * A master, its request and the thread that fires it
+     */
+    private class Target implements Runnable {
+        final int number;
+        final AbstractModbusMaster master;
+        final ModbusRequest request;
+        volatile Thread thread;
+
+        Target(int number, AbstractModbusMaster master, ModbusRequest request) {
+            this.number = number;
+            this.master = master;
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            Round current = null;
+            while ((current = nextRound(current)) != null) {
+                SampleSet samples = current.samples;
+                try {
+                    fire(samples);
+                }
+                catch (ModbusException e) {
+                    samples.errors[number] = e;
+                    samples.receiveTimes[number] = System.nanoTime();
+                }
+                catch (RuntimeException e) {
+                    samples.errors[number] = new ModbusException("Request failed - " + e, e);
+                    samples.receiveTimes[number] = System.nanoTime();
+                }
+                finally {
+                    finish(number, current);
+                }
+            }
+        }
+
+        /**
+         * Sends the request at the scheduled instant and records the times
+         */
+        private void fire(SampleSet samples) throws ModbusException {
+            synchronized (master) {
+                if (master.transaction == null) {
+                    try {
+                        master.connect();
+                    }
+                    catch (Exception e) {
+                        throw new ModbusException("Cannot connect - %s", e.getMessage());
+                    }
+                }
+                master.transaction.setRequest(request);
+                waitUntil(samples.getScheduledTime());
+                samples.sendTimes[number] = System.nanoTime();
+                master.transaction.execute();
+                samples.receiveTimes[number] = System.nanoTime();
+                samples.responses[number] = master.transaction.getResponse();
+            }
+        }
+    }
+}
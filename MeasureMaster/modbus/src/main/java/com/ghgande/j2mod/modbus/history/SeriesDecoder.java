@@ -0,0 +1,127 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.history;
+
+/**
+ * Reads back the samples of a block written by a {@link SeriesEncoder}.
+ * One decoder is reused for every block a query visits.
+ */
+final class SeriesDecoder {
+
+    long time;
+    double value;
+
+    private byte[] data;
+    private int position;
+    private int remaining;
+    private boolean first;
+    private long delta;
+    private long bits;
+    private int leading;
+    private int trailing;
+
+    /**
+     * Starts decoding a block
+     *
+     * @param data  Block bytes
+     * @param count Number of samples in the block
+     */
+    void reset(byte[] data, int count) {
+        this.data = data;
+        position = 0;
+        remaining = count;
+        first = true;
+        delta = 0;
+    }
+
+    /**
+     * Decodes the next sample into {@link #time} and {@link #value}
+     *
+     * @return False if there are no more samples
+     */
+    boolean next() {
+        if (remaining == 0) {
+            return false;
+        }
+        remaining--;
+        if (first) {
+            first = false;
+            time = readBits(64);
+            bits = readBits(64);
+        }
+        else {
+            long deltaOfDelta;
+            if (readBits(1) == 0) {
+                deltaOfDelta = 0;
+            }
+            else if (readBits(1) == 0) {
+                deltaOfDelta = signExtend(readBits(7), 7);
+            }
+            else if (readBits(1) == 0) {
+                deltaOfDelta = signExtend(readBits(9), 9);
+            }
+            else if (readBits(1) == 0) {
+                deltaOfDelta = signExtend(readBits(12), 12);
+            }
+            else {
+                deltaOfDelta = readBits(64);
+            }
+            delta += deltaOfDelta;
+            time += delta;
+
+            if (readBits(1) == 1) {
+                if (readBits(1) == 1) {
+                    leading = (int) readBits(5);
+                    int length = (int) readBits(6) + 1;
+                    trailing = 64 - leading - length;
+                }
+                bits ^= readBits(64 - leading - trailing) << trailing;
+            }
+        }
+        value = Double.longBitsToDouble(bits);
+        return true;
+    }
+
+    /**
+     * Reads bits, most significant first
+     *
+     * @param count Number of bits, 0 to 64
+     * @return Bits in the low end of the result
+     */
+    private long readBits(int count) {
+        long result = 0;
+        while (count > 0) {
+            int available = 8 - (position & 7);
+            int take = Math.min(available, count);
+            int chunk = (data[position >>> 3] >>> (available - take)) & ((1 << take) - 1);
+            result = result << take | chunk;
+            position += take;
+            count -= take;
+        }
+        return result;
+    }
+
+    /**
+     * Sign extends a field of a number of bits.  The encoder stores each range
+     * in two's complement, so the upper end of the positive range reads back
+     * as negative and is corrected here.
+     */
+    private static long signExtend(long field, int bits) {
+        long value = field << (64 - bits) >> (64 - bits);
+        long limit = 1L << (bits - 1);
+        return value < -limit + 1 ? value + (1L << bits) : value;
+    }
+}
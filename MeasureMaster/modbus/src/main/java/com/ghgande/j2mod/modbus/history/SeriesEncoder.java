@@ -0,0 +1,195 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.history;
+
+import java.util.Arrays;
+
+/**
+ * Compresses the samples of one series into a block of bits.
+ * <p>
+ * The first sample is stored in full.  After that each timestamp is stored as
+ * the difference between its delta and the previous delta, which is zero for
+ * a steady poll rate and costs a single bit:
+ * <pre>
+ *   0                 delta of delta is 0
+ *   10   + 7 bits     -63 to 64
+ *   110  + 9 bits     -255 to 256
+ *   1110 + 12 bits    -2047 to 2048
+ *   1111 + 64 bits    anything else
+ * </pre>
+ * Each value is XORed with the previous one.  An unchanged value costs one bit;
+ * otherwise the meaningful bits of the XOR are stored, reusing the previous
+ * leading and trailing zero counts when they still fit:
+ * <pre>
+ *   0                                   same value
+ *   10 + meaningful bits                within the previous window
+ *   11 + 5 bits leading zeros + 6 bits length - 1 + meaningful bits
+ * </pre>
+ */
+final class SeriesEncoder {
+
+    // Largest number of bits one sample can take
+    static final int MAX_SAMPLE_BITS = 64 + 4 + 64 + 2 + 5 + 6 + 64;
+
+    final byte[] data;
+    int bitLength;
+    int count;
+    int valid;
+    long minTime;
+    long maxTime;
+    double min;
+    double max;
+    double sum;
+
+    private long previousTime;
+    private long previousDelta;
+    private long previousBits;
+    private int previousLeading;
+    private int previousTrailing;
+
+    /**
+     * Creates an encoder
+     *
+     * @param capacity Size of a block in bytes
+     */
+    SeriesEncoder(int capacity) {
+        data = new byte[capacity];
+        reset();
+    }
+
+    /**
+     * Empties the block
+     */
+    void reset() {
+        Arrays.fill(data, 0, Math.min(data.length, (bitLength + 7) >>> 3), (byte) 0);
+        bitLength = 0;
+        count = 0;
+        valid = 0;
+        minTime = Long.MAX_VALUE;
+        maxTime = Long.MIN_VALUE;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        sum = 0;
+        previousDelta = 0;
+        previousLeading = -1;
+    }
+
+    /**
+     * Returns true if another sample is sure to fit
+     *
+     * @return True if there is room
+     */
+    boolean hasRoom() {
+        return bitLength + MAX_SAMPLE_BITS <= data.length * 8;
+    }
+
+    /**
+     * Appends a sample.  The caller must have checked {@link #hasRoom()}.
+     *
+     * @param time  Time in milliseconds
+     * @param value Value
+     */
+    void append(long time, double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            writeBits(time, 64);
+            writeBits(bits, 64);
+        }
+        else {
+            long delta = time - previousTime;
+            long deltaOfDelta = delta - previousDelta;
+            if (deltaOfDelta == 0) {
+                writeBits(0, 1);
+            }
+            else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+                writeBits(0x2, 2);
+                writeBits(deltaOfDelta, 7);
+            }
+            else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+                writeBits(0x6, 3);
+                writeBits(deltaOfDelta, 9);
+            }
+            else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+                writeBits(0xe, 4);
+                writeBits(deltaOfDelta, 12);
+            }
+            else {
+                writeBits(0xf, 4);
+                writeBits(deltaOfDelta, 64);
+            }
+            previousDelta = delta;
+
+            long xor = bits ^ previousBits;
+            if (xor == 0) {
+                writeBits(0, 1);
+            }
+            else {
+                int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+                int trailing = Long.numberOfTrailingZeros(xor);
+                if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                    writeBits(0x2, 2);
+                    writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+                }
+                else {
+                    int length = 64 - leading - trailing;
+                    writeBits(0x3, 2);
+                    writeBits(leading, 5);
+                    writeBits(length - 1, 6);
+                    writeBits(xor >>> trailing, length);
+                    previousLeading = leading;
+                    previousTrailing = trailing;
+                }
+            }
+        }
+        previousTime = time;
+        previousBits = bits;
+        count++;
+        minTime = Math.min(minTime, time);
+        maxTime = Math.max(maxTime, time);
+        if (!Double.isNaN(value)) {
+            valid++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+    }
+
+    /**
+     * Returns the number of bytes used
+     *
+     * @return Length in bytes
+     */
+    int byteLength() {
+        return (bitLength + 7) >>> 3;
+    }
+
+    /**
+     * Writes the low bits of a value, most significant first
+     *
+     * @param value Value
+     * @param bits  Number of bits, 0 to 64
+     */
+    private void writeBits(long value, int bits) {
+        while (bits > 0) {
+            int free = 8 - (bitLength & 7);
+            int take = Math.min(free, bits);
+            int chunk = (int) (value >>> (bits - take)) & ((1 << take) - 1);
+            data[bitLength >>> 3] |= chunk << (free - take);
+            bitLength += take;
+            bits -= take;
+        }
+    }
+}
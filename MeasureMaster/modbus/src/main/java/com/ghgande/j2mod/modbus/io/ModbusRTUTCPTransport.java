@@ -18,6 +18,7 @@ package com.ghgande.j2mod.modbus.io;
 import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.RequestView;
 
 import java.net.Socket;
 
@@ -60,4 +61,14 @@ public class ModbusRTUTCPTransport extends ModbusTCPTransport {
     public void writeRequest(ModbusRequest msg) throws ModbusIOException {
         writeMessage(msg, true);
     }
+
+    @Override
+    public void writeResponse(ModbusResponse msg, boolean flush) throws ModbusIOException {
+        writeMessage(msg, true, flush);
+    }
+
+    @Override
+    public void writeResponse(RequestView request, byte[] buffer, int offset, int pduLength, boolean flush) throws ModbusIOException {
+        writeFrame(request, buffer, offset, pduLength, true, flush);
+    }
 }
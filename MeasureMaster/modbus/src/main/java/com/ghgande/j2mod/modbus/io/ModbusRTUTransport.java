@@ -291,7 +291,7 @@ public class ModbusRTUTransport extends ModbusSerialTransport {
                         byteInputOutputStream.writeByte(fc);
 
                         // create request to acquire length of message
-                        request = ModbusRequest.createModbusRequest(fc);
+                        request = listener.createRequest(uid, fc);
                         request.setHeadless();
 
                         /*
@@ -24,6 +24,7 @@ import com.ghgande.j2mod.modbus.ModbusSlaveException;
 import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.net.AbstractSerialConnection;
+import com.ghgande.j2mod.modbus.util.HashedTimerWheel;
 import com.ghgande.j2mod.modbus.util.ModbusUtil;
 
 
@@ -126,6 +127,32 @@ public class ModbusSerialTransaction extends ModbusTransaction {
         //1. assert executeability
         assertExecutable();
 
+        HashedTimerWheel.Timeout timeout = startDeadline();
+        try {
+            executeWithRetries();
+        }
+        catch (ModbusIOException e) {
+            if (expired) {
+                throw deadlineExceeded();
+            }
+            throw e;
+        }
+        finally {
+            stopDeadline(timeout);
+        }
+    }
+
+    /**
+     * Sends the request and reads the response, retrying on I/O errors.
+     * <p>
+     * The serial port is shared by every unit on the line so it is not closed
+     * when the deadline passes; the port read timeout bounds the attempt in
+     * progress and no further retries are made.
+     *
+     * @throws ModbusException If the transaction fails
+     */
+    private void executeWithRetries() throws ModbusException {
+
         //3. write request, and read response,
         //   while holding the lock on the IO object
         int tries = 0;
@@ -144,7 +171,7 @@ public class ModbusSerialTransaction extends ModbusTransaction {
                 }
             }
             catch (ModbusIOException e) {
-                if (++tries >= retries) {
+                if (++tries >= retries || expired) {
                     throw e;
                 }
                 ModbusUtil.sleep(getRandomSleepTime(tries));
@@ -22,6 +22,7 @@ import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.msg.ModbusMessage;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.RequestView;
 import com.ghgande.j2mod.modbus.net.AbstractModbusListener;
 import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
 import com.ghgande.j2mod.modbus.util.ModbusUtil;
@@ -40,6 +41,17 @@ import java.net.SocketTimeoutException;
  */
 public class ModbusTCPTransport extends AbstractModbusTransport {
     
+    /**
+     * Position of the PDU in a frame passed to {@link #writeResponse(RequestView, byte[], int, int, boolean)},
+     * after the MBAP header and unit ID (=<tt>7</tt>)
+     */
+    public static final int PDU_OFFSET = 7;
+
+    /**
+     * Longest frame read by {@link #readFrame}, MBAP header included (=<tt>260</tt>)
+     */
+    public static final int MAX_FRAME_LENGTH = Modbus.MAX_MESSAGE_LENGTH + 4;
+
     // instance attributes
     private DataInputStream dataInputStream; // input stream
     private DataOutputStream dataOutputStream; // output stream
@@ -108,6 +120,15 @@ public class ModbusTCPTransport extends AbstractModbusTransport {
         this.headless = headless;
     }
 
+    /**
+     * Returns true if the transport is headless
+     *
+     * @return True if headless
+     */
+    public boolean isHeadless() {
+        return headless;
+    }
+
     /**
      * Sets the master connection for the transport to use
      *
@@ -189,7 +210,7 @@ public class ModbusTCPTransport extends AbstractModbusTransport {
                     int functionCode = byteInputStream.readUnsignedByte();
 
                     byteInputStream.reset();
-                    req = ModbusRequest.createModbusRequest(functionCode);
+                    req = listener.createRequest(unit, functionCode);
                     req.setUnitID(unit);
                     req.setHeadless(false);
 
@@ -206,7 +227,7 @@ public class ModbusTCPTransport extends AbstractModbusTransport {
                     int unit = dataInputStream.readByte();
                     int function = dataInputStream.readByte();
 
-                    req = ModbusRequest.createModbusRequest(function);
+                    req = listener.createRequest(unit, function);
                     req.setUnitID(unit);
                     req.setHeadless(true);
                     req.readData(dataInputStream);
@@ -353,6 +374,148 @@ public class ModbusTCPTransport extends AbstractModbusTransport {
      *                           this <tt>ModbusTransport</tt>.
      */
     void writeMessage(ModbusMessage msg, boolean useRtuOverTcp) throws ModbusIOException {
+        writeMessage(msg, useRtuOverTcp, true);
+    }
+
+    /**
+     * Writes a response, leaving it in the output buffer unless asked to
+     * flush, so that a batch of pipelined requests can be answered in as few
+     * segments as possible.  The response is encoded straight away, so later
+     * changes to the process image do not alter it.
+     *
+     * @param msg   Response to write
+     * @param flush True to flush the output, false to leave it buffered
+     * @throws ModbusIOException if the response cannot be written
+     */
+    public void writeResponse(ModbusResponse msg, boolean flush) throws ModbusIOException {
+        writeMessage(msg, false, flush);
+    }
+
+    /**
+     * Reads the next request frame, MBAP header included, into a buffer
+     * without decoding it, for a {@link RequestView} to be wrapped around
+     *
+     * @param buffer Buffer to read into, with room for {@link #MAX_FRAME_LENGTH} bytes from the offset
+     * @param offset Position to read to
+     * @return Length of the frame
+     * @throws ModbusIOException if the frame cannot be read or has an invalid header
+     * @throws IllegalStateException if the transport is headless
+     */
+    public int readFrame(byte[] buffer, int offset) throws ModbusIOException {
+        if (headless) {
+            throw new IllegalStateException("Headless frames cannot be read undecoded");
+        }
+        try {
+            dataInputStream.readFully(buffer, offset, 6);
+            int count = ModbusUtil.registerToShort(buffer, offset + 4) & 0xffff;
+            if (count < 2 || count > MAX_FRAME_LENGTH - 6) {
+                throw new ModbusIOException("Invalid MBAP length %d", count);
+            }
+            dataInputStream.readFully(buffer, offset + 6, count);
+            return 6 + count;
+        }
+        catch (EOFException eoex) {
+            throw new ModbusIOException("End of File", true);
+        }
+        catch (SocketTimeoutException x) {
+            throw new ModbusIOException("Timeout reading request", x);
+        }
+        catch (SocketException sockex) {
+            throw new ModbusIOException("Socket Exception", sockex);
+        }
+        catch (IOException ex) {
+            throw new ModbusIOException("I/O exception - failed to read", ex);
+        }
+    }
+
+    /**
+     * Writes a response whose PDU has already been encoded into a buffer,
+     * framing it in place.  The buffer holds the PDU at
+     * {@link #PDU_OFFSET} from the offset, with room for the header before
+     * it and for a CRC after it.
+     *
+     * @param request   View of the request answered, giving the transaction, protocol and unit IDs
+     * @param buffer    Buffer holding the PDU
+     * @param offset    Start of the frame in the buffer
+     * @param pduLength Length of the PDU, function code included
+     * @param flush     True to flush the output, false to leave it buffered
+     * @throws ModbusIOException if the response cannot be written
+     */
+    public void writeResponse(RequestView request, byte[] buffer, int offset, int pduLength, boolean flush) throws ModbusIOException {
+        writeFrame(request, buffer, offset, pduLength, false, flush);
+    }
+
+    /**
+     * Frames an encoded PDU in place and writes it
+     *
+     * @param request       View of the request answered
+     * @param buffer        Buffer holding the PDU at {@link #PDU_OFFSET} from the offset
+     * @param offset        Start of the frame in the buffer
+     * @param pduLength     Length of the PDU
+     * @param useRtuOverTcp True if the RTU protocol should be used over TCP
+     * @param flush         True to flush the output stream after the frame
+     * @throws ModbusIOException if the frame cannot be written
+     */
+    void writeFrame(RequestView request, byte[] buffer, int offset, int pduLength, boolean useRtuOverTcp, boolean flush) throws ModbusIOException {
+        int start = offset + PDU_OFFSET - 1;
+        int end = offset + PDU_OFFSET + pduLength;
+        if (!headless) {
+            int transaction = request.getTransactionID();
+            int protocol = request.getProtocolID();
+            start = offset;
+            buffer[offset] = (byte) (transaction >> 8);
+            buffer[offset + 1] = (byte) transaction;
+            buffer[offset + 2] = (byte) (protocol >> 8);
+            buffer[offset + 3] = (byte) protocol;
+            buffer[offset + 4] = (byte) ((pduLength + 1) >> 8);
+            buffer[offset + 5] = (byte) (pduLength + 1);
+        }
+        buffer[offset + PDU_OFFSET - 1] = (byte) request.getUnitID();
+        if (useRtuOverTcp) {
+            int[] crc = ModbusUtil.calculateCRC(buffer, offset + PDU_OFFSET - 1, pduLength + 1);
+            buffer[end++] = (byte) crc[0];
+            buffer[end++] = (byte) crc[1];
+        }
+        try {
+            dataOutputStream.write(buffer, start, end - start);
+            if (flush) {
+                dataOutputStream.flush();
+            }
+        }
+        catch (IOException ex) {
+            throw new ModbusIOException("I/O exception - failed to write - %s", ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns the number of bytes that can be read without blocking, so a
+     * listener can tell whether further requests have been pipelined
+     *
+     * @return Number of bytes buffered or waiting on the socket
+     * @throws ModbusIOException if the stream cannot be queried
+     */
+    public int available() throws ModbusIOException {
+        try {
+            return dataInputStream.available();
+        }
+        catch (IOException ex) {
+            throw new ModbusIOException("I/O exception - failed to query input - %s", ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes a <tt>ModbusMessage</tt> to the
+     * output stream of this <tt>ModbusTransport</tt>.
+     *
+     * @param msg           a <tt>ModbusMessage</tt>.
+     * @param useRtuOverTcp True if the RTU protocol should be used over TCP
+     * @param flush         True to flush the output stream after the message
+     *
+     * @throws ModbusIOException data cannot be
+     *                           written properly to the raw output stream of
+     *                           this <tt>ModbusTransport</tt>.
+     */
+    void writeMessage(ModbusMessage msg, boolean useRtuOverTcp, boolean flush) throws ModbusIOException {
         try {
             
             Log.d("Sending: {}", msg.getHexMessage());
@@ -379,8 +542,10 @@ public class ModbusTCPTransport extends AbstractModbusTransport {
                 byteOutputStream.writeByte(crc[1]);
             }
 
-            dataOutputStream.write(byteOutputStream.toByteArray());
-            dataOutputStream.flush();
+            byteOutputStream.writeTo(dataOutputStream);
+            if (flush) {
+                dataOutputStream.flush();
+            }
             
             Log.d("Successfully sent: {}", ModbusUtil.toHex(byteOutputStream.toByteArray()));
 
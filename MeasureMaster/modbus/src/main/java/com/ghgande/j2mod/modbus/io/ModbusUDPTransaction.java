@@ -25,6 +25,7 @@ import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.net.AbstractUDPTerminal;
 import com.ghgande.j2mod.modbus.net.UDPMasterConnection;
+import com.ghgande.j2mod.modbus.util.HashedTimerWheel;
 import com.ghgande.j2mod.modbus.util.ModbusUtil;
 
 /**
@@ -102,6 +103,36 @@ public class ModbusUDPTransaction extends ModbusTransaction {
 
         //1. assert executeability
         assertExecutable();
+
+        HashedTimerWheel.Timeout timeout = startDeadline();
+        try {
+            executeWithRetries();
+        }
+        catch (ModbusIOException e) {
+            if (expired) {
+                throw deadlineExceeded();
+            }
+            throw e;
+        }
+        finally {
+            stopDeadline(timeout);
+        }
+    }
+
+    @Override
+    void abort() {
+
+        // Closing the socket unblocks the receive in progress
+        terminal.deactivate();
+    }
+
+    /**
+     * Sends the request and reads the response, retrying on I/O errors
+     *
+     * @throws ModbusException If the transaction fails
+     */
+    private void executeWithRetries() throws ModbusException {
+
         //2. open the connection if not connected
         if (!terminal.isActive()) {
             try {
@@ -117,7 +148,7 @@ public class ModbusUDPTransaction extends ModbusTransaction {
         //3. Retry transaction retries times, in case of
         //I/O Exception problems.
         int retryCount = 0;
-        while (retryCount <= retries) {
+        while (retryCount <= retries && !expired) {
             try {
                 //3. write request, and read response,
                 //   while holding the lock on the IO object
@@ -140,6 +171,10 @@ public class ModbusUDPTransaction extends ModbusTransaction {
             }
         }
 
+        if (expired) {
+            throw deadlineExceeded();
+        }
+
         //4. deal with "application level" exceptions
         if (response instanceof ExceptionResponse) {
             throw new ModbusSlaveException(((ExceptionResponse)response).getExceptionCode());
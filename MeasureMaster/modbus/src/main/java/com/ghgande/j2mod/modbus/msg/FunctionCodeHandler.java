@@ -0,0 +1,49 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.msg;
+
+import com.ghgande.j2mod.modbus.net.AbstractModbusListener;
+
+/**
+ * Serves one function code on a slave: creates the request object its PDU
+ * is read into and executes it.
+ * <p>
+ * Handlers are looked up by function code in a {@link FunctionCodeRegistry},
+ * which holds a handler for every standard function.  Registering a handler
+ * of its own lets an application serve a vendor function code, or replace
+ * the behaviour of a standard one, for a whole slave or a single unit.
+ * Handlers are shared by all of the connections of a slave, so they must be
+ * thread safe; handlers of the read functions may run concurrently.
+ */
+public interface FunctionCodeHandler {
+
+    /**
+     * Creates an empty request for the function, to read a received PDU into
+     *
+     * @param functionCode Function code of the request
+     * @return Request
+     */
+    ModbusRequest createRequest(int functionCode);
+
+    /**
+     * Executes a request against the process image of its unit
+     *
+     * @param request  Request created by {@link #createRequest} and read
+     * @param listener Listener that received the request
+     * @return Response to send, possibly an exception response
+     */
+    ModbusResponse execute(ModbusRequest request, AbstractModbusListener listener);
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.msg;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.io.BytesInputStream;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reusable view of a Modbus/TCP request frame in a receive buffer, read in
+ * place instead of decoded into a {@link ModbusRequest}.
+ * <p>
+ * A view is pointed at a frame with {@link #wrap}, which reads the MBAP
+ * header and checks once that the frame holds all that the request
+ * refers to; the reference, counts and written register values are then
+ * read from the bytes as they are asked for.  Read coils (1), read
+ * discrete inputs (2), read holding registers (3), read input registers
+ * (4) and read/write multiple registers (23) are understood, with the
+ * same fields as their request classes.  Any other frame is still wrapped
+ * but not {@link #isSupported() supported}, and may be decoded with
+ * {@link #toRequest()}.
+ * <p>
+ * The view does not copy the frame, so the buffer must not be reused
+ * while the view is.  A view is not thread safe.
+ */
+public final class RequestView {
+
+    private static final int HEADER_LENGTH = 7;
+
+    private byte[] buffer;
+    private int offset;
+    private int length;
+    private boolean supported;
+
+    /**
+     * Points the view at a frame
+     *
+     * @param buffer Buffer holding the frame
+     * @param offset Start of the MBAP header in the buffer
+     * @param length Length of the frame, header included
+     * @return True if the frame is a request the view supports
+     */
+    public boolean wrap(byte[] buffer, int offset, int length) {
+        if (length < HEADER_LENGTH + 1 || offset < 0 || offset + length > buffer.length) {
+            throw new IllegalArgumentException(String.format("Invalid frame at %d length %d", offset, length));
+        }
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        supported = validate();
+        return supported;
+    }
+
+    /**
+     * Returns true if the frame is a well formed request the view can be
+     * read as
+     *
+     * @return True if supported
+     */
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Returns the transaction identifier of the frame
+     *
+     * @return Transaction ID
+     */
+    public int getTransactionID() {
+        return getShort(0);
+    }
+
+    /**
+     * Returns the protocol identifier of the frame
+     *
+     * @return Protocol ID
+     */
+    public int getProtocolID() {
+        return getShort(2);
+    }
+
+    /**
+     * Returns the unit the request is for
+     *
+     * @return Unit ID
+     */
+    public int getUnitID() {
+        return buffer[offset + 6] & 0xff;
+    }
+
+    /**
+     * Returns the function code of the request
+     *
+     * @return Function code
+     */
+    public int getFunctionCode() {
+        return buffer[offset + HEADER_LENGTH] & 0xff;
+    }
+
+    /**
+     * Returns the first address read
+     *
+     * @return Reference
+     */
+    public int getReference() {
+        return getShort(HEADER_LENGTH + 1);
+    }
+
+    /**
+     * Returns the number of coils, discrete inputs or registers read
+     *
+     * @return Count
+     */
+    public int getCount() {
+        return getShort(HEADER_LENGTH + 3);
+    }
+
+    /**
+     * Returns the first register written by a read/write multiple request
+     *
+     * @return Reference
+     */
+    public int getWriteReference() {
+        checkFunctionCode(Modbus.READ_WRITE_MULTIPLE);
+        return getShort(HEADER_LENGTH + 5);
+    }
+
+    /**
+     * Returns the number of registers written by a read/write multiple request
+     *
+     * @return Count
+     */
+    public int getWriteCount() {
+        checkFunctionCode(Modbus.READ_WRITE_MULTIPLE);
+        return getShort(HEADER_LENGTH + 7);
+    }
+
+    /**
+     * Returns a value written by a read/write multiple request
+     *
+     * @param index Index of the register in the request
+     * @return Unsigned register value
+     * @throws IndexOutOfBoundsException if the index is not within the write count
+     */
+    public int getRegisterValue(int index) {
+        if (index < 0 || index >= getWriteCount()) {
+            throw new IndexOutOfBoundsException(index + " not in [0," + getWriteCount() + ")");
+        }
+        return getShort(HEADER_LENGTH + 10 + 2 * index);
+    }
+
+    /**
+     * Decodes the frame into a request object of the standard class for its
+     * function code, for the frames the view does not support
+     *
+     * @return Request
+     * @throws IOException if the frame is not a valid request
+     */
+    public ModbusRequest toRequest() throws IOException {
+        return toRequest(ModbusRequest.createModbusRequest(getFunctionCode()));
+    }
+
+    /**
+     * Decodes the frame into an empty request object, such as one created by
+     * the handler of its function code
+     *
+     * @param request Request to read the frame into
+     * @return The request
+     * @throws IOException if the frame is not a valid request
+     */
+    public ModbusRequest toRequest(ModbusRequest request) throws IOException {
+        request.setHeadless(false);
+        request.readFrom(new BytesInputStream(Arrays.copyOfRange(buffer, offset, offset + length)));
+        return request;
+    }
+
+    /**
+     * Creates the exception response to the request
+     *
+     * @param code Exception code
+     * @return Response
+     */
+    public ModbusResponse createExceptionResponse(int code) {
+        ExceptionResponse response = new ExceptionResponse(getFunctionCode(), code);
+        response.setHeadless(false);
+        response.setTransactionID(getTransactionID());
+        response.setProtocolID(getProtocolID());
+        response.setUnitID(getUnitID());
+        return response;
+    }
+
+    @Override
+    public String toString() {
+        return buffer == null ? "RequestView[]" : String.format("RequestView[unit %d, function %d, %s]",
+                getUnitID(), getFunctionCode(), supported ? "ref " + getReference() + " count " + getCount() : "unsupported");
+    }
+
+    /**
+     * Checks the frame holds all the fields of a supported request
+     */
+    private boolean validate() {
+        int pdu = length - HEADER_LENGTH;
+        switch (getFunctionCode()) {
+            case Modbus.READ_COILS:
+            case Modbus.READ_INPUT_DISCRETES:
+            case Modbus.READ_HOLDING_REGISTERS:
+            case Modbus.READ_INPUT_REGISTERS:
+                return pdu >= 5;
+            case Modbus.READ_WRITE_MULTIPLE:
+                if (pdu < 10) {
+                    return false;
+                }
+                int byteCount = buffer[offset + HEADER_LENGTH + 9] & 0xff;
+                return byteCount >= 2 * getWriteCount() && pdu >= 10 + byteCount;
+            default:
+                return false;
+        }
+    }
+
+    private void checkFunctionCode(int functionCode) {
+        if (getFunctionCode() != functionCode) {
+            throw new IllegalStateException("Not a function " + functionCode + " request");
+        }
+    }
+
+    private int getShort(int position) {
+        return (buffer[offset + position] & 0xff) << 8 | buffer[offset + position + 1] & 0xff;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.msg;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
+import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.SimpleProcessImage;
+
+/**
+ * Serializes the responses to the common read requests straight from a
+ * process image into a byte buffer, without the range arrays, response
+ * objects and per-register byte arrays of {@link ModbusRequest#createResponse}.
+ * Requests are read from a {@link RequestView} over the receive buffer, so
+ * no request objects are needed either.
+ * <p>
+ * Read coils (1), read discrete inputs (2), read holding registers (3), read
+ * input registers (4) and read/write multiple registers (23) are encoded for
+ * a {@link SimpleProcessImage}, whose addressing the encoder repeats: a range
+ * must lie within the image and every address in it must be populated,
+ * otherwise the request is answered with an illegal address exception.
+ * Anything else is left to the request objects, which the caller is told of
+ * by a return of <tt>-1</tt>.
+ * <p>
+ * The encoded PDU starts with the function code; the caller adds the unit
+ * ID and the framing of its transport.
+ */
+public final class ResponseEncoder {
+
+    /**
+     * Largest PDU, function code included (=<tt>253</tt>)
+     */
+    public static final int MAX_PDU_LENGTH = Modbus.MAX_MESSAGE_LENGTH - 3;
+
+    private ResponseEncoder() {
+    }
+
+    /**
+     * Returns the length of the PDU that answers a request if it can be
+     * encoded directly
+     *
+     * @param request View of the request
+     * @return Length in bytes, or -1 if the request must be answered by its object
+     */
+    public static int getLength(RequestView request) {
+        if (!request.isSupported()) {
+            return -1;
+        }
+        int length;
+        switch (request.getFunctionCode()) {
+            case Modbus.READ_COILS:
+            case Modbus.READ_INPUT_DISCRETES:
+                length = 2 + (request.getCount() + 7) / 8;
+                break;
+            case Modbus.READ_HOLDING_REGISTERS:
+            case Modbus.READ_INPUT_REGISTERS:
+            case Modbus.READ_WRITE_MULTIPLE:
+                length = 2 + 2 * request.getCount();
+                break;
+            default:
+                return -1;
+        }
+        return length <= MAX_PDU_LENGTH ? length : -1;
+    }
+
+    /**
+     * Executes a request against an image and writes the PDU of its response
+     *
+     * @param image   Process image of the unit
+     * @param request View of the request
+     * @param buffer  Buffer to write to
+     * @param offset  Position of the function code in the buffer
+     * @return Length written, or -1 if the request must be answered by its object
+     */
+    public static int encode(ProcessImage image, RequestView request, byte[] buffer, int offset) {
+        int length = getLength(request);
+        if (length < 0 || !(image instanceof SimpleProcessImage) || buffer.length - offset < length) {
+            return -1;
+        }
+        int functionCode = request.getFunctionCode();
+        int ref = request.getReference();
+        int count = request.getCount();
+        try {
+            switch (functionCode) {
+                case Modbus.READ_COILS:
+                    encodeDigitalOuts(image, ref, count, buffer, offset + 1);
+                    break;
+                case Modbus.READ_INPUT_DISCRETES:
+                    encodeDigitalIns(image, ref, count, buffer, offset + 1);
+                    break;
+                case Modbus.READ_HOLDING_REGISTERS:
+                    encodeRegisters(image, ref, count, buffer, offset + 1);
+                    break;
+                case Modbus.READ_INPUT_REGISTERS:
+                    encodeInputRegisters(image, ref, count, buffer, offset + 1);
+                    break;
+                default:
+                    writeRegisters(image, request);
+                    encodeRegisters(image, ref, count, buffer, offset + 1);
+                    break;
+            }
+        }
+        catch (IllegalAddressException e) {
+            buffer[offset] = (byte) (functionCode | Modbus.EXCEPTION_OFFSET);
+            buffer[offset + 1] = (byte) Modbus.ILLEGAL_ADDRESS_EXCEPTION;
+            return 2;
+        }
+        buffer[offset] = (byte) functionCode;
+        return length;
+    }
+
+    /**
+     * Checks that a range lies within a table of the image
+     */
+    private static void checkRange(int ref, int count, int size) {
+        if (ref < 0 || ref + count > size) {
+            throw new IllegalAddressException();
+        }
+    }
+
+    private static void encodeDigitalOuts(ProcessImage image, int ref, int count, byte[] buffer, int offset) {
+        checkRange(ref, count, image.getDigitalOutCount());
+        int bytes = (count + 7) / 8;
+        buffer[offset++] = (byte) bytes;
+        for (int i = 0; i < bytes; i++) {
+            int value = 0;
+            for (int bit = 0; bit < 8 && i * 8 + bit < count; bit++) {
+                if (image.getDigitalOut(ref + i * 8 + bit).isSet()) {
+                    value |= 1 << bit;
+                }
+            }
+            buffer[offset + i] = (byte) value;
+        }
+    }
+
+    private static void encodeDigitalIns(ProcessImage image, int ref, int count, byte[] buffer, int offset) {
+        checkRange(ref, count, image.getDigitalInCount());
+        int bytes = (count + 7) / 8;
+        buffer[offset++] = (byte) bytes;
+        for (int i = 0; i < bytes; i++) {
+            int value = 0;
+            for (int bit = 0; bit < 8 && i * 8 + bit < count; bit++) {
+                if (image.getDigitalIn(ref + i * 8 + bit).isSet()) {
+                    value |= 1 << bit;
+                }
+            }
+            buffer[offset + i] = (byte) value;
+        }
+    }
+
+    private static void encodeRegisters(ProcessImage image, int ref, int count, byte[] buffer, int offset) {
+        checkRange(ref, count, image.getRegisterCount());
+        if (count > 0) {
+            SimpleProcessImage.checkWholeGroups(image.getRegister(ref), image.getRegister(ref + count - 1));
+        }
+        buffer[offset++] = (byte) (2 * count);
+        for (int i = 0; i < count; i++) {
+            int value = image.getRegister(ref + i).getValue();
+            buffer[offset++] = (byte) (value >> 8);
+            buffer[offset++] = (byte) value;
+        }
+    }
+
+    private static void encodeInputRegisters(ProcessImage image, int ref, int count, byte[] buffer, int offset) {
+        checkRange(ref, count, image.getInputRegisterCount());
+        if (count > 0) {
+            SimpleProcessImage.checkWholeGroups(image.getInputRegister(ref), image.getInputRegister(ref + count - 1));
+        }
+        buffer[offset++] = (byte) (2 * count);
+        for (int i = 0; i < count; i++) {
+            int value = image.getInputRegister(ref + i).getValue();
+            buffer[offset++] = (byte) (value >> 8);
+            buffer[offset++] = (byte) value;
+        }
+    }
+
+    /**
+     * Performs the write of a read/write multiple request, checking the
+     * whole range before writing any of it
+     */
+    private static void writeRegisters(ProcessImage image, RequestView request) {
+        int ref = request.getWriteReference();
+        int count = request.getWriteCount();
+        ModbusRequest.beginUpdate(image);
+        try {
+            checkRange(ref, count, image.getRegisterCount());
+            for (int i = 0; i < count; i++) {
+                image.getRegister(ref + i);
+            }
+            for (int i = 0; i < count; i++) {
+                image.getRegister(ref + i).setValue(request.getRegisterValue(i));
+            }
+        }
+        finally {
+            ModbusRequest.endUpdate(image);
+        }
+        image.handleMessage();
+    }
+}
@@ -80,6 +80,7 @@ public class WriteCoilRequest extends ModbusRequest {
         // 1. get process image
         ProcessImage procimg = listener.getProcessImage(getUnitID());
         // 2. get coil
+        beginUpdate(procimg);
         try {
             dout = procimg.getDigitalOut(getReference());
             // 3. set coil
@@ -88,6 +89,9 @@ public class WriteCoilRequest extends ModbusRequest {
         catch (IllegalAddressException iaex) {
             return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
         }
+        finally {
+            endUpdate(procimg);
+        }
         response = (WriteCoilResponse)getResponse();
         response.setReference(getReference());
         response.setCoil(getCoil());
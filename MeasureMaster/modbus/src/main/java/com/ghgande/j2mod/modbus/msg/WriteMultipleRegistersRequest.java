@@ -101,6 +101,7 @@ public class WriteMultipleRegistersRequest extends ModbusRequest {
             // 1. get process image
             ProcessImage procimg = listener.getProcessImage(getUnitID());
             // 2. get registers
+            beginUpdate(procimg);
             try {
                 regs = procimg.getRegisterRange(getReference(), getWordCount());
                 // 3. set Register values
@@ -111,6 +112,9 @@ public class WriteMultipleRegistersRequest extends ModbusRequest {
             catch (IllegalAddressException iaex) {
                 return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
             }
+            finally {
+                endUpdate(procimg);
+            }
             response = (WriteMultipleRegistersResponse)getResponse();
             response.setReference(getReference());
             response.setWordCount(getWordCount());
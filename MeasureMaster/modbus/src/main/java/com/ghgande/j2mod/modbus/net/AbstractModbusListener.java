@@ -21,12 +21,15 @@ import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.io.AbstractModbusTransport;
 import com.ghgande.j2mod.modbus.io.ModbusRTUTransport;
+import com.ghgande.j2mod.modbus.msg.FunctionCodeHandler;
+import com.ghgande.j2mod.modbus.msg.FunctionCodeRegistry;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse.AuxiliaryMessageTypes;
+import com.ghgande.j2mod.modbus.msg.RequestView;
+import com.ghgande.j2mod.modbus.msg.ResponseEncoder;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
 import com.ghgande.j2mod.modbus.slave.ModbusSlave;
-import com.ghgande.j2mod.modbus.slave.ModbusSlaveFactory;
 
 import java.net.InetAddress;
 
@@ -44,6 +47,10 @@ public abstract class AbstractModbusListener implements Runnable {
     protected String error;
     protected int timeout = Modbus.DEFAULT_TIMEOUT;
     protected String threadName;
+    protected volatile RateLimiter rateLimiter;
+    protected volatile EncodedResponseCache responseCache;
+    protected final FunctionCodeRegistry functionCodes = new FunctionCodeRegistry();
+    protected volatile ModbusSlave slave;
 
     /**
      * Main execution loop for this Modbus interface listener - this is called by
@@ -141,6 +148,64 @@ public abstract class AbstractModbusListener implements Runnable {
         this.timeout = timeout;
     }
 
+    /**
+     * Returns the limiter applied to the requests of TCP connections
+     *
+     * @return Rate limiter or null if requests are not limited
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Sets the limiter applied to the requests of TCP connections; applies
+     * to connections accepted from now on
+     *
+     * @param rateLimiter Rate limiter or null to serve requests as fast as they come
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Returns the cache of encoded register reads
+     *
+     * @return Response cache or null if responses are not cached
+     */
+    public EncodedResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Sets the cache of encoded register reads of the TCP connections
+     *
+     * @param responseCache Response cache or null to encode every response
+     */
+    public void setResponseCache(EncodedResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * Returns the handlers of the function codes this listener serves
+     *
+     * @return Function code registry
+     */
+    public FunctionCodeRegistry getFunctionCodeRegistry() {
+        return functionCodes;
+    }
+
+    /**
+     * Creates the empty request a received PDU is read into, from the
+     * handler of its function code
+     *
+     * @param unitId       Unit ID of the request
+     * @param functionCode Function code of the request
+     * @return Request
+     */
+    public ModbusRequest createRequest(int unitId, int functionCode) {
+        return functionCodes.getHandler(unitId, functionCode).createRequest(functionCode);
+    }
+
     /**
      * Reads the request, checks it is valid and that the unit ID is ok
      * and sends back a response
@@ -161,6 +226,29 @@ public abstract class AbstractModbusListener implements Runnable {
         if (request == null) {
             throw new ModbusIOException("Request for transport %s is invalid (null)", transport.getClass().getSimpleName());
         }
+        ModbusResponse response = createResponse(request);
+
+        Log.d("Request:{}", request.getHexMessage());
+
+        if (transport instanceof ModbusRTUTransport && response.getAuxiliaryType() == AuxiliaryMessageTypes.UNIT_ID_MISSMATCH) {
+            Log.d("tag","Not sending response because it was not meant for us.");
+        }
+        else {
+            Log.d("Response:{}", response.getHexMessage());
+        }
+
+        // Write the response
+        transport.writeResponse(response);
+    }
+
+    /**
+     * Executes a request against the process image of its unit with the
+     * handler of its function code
+     *
+     * @param request Request to execute
+     * @return Response, an illegal address exception if there is no image for the unit
+     */
+    ModbusResponse createResponse(ModbusRequest request) {
         ModbusResponse response;
 
         // Test if Process image exists for this Unit ID
@@ -170,20 +258,40 @@ public abstract class AbstractModbusListener implements Runnable {
             response.setAuxiliaryType(AuxiliaryMessageTypes.UNIT_ID_MISSMATCH);
         }
         else {
-            response = request.createResponse(this);
+            FunctionCodeHandler handler = functionCodes.getHandler(request.getUnitID(), request.getFunctionCode());
+            response = handler.execute(request, this);
+            EncodedResponseCache cache = responseCache;
+            if (cache != null) {
+                cache.executed(request, spi, handler == FunctionCodeRegistry.getStandardHandler(request.getFunctionCode()));
+            }
         }
+        return response;
+    }
 
-        Log.d("Request:{}", request.getHexMessage());
-
-        if (transport instanceof ModbusRTUTransport && response.getAuxiliaryType() == AuxiliaryMessageTypes.UNIT_ID_MISSMATCH) {
-            Log.d("tag","Not sending response because it was not meant for us.");
+    /**
+     * Executes a request and encodes its response straight from the process
+     * image, or from the response cache, if the request is one
+     * {@link ResponseEncoder} handles and its function code has the
+     * standard handler
+     *
+     * @param request View of the request to execute
+     * @param buffer  Buffer to write the PDU of the response to
+     * @param offset  Position of the function code in the buffer
+     * @return Length of the PDU, or -1 if the response must be created with {@link #createResponse}
+     */
+    int encodeResponse(RequestView request, byte[] buffer, int offset) {
+        if (!functionCodes.isStandard(request.getUnitID(), request.getFunctionCode())) {
+            return -1;
         }
-        else {
-            Log.d("Response:{}", response.getHexMessage());
+        ProcessImage spi = getProcessImage(request.getUnitID());
+        if (spi == null) {
+            return -1;
         }
-
-        // Write the response
-        transport.writeResponse(response);
+        EncodedResponseCache cache = responseCache;
+        if (cache != null) {
+            return cache.encode(spi, request, buffer, offset);
+        }
+        return ResponseEncoder.encode(spi, request, buffer, offset);
     }
 
     /**
@@ -193,11 +301,26 @@ public abstract class AbstractModbusListener implements Runnable {
      * @return Process image associated with this listener and Unit ID
      */
     public ProcessImage getProcessImage(int unitId) {
-        ModbusSlave slave = ModbusSlaveFactory.getSlave(this);
-        if (slave != null) {
-            return slave.getProcessImage(unitId);
-        }
-        return null;
+        ModbusSlave owner = slave;
+        return owner != null ? owner.getProcessImage(unitId) : null;
+    }
+
+    /**
+     * Returns the slave whose process images this listener serves
+     *
+     * @return Slave or null if the listener is not bound to one
+     */
+    public ModbusSlave getSlave() {
+        return slave;
+    }
+
+    /**
+     * Binds the listener to the slave whose process images it serves
+     *
+     * @param slave Slave
+     */
+    public void setSlave(ModbusSlave slave) {
+        this.slave = slave;
     }
 
     /**
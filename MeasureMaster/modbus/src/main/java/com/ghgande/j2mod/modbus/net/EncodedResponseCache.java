@@ -0,0 +1,385 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.net;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.msg.MaskWriteRegisterRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ReadWriteMultipleRequest;
+import com.ghgande.j2mod.modbus.msg.RequestView;
+import com.ghgande.j2mod.modbus.msg.ResponseEncoder;
+import com.ghgande.j2mod.modbus.msg.WriteMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.WriteSingleRegisterRequest;
+import com.ghgande.j2mod.modbus.procimg.GroupedRegister;
+import com.ghgande.j2mod.modbus.procimg.InputRegister;
+import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.SimpleProcessImage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cache of the encoded responses to read holding registers (3) and read
+ * input registers (4), for slaves that many masters poll for the same
+ * ranges.
+ * <p>
+ * Entries are keyed by unit, function code, reference and count and hold
+ * the PDU bytes.  Each unit has a version counter for every block of
+ * {@link #BLOCK_SIZE} registers; an entry records the versions of the
+ * blocks its range covers when it is encoded and is served only while they
+ * are unchanged, so a hit costs a few counter reads and a copy.  The table
+ * is direct mapped: a range takes the slot its key hashes to, replacing
+ * whatever was there.
+ * <p>
+ * Writes made through the slave advance the versions of the registers they
+ * touch, and requests served by handlers other than the standard ones
+ * advance those of the whole unit.  The slave cannot see values the
+ * application changes itself, such as measurements set with
+ * <tt>Register.setValue</tt> or registers that compute their value when
+ * read; the application must announce those with the
+ * <tt>invalidate</tt> methods, or bound how long an entry is served with
+ * {@link #setMaxAge}.  Ranges that include a
+ * {@link GroupedRegister}, such as a clock, are never cached.
+ * <p>
+ * A cache is given to a listener with
+ * {@link AbstractModbusListener#setResponseCache} and is only used for
+ * units with a {@link SimpleProcessImage}.
+ */
+public class EncodedResponseCache {
+
+    /**
+     * Number of registers sharing a version counter (=<tt>16</tt>)
+     */
+    public static final int BLOCK_SIZE = 16;
+
+    /**
+     * Default number of slots in the table (=<tt>1024</tt>)
+     */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private static final int BLOCK_SHIFT = 4;
+    private static final int BLOCK_COUNT = 65536 / BLOCK_SIZE;
+    private static final int UNIT_COUNT = 256;
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicReferenceArray<Versions> units = new AtomicReferenceArray<Versions>(UNIT_COUNT);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile long maxAge;
+
+    /**
+     * Creates a cache of {@link #DEFAULT_SIZE} slots
+     */
+    public EncodedResponseCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Creates a cache
+     *
+     * @param size Number of slots, rounded up to a power of two
+     */
+    public EncodedResponseCache(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Invalid cache size " + size);
+        }
+        int capacity = Integer.highestOneBit(size);
+        if (capacity < size) {
+            capacity <<= 1;
+        }
+        slots = new AtomicReferenceArray<Entry>(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Returns how long an entry may be served after it was encoded
+     *
+     * @return Age in milliseconds, 0 if entries are served until invalidated
+     */
+    public long getMaxAge() {
+        return TimeUnit.NANOSECONDS.toMillis(maxAge);
+    }
+
+    /**
+     * Sets how long an entry may be served after it was encoded, to bound
+     * the staleness of values the application changes without invalidating
+     *
+     * @param maxAge Age in milliseconds, 0 to serve entries until invalidated
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxAge));
+    }
+
+    /**
+     * Returns the number of reads answered from the cache
+     *
+     * @return Hit count
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of cacheable reads that had to be encoded
+     *
+     * @return Miss count
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Marks holding registers of a unit as changed
+     *
+     * @param unitId Unit ID
+     * @param ref    First register
+     * @param count  Number of registers
+     */
+    public void invalidateRegisters(int unitId, int ref, int count) {
+        Versions versions = versions(unitId);
+        if (versions != null) {
+            advance(versions.registers, ref, count);
+        }
+    }
+
+    /**
+     * Marks input registers of a unit as changed
+     *
+     * @param unitId Unit ID
+     * @param ref    First register
+     * @param count  Number of registers
+     */
+    public void invalidateInputRegisters(int unitId, int ref, int count) {
+        Versions versions = versions(unitId);
+        if (versions != null) {
+            advance(versions.inputRegisters, ref, count);
+        }
+    }
+
+    /**
+     * Marks every register of a unit as changed
+     *
+     * @param unitId Unit ID
+     */
+    public void invalidate(int unitId) {
+        Versions versions = versions(unitId);
+        if (versions != null) {
+            versions.all.incrementAndGet();
+        }
+    }
+
+    /**
+     * Empties the cache
+     */
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d slots, %d hits, %d misses", slots.length(), hits.get(), misses.get());
+    }
+
+    /**
+     * Encodes the response to a request read in place, from the cache for
+     * the register reads and otherwise with {@link ResponseEncoder}, and
+     * invalidates the registers a read/write multiple request writes
+     *
+     * @param image   Process image of the unit
+     * @param request View of the request
+     * @param buffer  Buffer to write the PDU to
+     * @param offset  Position of the function code in the buffer
+     * @return Length of the PDU, or -1 if the request must be answered by its object
+     */
+    int encode(ProcessImage image, RequestView request, byte[] buffer, int offset) {
+        int functionCode = request.getFunctionCode();
+        if (functionCode != Modbus.READ_HOLDING_REGISTERS && functionCode != Modbus.READ_INPUT_REGISTERS) {
+            int length = ResponseEncoder.encode(image, request, buffer, offset);
+            if (length >= 0 && functionCode == Modbus.READ_WRITE_MULTIPLE) {
+                written(image, request.getUnitID(), request.getWriteReference(), request.getWriteCount());
+            }
+            return length;
+        }
+        int unitId = request.getUnitID();
+        int ref = request.getReference();
+        int count = request.getCount();
+        Versions versions = versions(unitId);
+        if (versions == null || count < 1 || !(image instanceof SimpleProcessImage)) {
+            return ResponseEncoder.encode(image, request, buffer, offset);
+        }
+        AtomicLongArray blocks = functionCode == Modbus.READ_HOLDING_REGISTERS ? versions.registers : versions.inputRegisters;
+        long key = (long) unitId << 40 | (long) functionCode << 32 | (long) ref << 16 | count;
+        int slot = hash(key) & mask;
+        long stamp = stamp(versions, blocks, ref, count);
+
+        Entry entry = slots.get(slot);
+        if (entry != null && entry.key == key && entry.stamp == stamp && entry.image == image
+                && (maxAge == 0 || System.nanoTime() - entry.created < maxAge)) {
+            System.arraycopy(entry.pdu, 0, buffer, offset, entry.pdu.length);
+            hits.incrementAndGet();
+            return entry.pdu.length;
+        }
+        misses.incrementAndGet();
+        int length = ResponseEncoder.encode(image, request, buffer, offset);
+        if (length > 2 && buffer[offset] == functionCode && isCacheable(image, functionCode, ref, count)) {
+            byte[] pdu = new byte[length];
+            System.arraycopy(buffer, offset, pdu, 0, length);
+            slots.set(slot, new Entry(key, stamp, image, pdu));
+        }
+        return length;
+    }
+
+    /**
+     * Returns true if none of the registers of a range compute their values
+     * as they are read
+     */
+    private static boolean isCacheable(ProcessImage image, int functionCode, int ref, int count) {
+        for (int i = 0; i < count; i++) {
+            InputRegister register = functionCode == Modbus.READ_HOLDING_REGISTERS ?
+                    image.getRegister(ref + i) : image.getInputRegister(ref + i);
+            if (register instanceof GroupedRegister) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Invalidates what a request executed with its object may have changed
+     *
+     * @param request  Request executed
+     * @param image    Process image of the unit
+     * @param standard True if the request was executed by the standard handler of its function code
+     */
+    void executed(ModbusRequest request, ProcessImage image, boolean standard) {
+        int unitId = request.getUnitID();
+        if (!standard) {
+            invalidate(unitId);
+            return;
+        }
+        switch (request.getFunctionCode()) {
+            case Modbus.WRITE_SINGLE_REGISTER:
+                written(image, unitId, ((WriteSingleRegisterRequest) request).getReference(), 1);
+                break;
+            case Modbus.WRITE_MULTIPLE_REGISTERS:
+                WriteMultipleRegistersRequest multiple = (WriteMultipleRegistersRequest) request;
+                written(image, unitId, multiple.getReference(), multiple.getWordCount());
+                break;
+            case Modbus.MASK_WRITE_REGISTER:
+                written(image, unitId, ((MaskWriteRegisterRequest) request).getReference(), 1);
+                break;
+            case Modbus.READ_WRITE_MULTIPLE:
+                ReadWriteMultipleRequest readWrite = (ReadWriteMultipleRequest) request;
+                written(image, unitId, readWrite.getWriteReference(), readWrite.getWriteWordCount());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Invalidates registers written through the slave, with the sequence
+     * register the image advances around the write
+     */
+    private void written(ProcessImage image, int unitId, int ref, int count) {
+        invalidateRegisters(unitId, ref, count);
+        if (image instanceof SimpleProcessImage) {
+            int sequence = ((SimpleProcessImage) image).getSequenceRegister();
+            if (sequence >= 0) {
+                invalidateRegisters(unitId, sequence, 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the version counters of a unit, creating them on first use
+     */
+    private Versions versions(int unitId) {
+        if (unitId < 0 || unitId >= UNIT_COUNT) {
+            return null;
+        }
+        Versions versions = units.get(unitId);
+        if (versions == null) {
+            units.compareAndSet(unitId, null, new Versions());
+            versions = units.get(unitId);
+        }
+        return versions;
+    }
+
+    /**
+     * Advances the counters of the blocks a range covers
+     */
+    private static void advance(AtomicLongArray blocks, int ref, int count) {
+        if (count < 1) {
+            return;
+        }
+        int first = Math.max(0, ref) >> BLOCK_SHIFT;
+        int last = Math.min(65535, ref + count - 1) >> BLOCK_SHIFT;
+        for (int block = first; block <= last; block++) {
+            blocks.incrementAndGet(block);
+        }
+    }
+
+    /**
+     * Sums the counters of the unit and of the blocks a range covers; as
+     * they only grow, the sum changes whenever one of them does
+     */
+    private static long stamp(Versions versions, AtomicLongArray blocks, int ref, int count) {
+        long stamp = versions.all.get();
+        int last = Math.min(65535, ref + count - 1) >> BLOCK_SHIFT;
+        for (int block = ref >> BLOCK_SHIFT; block <= last; block++) {
+            stamp += blocks.get(block);
+        }
+        return stamp;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32);
+    }
+
+    /**
+     * The version counters of one unit
+     */
+    private static class Versions {
+        final AtomicLong all = new AtomicLong();
+        final AtomicLongArray registers = new AtomicLongArray(BLOCK_COUNT);
+        final AtomicLongArray inputRegisters = new AtomicLongArray(BLOCK_COUNT);
+    }
+
+    /**
+     * An encoded response and the versions it was encoded at
+     */
+    private static class Entry {
+        final long key;
+        final long stamp;
+        final ProcessImage image;
+        final byte[] pdu;
+        final long created = System.nanoTime();
+
+        Entry(long key, long stamp, ProcessImage image, byte[] pdu) {
+            this.key = key;
+            this.stamp = stamp;
+            this.image = image;
+            this.pdu = pdu;
+        }
+    }
+}
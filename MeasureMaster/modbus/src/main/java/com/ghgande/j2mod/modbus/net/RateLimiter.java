@@ -0,0 +1,438 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.net;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.RequestView;
+import com.ghgande.j2mod.modbus.util.TokenBucket;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the rate of requests a slave serves, so that one master polling in
+ * a tight loop cannot crowd out the others.
+ * <p>
+ * Limits may be set per client address, shared by all of the connections
+ * from it, per connection and per unit ID, each a {@link TokenBucket}.  A
+ * request must get a token from every bucket that applies.  One that cannot
+ * waits for the tokens up to the queue deadline, and is answered with a
+ * slave device busy exception (06) if they do not come in time; with no
+ * deadline it is answered straight away.  The throttled requests are counted
+ * per client address and per unit.
+ * <p>
+ * {@link Session#admit(ModbusRequest)} waits on the calling thread, which
+ * suits a thread per connection.  A listener that shares its threads between
+ * connections uses {@link Session#tryAdmit} instead and asks again on a timer
+ * of its own after the wait it returns.
+ * <p>
+ * A limiter is given to a listener with
+ * {@link AbstractModbusListener#setRateLimiter}.  Changing a limit resets
+ * the buckets of its kind; connection limits apply to new connections.
+ */
+public class RateLimiter {
+
+    private static final int UNIT_COUNT = 256;
+
+    private volatile Limit clientLimit;
+    private volatile Limit connectionLimit;
+    private volatile Limit unitLimit;
+    private volatile long queueDeadline;
+
+    private final Map<InetAddress, Client> clients = new HashMap<InetAddress, Client>();
+    private final Map<InetAddress, AtomicLong> clientThrottled = new HashMap<InetAddress, AtomicLong>();
+    private final AtomicReferenceArray<TokenBucket> units = new AtomicReferenceArray<TokenBucket>(UNIT_COUNT);
+    private final AtomicLongArray unitThrottled = new AtomicLongArray(UNIT_COUNT);
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+
+    /**
+     * Limits the requests from each client address
+     *
+     * @param rate  Sustained requests per second, 0 for no limit
+     * @param burst Requests allowed at once
+     */
+    public void setClientLimit(double rate, int burst) {
+        clientLimit = Limit.of(rate, burst);
+        synchronized (clients) {
+            for (Client client : clients.values()) {
+                client.bucket = clientLimit == null ? null : clientLimit.createBucket();
+            }
+        }
+    }
+
+    /**
+     * Limits the requests on each connection opened from now on
+     *
+     * @param rate  Sustained requests per second, 0 for no limit
+     * @param burst Requests allowed at once
+     */
+    public void setConnectionLimit(double rate, int burst) {
+        connectionLimit = Limit.of(rate, burst);
+    }
+
+    /**
+     * Limits the requests to each unit ID
+     *
+     * @param rate  Sustained requests per second, 0 for no limit
+     * @param burst Requests allowed at once
+     */
+    public void setUnitLimit(double rate, int burst) {
+        unitLimit = Limit.of(rate, burst);
+        for (int i = 0; i < UNIT_COUNT; i++) {
+            units.set(i, null);
+        }
+    }
+
+    /**
+     * Returns how long a request over the limit may wait for its turn
+     *
+     * @return Deadline in milliseconds
+     */
+    public long getQueueDeadline() {
+        return TimeUnit.NANOSECONDS.toMillis(queueDeadline);
+    }
+
+    /**
+     * Sets how long a request over the limit may wait for its turn before it
+     * is answered with a busy exception
+     *
+     * @param queueDeadline Deadline in milliseconds, 0 to answer straight away
+     */
+    public void setQueueDeadline(long queueDeadline) {
+        this.queueDeadline = TimeUnit.MILLISECONDS.toNanos(Math.max(0, queueDeadline));
+    }
+
+    /**
+     * Returns the number of requests answered with a busy exception
+     *
+     * @return Throttled request count
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * Returns the number of requests that waited for their turn and were served
+     *
+     * @return Delayed request count
+     */
+    public long getDelayedCount() {
+        return delayed.get();
+    }
+
+    /**
+     * Returns the number of requests from a client address answered with a
+     * busy exception
+     *
+     * @param address Client address
+     * @return Throttled request count
+     */
+    public long getThrottledCount(InetAddress address) {
+        synchronized (clients) {
+            AtomicLong count = clientThrottled.get(address);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    /**
+     * Returns the number of requests to a unit answered with a busy exception
+     *
+     * @param unitId Unit ID
+     * @return Throttled request count
+     */
+    public long getThrottledCount(int unitId) {
+        return unitThrottled.get(unitId & 0xff);
+    }
+
+    /**
+     * Returns the client addresses that have been throttled
+     *
+     * @return Throttled request count of each address
+     */
+    public Map<InetAddress, Long> getThrottledClients() {
+        Map<InetAddress, Long> result = new HashMap<InetAddress, Long>();
+        synchronized (clients) {
+            for (Map.Entry<InetAddress, AtomicLong> entry : clientThrottled.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Clears the throttle counters
+     */
+    public void resetCounters() {
+        synchronized (clients) {
+            clientThrottled.clear();
+        }
+        for (int i = 0; i < UNIT_COUNT; i++) {
+            unitThrottled.set(i, 0);
+        }
+        throttled.set(0);
+        delayed.set(0);
+    }
+
+    /**
+     * Starts limiting a new connection
+     *
+     * @param address Address of the client
+     * @return Session to admit the requests of the connection with
+     */
+    public Session open(InetAddress address) {
+        Client client;
+        synchronized (clients) {
+            client = clients.get(address);
+            if (client == null) {
+                client = new Client();
+                client.bucket = clientLimit == null ? null : clientLimit.createBucket();
+                clients.put(address, client);
+            }
+            client.connections++;
+        }
+        Limit limit = connectionLimit;
+        return new Session(address, client, limit == null ? null : limit.createBucket());
+    }
+
+    /**
+     * Returns the bucket of a unit, creating it on first use
+     */
+    private TokenBucket unitBucket(int unitId) {
+        Limit limit = unitLimit;
+        if (limit == null) {
+            return null;
+        }
+        TokenBucket bucket = units.get(unitId);
+        if (bucket == null) {
+            TokenBucket created = limit.createBucket();
+            bucket = units.compareAndSet(unitId, null, created) ? created : units.get(unitId);
+        }
+        return bucket;
+    }
+
+    /**
+     * The requests of one connection
+     */
+    public class Session {
+        private final InetAddress address;
+        private final Client client;
+        private final TokenBucket bucket;
+        private final AtomicLong sessionThrottled = new AtomicLong();
+        private boolean closed;
+
+        Session(InetAddress address, Client client, TokenBucket bucket) {
+            this.address = address;
+            this.client = client;
+            this.bucket = bucket;
+        }
+
+        /**
+         * Admits a request, waiting up to the queue deadline if it is over a limit
+         *
+         * @param request Request to admit
+         * @return Null if the request may be executed, otherwise the busy exception response to send
+         */
+        public ModbusResponse admit(ModbusRequest request) {
+            return admit(request.getUnitID()) ? null : request.createExceptionResponse(Modbus.SLAVE_BUSY_EXCEPTION);
+        }
+
+        /**
+         * Admits a request read in place, waiting up to the queue deadline if
+         * it is over a limit
+         *
+         * @param request View of the request to admit
+         * @return Null if the request may be executed, otherwise the busy exception response to send
+         */
+        public ModbusResponse admit(RequestView request) {
+            return admit(request.getUnitID()) ? null : request.createExceptionResponse(Modbus.SLAVE_BUSY_EXCEPTION);
+        }
+
+        /**
+         * Tries to take the tokens for a request to a unit without waiting.
+         * A request that gets a wait back should ask again once it has
+         * passed, with the same start time and retry set; it is counted as
+         * throttled when the tokens cannot come before the queue deadline.
+         *
+         * @param unitId Unit ID of the request
+         * @param since  {@link System#nanoTime()} when the request first asked
+         * @param retry  True if the request has asked before
+         * @return 0 if the request may be executed, -1 if it must be answered
+         * with a busy exception, otherwise the time to wait in nanoseconds
+         */
+        public long tryAdmit(int unitId, long since, boolean retry) {
+            unitId &= 0xff;
+            long wait = acquire(client.bucket, bucket, unitBucket(unitId));
+            if (wait == 0) {
+                if (retry) {
+                    delayed.incrementAndGet();
+                }
+                return 0;
+            }
+            if (System.nanoTime() + wait - (since + queueDeadline) > 0) {
+                throttle(unitId);
+                return -1;
+            }
+            return wait;
+        }
+
+        /**
+         * Takes the tokens for a request to a unit, waiting for them on the
+         * calling thread up to the deadline
+         *
+         * @param unitId Unit ID of the request
+         * @return True if the request may be executed
+         */
+        private boolean admit(int unitId) {
+            long since = System.nanoTime();
+            boolean retry = false;
+            while (true) {
+                long wait = tryAdmit(unitId, since, retry);
+                if (wait <= 0) {
+                    return wait == 0;
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    throttle(unitId & 0xff);
+                    return false;
+                }
+                retry = true;
+                LockSupport.parkNanos(wait);
+            }
+        }
+
+        /**
+         * Counts a request answered with a busy exception
+         */
+        private void throttle(int unitId) {
+            throttled.incrementAndGet();
+            sessionThrottled.incrementAndGet();
+            unitThrottled.incrementAndGet(unitId);
+            synchronized (clients) {
+                AtomicLong count = clientThrottled.get(address);
+                if (count == null) {
+                    count = new AtomicLong();
+                    clientThrottled.put(address, count);
+                }
+                count.incrementAndGet();
+            }
+        }
+
+        /**
+         * Returns the number of requests of this connection answered with a
+         * busy exception
+         *
+         * @return Throttled request count
+         */
+        public long getThrottledCount() {
+            return sessionThrottled.get();
+        }
+
+        /**
+         * Ends the session when the connection closes
+         */
+        public void close() {
+            synchronized (clients) {
+                if (!closed) {
+                    closed = true;
+                    if (--client.connections == 0) {
+                        clients.remove(address);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a token from each bucket that applies, or none if one of them is
+     * empty.  Called for every request, so it takes the buckets one by one
+     * rather than in an array.
+     *
+     * @param client     Bucket of the client address, null if not limited
+     * @param connection Bucket of the connection, null if not limited
+     * @param unit       Bucket of the unit, null if not limited
+     * @return 0 if the tokens were taken, otherwise the time to wait in nanoseconds
+     */
+    private static long acquire(TokenBucket client, TokenBucket connection, TokenBucket unit) {
+        long wait = client != null ? client.tryAcquire() : 0;
+        if (wait > 0) {
+            return wait;
+        }
+        wait = connection != null ? connection.tryAcquire() : 0;
+        if (wait > 0) {
+            refund(client);
+            return wait;
+        }
+        wait = unit != null ? unit.tryAcquire() : 0;
+        if (wait > 0) {
+            refund(client);
+            refund(connection);
+            return wait;
+        }
+        return 0;
+    }
+
+    /**
+     * Gives back a token taken from a bucket that applies
+     */
+    private static void refund(TokenBucket bucket) {
+        if (bucket != null) {
+            bucket.refund();
+        }
+    }
+
+    /**
+     * The connections from one client address and their shared bucket
+     */
+    private static class Client {
+        volatile TokenBucket bucket;
+        int connections;
+    }
+
+    /**
+     * A configured rate and burst
+     */
+    private static class Limit {
+        final double rate;
+        final int burst;
+
+        private Limit(double rate, int burst) {
+            this.rate = rate;
+            this.burst = burst;
+        }
+
+        static Limit of(double rate, int burst) {
+            if (rate <= 0) {
+                return null;
+            }
+            if (burst < 1) {
+                throw new IllegalArgumentException("Burst must be at least 1");
+            }
+            return new Limit(rate, burst);
+        }
+
+        TokenBucket createBucket() {
+            return new TokenBucket(rate, burst);
+        }
+    }
+}
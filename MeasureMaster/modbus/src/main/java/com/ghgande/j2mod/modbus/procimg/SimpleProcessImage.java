@@ -31,7 +31,7 @@ import java.util.Vector;
  * @author Steve O'Hara (4NG)
  * @version 2.0 (March 2016)
  */
-public class SimpleProcessImage implements ProcessImageImplementation {
+public class SimpleProcessImage implements ProcessImageImplementation, UpdatableProcessImage {
 
     // instance attributes
     protected final Vector<DigitalIn> digitalIns = new Vector<DigitalIn>();
@@ -42,6 +42,8 @@ public class SimpleProcessImage implements ProcessImageImplementation {
     protected final Vector<FIFO> fifos = new Vector<FIFO>();
     protected boolean locked = false;
     protected int unitID = 0;
+    private int sequenceRef = -1;
+    private int updateDepth = 0;
 
     /**
      * Constructs a new <tt>SimpleProcessImage</tt> instance.
@@ -167,6 +169,9 @@ public class SimpleProcessImage implements ProcessImageImplementation {
         for (int i = 0; i < iregs.length; i++) {
             iregs[i] = getInputRegister(ref + i);
         }
+        if (count > 0) {
+            checkWholeGroups(iregs[0], iregs[count - 1]);
+        }
 
         return iregs;
     }
@@ -198,6 +203,9 @@ public class SimpleProcessImage implements ProcessImageImplementation {
             for (int i = 0; i < iregs.length; i++) {
                 iregs[i] = getRegister(ref + i);
             }
+            if (count > 0) {
+                checkWholeGroups(iregs[0], iregs[count - 1]);
+            }
             return iregs;
         }
     }
@@ -286,6 +294,77 @@ public class SimpleProcessImage implements ProcessImageImplementation {
         return fifos.size();
     }
 
+    /**
+     * Checks that a range of registers does not start or end part way
+     * through a group of {@link GroupedRegister}s
+     *
+     * @param first First register of the range
+     * @param last  Last register of the range
+     * @throws IllegalAddressException if the range covers part of a group
+     */
+    public static void checkWholeGroups(InputRegister first, InputRegister last) throws IllegalAddressException {
+        if (first instanceof GroupedRegister && ((GroupedRegister) first).getGroupIndex() != 0) {
+            throw new IllegalAddressException();
+        }
+        if (last instanceof GroupedRegister) {
+            GroupedRegister grouped = (GroupedRegister) last;
+            if (grouped.getGroupIndex() != grouped.getGroupSize() - 1) {
+                throw new IllegalAddressException();
+            }
+        }
+    }
+
+    /**
+     * Designates a holding register as the sequence register of this image.
+     * <p>
+     * The register is maintained as a sequence lock: it is incremented to an
+     * odd value when an update starts and to the next even value when the
+     * update completes.  A master that reads the same even value before and
+     * after reading a block of registers knows that the block was not
+     * modified in between.
+     *
+     * @param ref Reference of an existing holding register or -1 to disable
+     * @throws IllegalAddressException if the register does not exist
+     */
+    public synchronized void setSequenceRegister(int ref) throws IllegalAddressException {
+        if (ref >= 0) {
+            getRegister(ref);
+        }
+        sequenceRef = ref;
+        updateDepth = 0;
+    }
+
+    /**
+     * Returns the reference of the sequence register
+     *
+     * @return Reference of the holding register or -1 if there isn't one
+     */
+    public synchronized int getSequenceRegister() {
+        return sequenceRef;
+    }
+
+    @Override
+    public synchronized void beginUpdate() {
+        if (sequenceRef >= 0 && updateDepth++ == 0) {
+            incrementSequence();
+        }
+    }
+
+    @Override
+    public synchronized void endUpdate() {
+        if (sequenceRef >= 0 && updateDepth > 0 && --updateDepth == 0) {
+            incrementSequence();
+        }
+    }
+
+    /**
+     * Increments the sequence register, wrapping at 16 bits
+     */
+    private void incrementSequence() {
+        Register register = getRegister(sequenceRef);
+        register.setValue((register.getValue() + 1) & 0xffff);
+    }
+
     @Override
     public void handleMessage() {
         if(handleBackListener != null){
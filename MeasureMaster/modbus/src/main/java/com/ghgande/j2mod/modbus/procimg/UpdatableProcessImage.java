@@ -0,0 +1,41 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+/**
+ * Optional interface of a <tt>ProcessImage</tt> that wants to know when its
+ * coils or registers are being modified.
+ * <p>
+ * The write requests of the slave bracket their changes to an image that
+ * implements this interface with {@link #beginUpdate()} and
+ * {@link #endUpdate()}.  Application code that updates several related
+ * values should do the same so that masters can detect that the values
+ * were changing while they were read.
+ */
+public interface UpdatableProcessImage extends ProcessImage {
+
+    /**
+     * Called before any coils or registers of this <tt>ProcessImage</tt>
+     * are modified.
+     */
+    void beginUpdate();
+
+    /**
+     * Called once the coils or registers of this <tt>ProcessImage</tt> have
+     * been modified.
+     */
+    void endUpdate();
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+import com.ghgande.j2mod.modbus.util.HashedTimerWheel;
+
+/**
+ * A limit alarm on a single input evaluated by an {@link AlarmEngine}.
+ * <p>
+ * The input is identified by the index used in the change sets the engine
+ * receives - the tag index for a {@link TagDatabase} or the register address
+ * for a {@link RegisterDiff}.
+ * <ul>
+ * <li>{@link Type#HIGH} raises when the value is above the limit and clears
+ * when it falls to the limit less the hysteresis</li>
+ * <li>{@link Type#LOW} raises when the value is below the limit and clears
+ * when it rises to the limit plus the hysteresis</li>
+ * <li>{@link Type#RATE} raises when the value changes faster than the limit
+ * (units per second, either direction) and clears when the rate falls to the
+ * limit less the hysteresis</li>
+ * </ul>
+ * With an on or off delay the condition has to hold for that long before the
+ * alarm is raised or cleared.
+ */
+public class Alarm {
+
+    /**
+     * The condition an alarm checks
+     */
+    public enum Type {
+        HIGH, LOW, RATE
+    }
+
+    private final String name;
+    private final int input;
+    private final Type type;
+    private final double limit;
+    private double hysteresis;
+    private long onDelay;
+    private long offDelay;
+
+    // Evaluation state, guarded by the engine
+    volatile boolean active;
+    boolean added;
+    double value = Double.NaN;
+    double lastValue = Double.NaN;
+    long lastTime;
+    double rate;
+    int generation;
+    HashedTimerWheel.Timeout pending;
+    HashedTimerWheel.Timeout quiet;
+
+    /**
+     * Creates an alarm on a tag
+     *
+     * @param name  Name of the alarm
+     * @param tag   Tag to watch
+     * @param type  Condition
+     * @param limit Limit
+     */
+    public Alarm(String name, Tag tag, Type type, double limit) {
+        this(name, tag.getIndex(), type, limit);
+        if (tag.getIndex() < 0) {
+            throw new IllegalArgumentException("Tag " + tag.getName() + " has not been added to a database");
+        }
+    }
+
+    /**
+     * Creates an alarm on an input
+     *
+     * @param name  Name of the alarm
+     * @param input Tag index or register address
+     * @param type  Condition
+     * @param limit Limit
+     */
+    public Alarm(String name, int input, Type type, double limit) {
+        this.name = name;
+        this.input = input;
+        this.type = type;
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the name of the alarm
+     *
+     * @return Name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the tag index or register address watched
+     *
+     * @return Input index
+     */
+    public int getInput() {
+        return input;
+    }
+
+    /**
+     * Returns the condition checked
+     *
+     * @return Type
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the limit
+     *
+     * @return Limit
+     */
+    public double getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns the distance back inside the limit needed to clear the alarm
+     *
+     * @return Hysteresis
+     */
+    public double getHysteresis() {
+        return hysteresis;
+    }
+
+    /**
+     * Sets the distance back inside the limit needed to clear the alarm.
+     * Must be set before the alarm is added to an engine.
+     *
+     * @param hysteresis Hysteresis
+     * @return This alarm
+     */
+    public Alarm setHysteresis(double hysteresis) {
+        this.hysteresis = Math.abs(hysteresis);
+        return this;
+    }
+
+    /**
+     * Returns the time the condition must hold before the alarm is raised
+     *
+     * @return Delay in milliseconds
+     */
+    public long getOnDelay() {
+        return onDelay;
+    }
+
+    /**
+     * Sets the time the condition must hold before the alarm is raised.
+     * Must be set before the alarm is added to an engine.
+     *
+     * @param onDelay Delay in milliseconds
+     * @return This alarm
+     */
+    public Alarm setOnDelay(long onDelay) {
+        this.onDelay = Math.max(0, onDelay);
+        return this;
+    }
+
+    /**
+     * Returns the time the clear condition must hold before the alarm is cleared
+     *
+     * @return Delay in milliseconds
+     */
+    public long getOffDelay() {
+        return offDelay;
+    }
+
+    /**
+     * Sets the time the clear condition must hold before the alarm is cleared.
+     * Must be set before the alarm is added to an engine.
+     *
+     * @param offDelay Delay in milliseconds
+     * @return This alarm
+     */
+    public Alarm setOffDelay(long offDelay) {
+        this.offDelay = Math.max(0, offDelay);
+        return this;
+    }
+
+    /**
+     * Returns true if the alarm is raised
+     *
+     * @return True if active
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Works out the state the alarm should be in for a new value
+     *
+     * @param value     New value
+     * @param timestamp Time of the value
+     * @return True if the alarm condition holds
+     */
+    boolean evaluate(double value, long timestamp) {
+        this.value = value;
+        double measure = value;
+        if (type == Type.RATE) {
+            if (!Double.isNaN(lastValue) && timestamp > lastTime) {
+                rate = Math.abs(value - lastValue) * 1000.0 / (timestamp - lastTime);
+            }
+            lastValue = value;
+            lastTime = timestamp;
+            measure = rate;
+        }
+        switch (type) {
+            case LOW:
+                return active ? measure < limit + hysteresis : measure < limit;
+            default:
+                return active ? measure > limit - hysteresis : measure > limit;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s %s", name, type, limit);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+import java.util.Arrays;
+
+/**
+ * A compact list of the values that changed in one update, held in
+ * primitive arrays.
+ * <p>
+ * For a {@link TagDatabase} the index of each entry is the tag index; for a
+ * {@link RegisterDiff} it is the register address.  Change sets are reused by
+ * their producer, so a consumer must copy anything it needs to keep before
+ * returning from the callback it was given the set in.
+ */
+public class ChangeSet {
+
+    int size;
+    int[] indexes;
+    double[] values;
+    double[] previous;
+    long timestamp;
+
+    /**
+     * Creates an empty change set
+     *
+     * @param capacity Initial number of entries
+     */
+    public ChangeSet(int capacity) {
+        indexes = new int[capacity];
+        values = new double[capacity];
+        previous = new double[capacity];
+    }
+
+    /**
+     * Returns the number of changes
+     *
+     * @return Number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if nothing changed
+     *
+     * @return True if empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the tag index or register address of an entry
+     *
+     * @param i Entry number
+     * @return Index
+     */
+    public int getIndex(int i) {
+        return indexes[i];
+    }
+
+    /**
+     * Returns the new value of an entry
+     *
+     * @param i Entry number
+     * @return New value
+     */
+    public double getValue(int i) {
+        return values[i];
+    }
+
+    /**
+     * Returns the value last reported for an entry
+     *
+     * @param i Entry number
+     * @return Previous value, <tt>NaN</tt> if none had been reported
+     */
+    public double getPrevious(int i) {
+        return previous[i];
+    }
+
+    /**
+     * Returns the time of the update
+     *
+     * @return Time in milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Empties the set ready for the next update
+     *
+     * @param timestamp Time of the update
+     */
+    void reset(long timestamp) {
+        size = 0;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Appends an entry.  The caller must have ensured there is room.
+     */
+    void add(int index, double value, double previousValue) {
+        indexes[size] = index;
+        values[size] = value;
+        previous[size] = previousValue;
+        size++;
+    }
+
+    /**
+     * Grows the arrays to hold at least the given number of entries
+     *
+     * @param capacity Number of entries
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > indexes.length) {
+            int length = Math.max(capacity, indexes.length * 2);
+            indexes = Arrays.copyOf(indexes, length);
+            values = Arrays.copyOf(values, length);
+            previous = Arrays.copyOf(previous, length);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                text.append(", ");
+            }
+            text.append(indexes[i]).append('=').append(values[i]);
+        }
+        return text.append(']').toString();
+    }
+}
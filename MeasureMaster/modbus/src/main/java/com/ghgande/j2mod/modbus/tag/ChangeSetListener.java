@@ -0,0 +1,30 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+/**
+ * Interface implemented by consumers of report-by-exception updates
+ */
+public interface ChangeSetListener {
+
+    /**
+     * Called on the polling thread once per update that produced at least one change.
+     * The change set is reused and is only valid for the duration of the call.
+     *
+     * @param changes Values that moved outside their deadband
+     */
+    void changed(ChangeSet changes);
+}
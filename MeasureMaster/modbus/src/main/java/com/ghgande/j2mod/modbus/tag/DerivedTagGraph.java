@@ -0,0 +1,256 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps virtual tags of a {@link TagDatabase} up to date from
+ * {@link Expression}s over other tags.
+ * <p>
+ * Each derived tag is a node of a dependency graph.  An expression can only
+ * refer to tags that already exist, so the order nodes are added in is a
+ * topological order and a node always comes after every node it reads.  The
+ * graph listens to the change sets of the database; the nodes reading a
+ * reported tag are marked dirty and one pass over the nodes in order
+ * evaluates just the dirty ones, marking the nodes that read a result that
+ * changed as it goes.  Values, dirty flags, the evaluation stack and the
+ * result buffer are all preallocated, so an update allocates nothing.
+ * <p>
+ * The results of a pass are written to the database with
+ * {@link TagDatabase#setValues(Tag[], double[], int)}, so derived tags are
+ * read, reported, deadbanded and alarmed like any polled tag.  A derived
+ * value is <tt>NaN</tt> until all of its inputs have a value.
+ */
+public class DerivedTagGraph implements ChangeSetListener {
+
+    private final TagDatabase database;
+
+    // Nodes in topological order
+    private Tag[] outputs = new Tag[0];
+    private Expression[] expressions = new Expression[0];
+    private boolean[] dirty = new boolean[0];
+    private int count;
+
+    // Node positions reading each tag, indexed by tag
+    private int[][] readers = new int[0][];
+
+    // Last known value of each tag, indexed by tag
+    private double[] values = new double[0];
+
+    private double[] stack = new double[1];
+    private Tag[] resultTags = new Tag[0];
+    private double[] resultValues = new double[0];
+    private boolean evaluating;
+    private long evaluations;
+
+    /**
+     * Creates a graph and subscribes it to the change sets of the database
+     *
+     * @param database Database holding the source and derived tags
+     */
+    public DerivedTagGraph(TagDatabase database) {
+        this.database = database;
+        database.addChangeSetListener(this);
+    }
+
+    /**
+     * Adds a derived tag, creating a virtual tag to hold its value, and
+     * computes its first value
+     *
+     * @param name       Name of the new virtual tag
+     * @param expression Expression over existing tags
+     * @return The virtual tag
+     * @throws IllegalArgumentException if the expression is malformed or the name is in use
+     */
+    public Tag addDerivedTag(String name, String expression) {
+        synchronized (database.getPollLock()) {
+            synchronized (this) {
+                return add(name, expression);
+            }
+        }
+    }
+
+    /**
+     * Adds a node.  The caller must hold the poll lock and then this lock.
+     *
+     * @param name       Name of the new virtual tag
+     * @param expression Expression over existing tags
+     * @return The virtual tag
+     */
+    private Tag add(String name, String expression) {
+        Expression compiled = Expression.compile(expression, database);
+        Tag tag = database.addVirtualTag(name);
+        int node = count++;
+        if (node == outputs.length) {
+            int capacity = Math.max(8, node * 2);
+            outputs = Arrays.copyOf(outputs, capacity);
+            expressions = Arrays.copyOf(expressions, capacity);
+            dirty = Arrays.copyOf(dirty, capacity);
+            resultTags = new Tag[capacity];
+            resultValues = new double[capacity];
+        }
+        outputs[node] = tag;
+        expressions[node] = compiled;
+        stack = compiled.getStackSize() > stack.length ? new double[compiled.getStackSize()] : stack;
+
+        int tagCount = database.getTagCount();
+        if (tagCount > values.length) {
+            int oldLength = values.length;
+            values = Arrays.copyOf(values, Math.max(tagCount, oldLength * 2));
+            Arrays.fill(values, oldLength, values.length, Double.NaN);
+            readers = Arrays.copyOf(readers, values.length);
+        }
+        for (int i = 0; i < compiled.inputCount(); i++) {
+            int input = compiled.input(i);
+            values[input] = database.getValue(input);
+            int[] list = readers[input];
+            if (list == null) {
+                list = new int[]{node};
+            }
+            else {
+                list = Arrays.copyOf(list, list.length + 1);
+                list[list.length - 1] = node;
+            }
+            readers[input] = list;
+        }
+        dirty[node] = true;
+        recompute(node);
+        return tag;
+    }
+
+    /**
+     * Returns the derived tags in evaluation order
+     *
+     * @return List of virtual tags
+     */
+    public synchronized List<Tag> getDerivedTags() {
+        return new ArrayList<Tag>(Arrays.asList(outputs).subList(0, count));
+    }
+
+    /**
+     * Returns the expression of a derived tag
+     *
+     * @param tag Derived tag
+     * @return Expression or null if the tag is not derived by this graph
+     */
+    public synchronized Expression getExpression(Tag tag) {
+        for (int i = 0; i < count; i++) {
+            if (outputs[i] == tag) {
+                return expressions[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of node evaluations made
+     *
+     * @return Evaluation count
+     */
+    public synchronized long getEvaluationCount() {
+        return evaluations;
+    }
+
+    /**
+     * Re-reads every input from the database and re-evaluates every node
+     *
+     * @return Number of derived tags reported
+     */
+    public int recomputeAll() {
+        synchronized (database.getPollLock()) {
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    Expression expression = expressions[i];
+                    for (int j = 0; j < expression.inputCount(); j++) {
+                        int input = expression.input(j);
+                        values[input] = database.getValue(input);
+                    }
+                    dirty[i] = true;
+                }
+                return recompute(0);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void changed(ChangeSet changes) {
+        // Ignore the echo of our own results, they have already been propagated
+        if (evaluating) {
+            return;
+        }
+        int first = count;
+        int[][] index = readers;
+        for (int i = 0; i < changes.size; i++) {
+            int input = changes.indexes[i];
+            if (input < index.length && index[input] != null) {
+                values[input] = changes.values[i];
+                for (int node : index[input]) {
+                    dirty[node] = true;
+                    first = Math.min(first, node);
+                }
+            }
+        }
+        if (first < count) {
+            recompute(first);
+        }
+    }
+
+    /**
+     * Evaluates the dirty nodes from a position onwards in topological order
+     * and writes the results that changed to the database.  The caller must
+     * hold the poll lock and then this lock, as the polling thread does.
+     *
+     * @param first First node that may be dirty
+     * @return Number of derived tags reported
+     */
+    private int recompute(int first) {
+        int results = 0;
+        for (int node = first; node < count; node++) {
+            if (!dirty[node]) {
+                continue;
+            }
+            dirty[node] = false;
+            evaluations++;
+            double value = expressions[node].evaluate(values, stack);
+            int output = outputs[node].getIndex();
+            if (Double.doubleToLongBits(value) == Double.doubleToLongBits(values[output])) {
+                continue;
+            }
+            values[output] = value;
+            resultTags[results] = outputs[node];
+            resultValues[results++] = value;
+            int[] list = output < readers.length ? readers[output] : null;
+            if (list != null) {
+                for (int reader : list) {
+                    dirty[reader] = true;
+                }
+            }
+        }
+        if (results == 0) {
+            return 0;
+        }
+        evaluating = true;
+        try {
+            return database.setValues(resultTags, resultValues, results);
+        }
+        finally {
+            evaluating = false;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+import java.util.Arrays;
+
+/**
+ * An arithmetic expression over tags compiled to a postfix program.
+ * <p>
+ * The syntax is the usual infix notation with <tt>+ - * /</tt>, unary minus,
+ * parentheses, numbers and the functions <tt>abs</tt>, <tt>sqrt</tt>,
+ * <tt>min</tt>, <tt>max</tt>, <tt>sum</tt> and <tt>avg</tt>, the last four
+ * taking any number of arguments.  Tags are referred to by name; a name that
+ * is not a plain identifier (letters, digits, <tt>.</tt> and <tt>_</tt>) is
+ * written in braces, e.g. <tt>{Flow-1} * 0.5 + max(T1, T2)</tt>.
+ * <p>
+ * Each instruction is a single int holding the opcode in the low byte and the
+ * operand - a tag index, constant index or argument count - above it, and the
+ * stack depth is known at compile time, so evaluation allocates nothing.
+ */
+public class Expression {
+
+    private static final int PUSH_CONST = 0;
+    private static final int PUSH_TAG = 1;
+    private static final int ADD = 2;
+    private static final int SUB = 3;
+    private static final int MUL = 4;
+    private static final int DIV = 5;
+    private static final int NEG = 6;
+    private static final int ABS = 7;
+    private static final int SQRT = 8;
+    private static final int MIN = 9;
+    private static final int MAX = 10;
+    private static final int SUM = 11;
+    private static final int AVG = 12;
+
+    private static final String[] FUNCTIONS = {"abs", "sqrt", "min", "max", "sum", "avg"};
+    private static final int[] FUNCTION_OPS = {ABS, SQRT, MIN, MAX, SUM, AVG};
+
+    private final String text;
+    private final int[] program;
+    private final double[] constants;
+    private final int[] inputs;
+    private final int stackSize;
+
+    private Expression(String text, int[] program, double[] constants, int[] inputs, int stackSize) {
+        this.text = text;
+        this.program = program;
+        this.constants = constants;
+        this.inputs = inputs;
+        this.stackSize = stackSize;
+    }
+
+    /**
+     * Compiles an expression, resolving tag names against a database
+     *
+     * @param text     Expression
+     * @param database Database holding the tags referred to
+     * @return Compiled expression
+     * @throws IllegalArgumentException if the expression is malformed or refers to an unknown tag
+     */
+    public static Expression compile(String text, TagDatabase database) {
+        Compiler compiler = new Compiler(text, database);
+        compiler.expression();
+        compiler.skipSpace();
+        if (compiler.pos < text.length()) {
+            throw compiler.error("Unexpected '" + text.charAt(compiler.pos) + "'");
+        }
+        return new Expression(text, Arrays.copyOf(compiler.program, compiler.length),
+                Arrays.copyOf(compiler.constants, compiler.constantCount),
+                Arrays.copyOf(compiler.inputs, compiler.inputCount), Math.max(1, compiler.maxDepth));
+    }
+
+    /**
+     * Returns the source text
+     *
+     * @return Expression
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the indexes of the tags the expression reads, without duplicates
+     *
+     * @return Tag indexes
+     */
+    public int[] getInputs() {
+        return inputs.clone();
+    }
+
+    /**
+     * Returns the number of stack slots evaluation needs
+     *
+     * @return Stack size
+     */
+    public int getStackSize() {
+        return stackSize;
+    }
+
+    /**
+     * Number of inputs without copying
+     */
+    int inputCount() {
+        return inputs.length;
+    }
+
+    /**
+     * Input by position without copying
+     */
+    int input(int i) {
+        return inputs[i];
+    }
+
+    /**
+     * Evaluates the expression
+     *
+     * @param values Values indexed by tag
+     * @param stack  Scratch stack of at least {@link #getStackSize()} entries
+     * @return Result, <tt>NaN</tt> if any input used is <tt>NaN</tt>
+     */
+    public double evaluate(double[] values, double[] stack) {
+        int sp = 0;
+        for (int instruction : program) {
+            int operand = instruction >>> 8;
+            switch (instruction & 0xff) {
+                case PUSH_CONST:
+                    stack[sp++] = constants[operand];
+                    break;
+                case PUSH_TAG:
+                    stack[sp++] = values[operand];
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case NEG:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case ABS:
+                    stack[sp - 1] = Math.abs(stack[sp - 1]);
+                    break;
+                case SQRT:
+                    stack[sp - 1] = Math.sqrt(stack[sp - 1]);
+                    break;
+                case MIN:
+                case MAX:
+                case SUM:
+                case AVG:
+                    sp -= operand;
+                    stack[sp] = fold(instruction & 0xff, stack, sp, operand);
+                    sp++;
+                    break;
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Reduces the arguments of an n-ary function
+     */
+    private static double fold(int op, double[] stack, int start, int count) {
+        double result = stack[start];
+        for (int i = start + 1; i < start + count; i++) {
+            double value = stack[i];
+            if (op == MIN) {
+                result = Math.min(result, value);
+            }
+            else if (op == MAX) {
+                result = Math.max(result, value);
+            }
+            else {
+                result += value;
+            }
+        }
+        return op == AVG ? result / count : result;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * Recursive descent compiler emitting postfix code
+     */
+    private static class Compiler {
+        private final String text;
+        private final TagDatabase database;
+        int pos;
+        int[] program = new int[16];
+        int length;
+        double[] constants = new double[4];
+        int constantCount;
+        int[] inputs = new int[4];
+        int inputCount;
+        int depth;
+        int maxDepth;
+
+        Compiler(String text, TagDatabase database) {
+            this.text = text;
+            this.database = database;
+        }
+
+        void expression() {
+            term();
+            while (true) {
+                skipSpace();
+                if (accept('+')) {
+                    term();
+                    emit(ADD, 0, -1);
+                }
+                else if (accept('-')) {
+                    term();
+                    emit(SUB, 0, -1);
+                }
+                else {
+                    return;
+                }
+            }
+        }
+
+        void term() {
+            unary();
+            while (true) {
+                skipSpace();
+                if (accept('*')) {
+                    unary();
+                    emit(MUL, 0, -1);
+                }
+                else if (accept('/')) {
+                    unary();
+                    emit(DIV, 0, -1);
+                }
+                else {
+                    return;
+                }
+            }
+        }
+
+        void unary() {
+            skipSpace();
+            if (accept('-')) {
+                unary();
+                emit(NEG, 0, 0);
+            }
+            else if (accept('+')) {
+                unary();
+            }
+            else {
+                primary();
+            }
+        }
+
+        void primary() {
+            skipSpace();
+            if (pos >= text.length()) {
+                throw error("Unexpected end of expression");
+            }
+            char c = text.charAt(pos);
+            if (accept('(')) {
+                expression();
+                expect(')');
+            }
+            else if (accept('{')) {
+                int end = text.indexOf('}', pos);
+                if (end < 0) {
+                    throw error("Missing '}'");
+                }
+                tag(text.substring(pos, end).trim());
+                pos = end + 1;
+            }
+            else if (Character.isDigit(c) || c == '.') {
+                number();
+            }
+            else if (Character.isLetter(c) || c == '_') {
+                int start = pos;
+                while (pos < text.length() && isNameChar(text.charAt(pos))) {
+                    pos++;
+                }
+                String name = text.substring(start, pos);
+                skipSpace();
+                if (accept('(')) {
+                    function(name);
+                }
+                else {
+                    tag(name);
+                }
+            }
+            else {
+                throw error("Unexpected '" + c + "'");
+            }
+        }
+
+        void function(String name) {
+            int op = -1;
+            for (int i = 0; i < FUNCTIONS.length; i++) {
+                if (FUNCTIONS[i].equalsIgnoreCase(name)) {
+                    op = FUNCTION_OPS[i];
+                }
+            }
+            if (op < 0) {
+                throw error("Unknown function " + name);
+            }
+            int count = 0;
+            do {
+                expression();
+                count++;
+                skipSpace();
+            } while (accept(','));
+            expect(')');
+            if ((op == ABS || op == SQRT) && count != 1) {
+                throw error(name + " takes one argument");
+            }
+            if (op == ABS || op == SQRT) {
+                emit(op, 0, 0);
+            }
+            else {
+                emit(op, count, 1 - count);
+            }
+        }
+
+        void number() {
+            int start = pos;
+            while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                pos++;
+            }
+            if (pos < text.length() && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+                pos++;
+                if (pos < text.length() && (text.charAt(pos) == '+' || text.charAt(pos) == '-')) {
+                    pos++;
+                }
+                while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+            }
+            double value;
+            try {
+                value = Double.parseDouble(text.substring(start, pos));
+            }
+            catch (NumberFormatException e) {
+                pos = start;
+                throw error("Invalid number");
+            }
+            if (constantCount == constants.length) {
+                constants = Arrays.copyOf(constants, constantCount * 2);
+            }
+            constants[constantCount] = value;
+            emit(PUSH_CONST, constantCount++, 1);
+        }
+
+        void tag(String name) {
+            Tag tag = database.getTag(name);
+            if (tag == null) {
+                throw error("Unknown tag " + name);
+            }
+            int index = tag.getIndex();
+            boolean seen = false;
+            for (int i = 0; i < inputCount; i++) {
+                seen |= inputs[i] == index;
+            }
+            if (!seen) {
+                if (inputCount == inputs.length) {
+                    inputs = Arrays.copyOf(inputs, inputCount * 2);
+                }
+                inputs[inputCount++] = index;
+            }
+            emit(PUSH_TAG, index, 1);
+        }
+
+        void emit(int op, int operand, int stackChange) {
+            if (length == program.length) {
+                program = Arrays.copyOf(program, length * 2);
+            }
+            program[length++] = op | operand << 8;
+            depth += stackChange;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        boolean accept(char c) {
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) {
+            skipSpace();
+            if (!accept(c)) {
+                throw error("Expected '" + c + "'");
+            }
+        }
+
+        void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(String.format("%s at position %d of \"%s\"", message, pos, text));
+        }
+
+        private static boolean isNameChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '.' || c == '_';
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+import com.ghgande.j2mod.modbus.facade.RegisterMap.Table;
+
+import java.util.List;
+
+/**
+ * A contiguous range of a slave table read with a single request, together
+ * with the compiled plan for decoding the tags it contains.
+ * <p>
+ * The plan is a set of parallel primitive arrays with one entry per tag, so
+ * decoding is a single loop with no lookups, allocation or virtual calls.
+ * The raw items of each read are compared with those of the previous read
+ * first, so a block that hasn't changed is not decoded at all.
+ */
+public class PollBlock {
+
+    static final int FLAG_BYTE_SWAP = 0x100;
+    static final int FLAG_WORD_SWAP = 0x200;
+    static final int FLAG_PERCENT = 0x400;
+
+    private final int index;
+    private final int unitId;
+    private final Table table;
+    private final int ref;
+    private final int count;
+
+    // The raw items of the last read, one 16-bit word or bit per entry
+    final int[] words;
+
+    // The raw items last decoded
+    private final int[] decoded;
+    boolean primed;
+
+    // Decode plan
+    final int[] tags;
+    final int[] offsets;
+    final TagType[] types;
+    final int[] codes;
+    final double[] scales;
+    final double[] biases;
+    final double[] deadbands;
+
+    /**
+     * Compiles the block
+     *
+     * @param index   Index of the block within the database
+     * @param unitId  Unit ID
+     * @param table   Table
+     * @param ref     First address
+     * @param count   Number of items
+     * @param members Tags within the block
+     */
+    PollBlock(int index, int unitId, Table table, int ref, int count, List<Tag> members) {
+        this.index = index;
+        this.unitId = unitId;
+        this.table = table;
+        this.ref = ref;
+        this.count = count;
+        words = new int[count];
+        decoded = new int[count];
+        int size = members.size();
+        tags = new int[size];
+        offsets = new int[size];
+        types = new TagType[size];
+        codes = new int[size];
+        scales = new double[size];
+        biases = new double[size];
+        deadbands = new double[size];
+        for (int i = 0; i < size; i++) {
+            Tag tag = members.get(i);
+            tags[i] = tag.index;
+            offsets[i] = tag.getAddress() - ref;
+            types[i] = tag.getType();
+            codes[i] = (tag.isByteSwap() ? FLAG_BYTE_SWAP : 0) | (tag.isWordSwap() ? FLAG_WORD_SWAP : 0) |
+                       (tag.isDeadbandPercent() ? FLAG_PERCENT : 0);
+            scales[i] = tag.getScale();
+            biases[i] = tag.getOffset();
+            deadbands[i] = tag.getDeadband();
+        }
+    }
+
+    /**
+     * Returns the index of the block within the database
+     *
+     * @return Index
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the unit ID of the slave
+     *
+     * @return Unit ID
+     */
+    public int getUnitId() {
+        return unitId;
+    }
+
+    /**
+     * Returns the table read by the block
+     *
+     * @return Table
+     */
+    public Table getTable() {
+        return table;
+    }
+
+    /**
+     * Returns the first address read
+     *
+     * @return Address
+     */
+    public int getRef() {
+        return ref;
+    }
+
+    /**
+     * Returns the number of items read
+     *
+     * @return Item count
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of tags decoded from the block
+     *
+     * @return Tag count
+     */
+    public int getTagCount() {
+        return tags.length;
+    }
+
+    /**
+     * Returns true if the items differ from those last decoded, remembering them if so
+     *
+     * @return True if the block needs decoding
+     */
+    boolean isChanged() {
+        int[] w = words;
+        int[] d = decoded;
+        int i = 0;
+        if (primed) {
+            while (i < w.length && w[i] == d[i]) {
+                i++;
+            }
+            if (i == w.length) {
+                return false;
+            }
+        }
+        System.arraycopy(w, i, d, i, w.length - i);
+        return true;
+    }
+
+    /**
+     * Decodes every tag of the block from {@link #words} into the value array,
+     * adding the tags that moved outside their deadband to the change set
+     *
+     * @param values   Tag values indexed by tag
+     * @param valid    Tag validity indexed by tag
+     * @param reported Last reported values indexed by tag
+     * @param changes  Receives the tags that changed
+     */
+    void decode(double[] values, boolean[] valid, double[] reported, ChangeSet changes) {
+        int[] w = words;
+        for (int i = 0; i < tags.length; i++) {
+            int offset = offsets[i];
+            int code = codes[i];
+            double value;
+            switch (types[i]) {
+                case BOOL:
+                    value = w[offset] != 0 ? 1 : 0;
+                    break;
+                case INT16:
+                    value = (short)word(w, offset, code);
+                    break;
+                case UINT16:
+                    value = word(w, offset, code);
+                    break;
+                case INT32:
+                    value = int32(w, offset, code);
+                    break;
+                case UINT32:
+                    value = int32(w, offset, code) & 0xffffffffL;
+                    break;
+                case FLOAT32:
+                    value = Float.intBitsToFloat(int32(w, offset, code));
+                    break;
+                case INT64:
+                    value = int64(w, offset, code);
+                    break;
+                default:
+                    value = Double.longBitsToDouble(int64(w, offset, code));
+                    break;
+            }
+            value = value * scales[i] + biases[i];
+            int tag = tags[i];
+            values[tag] = value;
+            if (!valid[tag]) {
+                valid[tag] = true;
+                changes.add(tag, value, Double.NaN);
+                reported[tag] = value;
+            }
+            else if (isOutside(value, reported[tag], deadbands[i], (code & FLAG_PERCENT) != 0)) {
+                changes.add(tag, value, reported[tag]);
+                reported[tag] = value;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the value has moved outside the deadband around the last reported value
+     *
+     * @param value    New value
+     * @param reported Last reported value
+     * @param deadband Deadband, zero for any change
+     * @param percent  True if the deadband is a percentage of the reported value
+     * @return True if the change should be reported
+     */
+    static boolean isOutside(double value, double reported, double deadband, boolean percent) {
+        if (deadband > 0) {
+            double band = percent ? deadband * Math.abs(reported) / 100 : deadband;
+            if (Math.abs(value - reported) <= band) {
+                return false;
+            }
+        }
+        return Double.doubleToLongBits(value) != Double.doubleToLongBits(reported);
+    }
+
+    /**
+     * Returns a word with the bytes in big endian order
+     */
+    private static int word(int[] w, int offset, int code) {
+        int value = w[offset] & 0xffff;
+        return (code & FLAG_BYTE_SWAP) == 0 ? value : ((value & 0xff) << 8) | (value >>> 8);
+    }
+
+    /**
+     * Returns a 32-bit value from two words
+     */
+    private static int int32(int[] w, int offset, int code) {
+        if ((code & FLAG_WORD_SWAP) == 0) {
+            return (word(w, offset, code) << 16) | word(w, offset + 1, code);
+        }
+        return (word(w, offset + 1, code) << 16) | word(w, offset, code);
+    }
+
+    /**
+     * Returns a 64-bit value from four words
+     */
+    private static long int64(int[] w, int offset, int code) {
+        long value = 0;
+        if ((code & FLAG_WORD_SWAP) == 0) {
+            for (int i = 0; i < 4; i++) {
+                value = (value << 16) | word(w, offset + i, code);
+            }
+        }
+        else {
+            for (int i = 3; i >= 0; i--) {
+                value = (value << 16) | word(w, offset + i, code);
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+import com.ghgande.j2mod.modbus.facade.RegisterMap.Table;
+
+/**
+ * A named value held in a slave, or a virtual value set by the application.
+ * <p>
+ * Tags are normally created from a specification of the form
+ * <pre>
+ * name type [order] [scale n] [offset n] [deadband n[%]] @ unit id table address
+ * </pre>
+ * for example <tt>Boiler1.Pressure float32 CDAB scale 0.1 @ unit 3 HR 4100</tt>.
+ * <ul>
+ * <li><tt>type</tt> is one of the {@link TagType} names</li>
+ * <li><tt>order</tt> gives the byte order of the value with <tt>A</tt> as the
+ * most significant byte, e.g. <tt>ABCD</tt> (the default, big endian),
+ * <tt>CDAB</tt> (word swapped), <tt>BADC</tt> (byte swapped) or <tt>DCBA</tt></li>
+ * <li>the raw value is multiplied by <tt>scale</tt> and then <tt>offset</tt> is added</li>
+ * <li>changes are only reported once the value moves more than <tt>deadband</tt>
+ * from the value last reported, either in engineering units or, with a
+ * trailing <tt>%</tt>, as a percentage of the last reported value</li>
+ * <li><tt>table</tt> is <tt>HR</tt> (holding registers), <tt>IR</tt> (input
+ * registers), <tt>CO</tt> (coils) or <tt>DI</tt> (discrete inputs)</li>
+ * </ul>
+ * The value of a tag is held by the {@link TagDatabase} it belongs to.
+ */
+public class Tag {
+
+    private static final String BIG_ENDIAN = "ABCDEFGH";
+
+    private final String name;
+    private final TagType type;
+    private final boolean byteSwap;
+    private final boolean wordSwap;
+    private final double scale;
+    private final double offset;
+    private final int unitId;
+    private final Table table;
+    private final int address;
+    private volatile double deadband;
+    private volatile boolean deadbandPercent;
+
+    TagDatabase database;
+    int index = -1;
+    volatile TagListener[] listeners = new TagListener[0];
+
+    /**
+     * Creates a tag held in a slave
+     *
+     * @param name     Name of the tag
+     * @param type     Data type
+     * @param byteSwap True if the bytes of each word are swapped
+     * @param wordSwap True if the words of multi-word values are least significant first
+     * @param scale    Scale applied to the raw value
+     * @param offset   Offset added after scaling
+     * @param unitId   Unit ID of the slave
+     * @param table    Table holding the value
+     * @param address  Address of the first item
+     */
+    public Tag(String name, TagType type, boolean byteSwap, boolean wordSwap, double scale, double offset, int unitId, Table table, int address) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Tag name cannot be empty");
+        }
+        if ((table == Table.COILS || table == Table.DISCRETE_INPUTS) && type != TagType.BOOL) {
+            throw new IllegalArgumentException("Tag " + name + " in the " + table + " table must be bool");
+        }
+        this.name = name;
+        this.type = type;
+        this.byteSwap = byteSwap;
+        this.wordSwap = wordSwap;
+        this.scale = scale;
+        this.offset = offset;
+        this.unitId = unitId;
+        this.table = table;
+        this.address = address;
+    }
+
+    /**
+     * Creates a virtual tag whose value is set by the application
+     *
+     * @param name Name of the tag
+     */
+    public Tag(String name) {
+        this(name, TagType.FLOAT64, false, false, 1, 0, 0, null, 0);
+    }
+
+    /**
+     * Parses a tag specification
+     *
+     * @param spec Specification as described above
+     * @return Tag
+     * @throws IllegalArgumentException If the specification is invalid
+     */
+    public static Tag parse(String spec) {
+        String[] tokens = spec.trim().split("\\s+");
+        try {
+            String name = tokens[0];
+            TagType type = TagType.forKey(tokens[1]);
+            boolean byteSwap = false;
+            boolean wordSwap = false;
+            double scale = 1;
+            double offset = 0;
+            String deadband = null;
+            int i = 2;
+            while (!"@".equals(tokens[i])) {
+                String token = tokens[i++];
+                if ("scale".equalsIgnoreCase(token)) {
+                    scale = Double.parseDouble(tokens[i++]);
+                }
+                else if ("offset".equalsIgnoreCase(token)) {
+                    offset = Double.parseDouble(tokens[i++]);
+                }
+                else if ("deadband".equalsIgnoreCase(token)) {
+                    deadband = tokens[i++];
+                }
+                else {
+                    int order = parseOrder(token.toUpperCase(), Math.max(2, type.getWordCount() * 2));
+                    byteSwap = (order & 1) != 0;
+                    wordSwap = (order & 2) != 0;
+                }
+            }
+            i++;
+            if (!"unit".equalsIgnoreCase(tokens[i++])) {
+                throw new IllegalArgumentException("Expected 'unit' after '@'");
+            }
+            int unitId = Integer.parseInt(tokens[i++]);
+            Table table = parseTable(tokens[i++]);
+            int address = Integer.parseInt(tokens[i++]);
+            if (i != tokens.length) {
+                throw new IllegalArgumentException("Unexpected '" + tokens[i] + "'");
+            }
+            Tag tag = new Tag(name, type, byteSwap, wordSwap, scale, offset, unitId, table, address);
+            if (deadband != null) {
+                boolean percent = deadband.endsWith("%");
+                tag.setDeadband(Double.parseDouble(percent ? deadband.substring(0, deadband.length() - 1) : deadband), percent);
+            }
+            return tag;
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Incomplete tag specification '" + spec + "'");
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid tag specification '" + spec + "' - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Works out the byte order from its name
+     *
+     * @param order Order such as <tt>CDAB</tt>
+     * @param bytes Number of bytes in the value
+     * @return Bit 0 set for byte swap, bit 1 set for word swap
+     */
+    private static int parseOrder(String order, int bytes) {
+        String big = BIG_ENDIAN.substring(0, bytes);
+        for (int flags = 0; flags < 4; flags++) {
+            if (order.equals(orderName(big, (flags & 1) != 0, (flags & 2) != 0))) {
+                return flags;
+            }
+        }
+        throw new IllegalArgumentException("Unknown byte order " + order);
+    }
+
+    /**
+     * Returns the name of a byte order
+     *
+     * @param big      Big endian order name
+     * @param byteSwap True if bytes are swapped
+     * @param wordSwap True if words are reversed
+     * @return Order name
+     */
+    private static String orderName(String big, boolean byteSwap, boolean wordSwap) {
+        StringBuilder name = new StringBuilder();
+        int words = big.length() / 2;
+        for (int w = 0; w < words; w++) {
+            int word = wordSwap ? words - 1 - w : w;
+            char high = big.charAt(word * 2);
+            char low = big.charAt(word * 2 + 1);
+            name.append(byteSwap ? low : high).append(byteSwap ? high : low);
+        }
+        return name.toString();
+    }
+
+    /**
+     * Returns the table for the abbreviation used in specifications
+     *
+     * @param name Table abbreviation
+     * @return Table
+     */
+    private static Table parseTable(String name) {
+        if ("HR".equalsIgnoreCase(name)) {
+            return Table.HOLDING_REGISTERS;
+        }
+        else if ("IR".equalsIgnoreCase(name)) {
+            return Table.INPUT_REGISTERS;
+        }
+        else if ("CO".equalsIgnoreCase(name)) {
+            return Table.COILS;
+        }
+        else if ("DI".equalsIgnoreCase(name)) {
+            return Table.DISCRETE_INPUTS;
+        }
+        throw new IllegalArgumentException("Unknown table " + name);
+    }
+
+    /**
+     * Returns the abbreviation of a table used in specifications
+     *
+     * @param table Table
+     * @return Abbreviation
+     */
+    static String tableName(Table table) {
+        switch (table) {
+            case COILS:
+                return "CO";
+            case DISCRETE_INPUTS:
+                return "DI";
+            case INPUT_REGISTERS:
+                return "IR";
+            default:
+                return "HR";
+        }
+    }
+
+    /**
+     * Returns the name of the tag
+     *
+     * @return Name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the data type
+     *
+     * @return Type
+     */
+    public TagType getType() {
+        return type;
+    }
+
+    /**
+     * Returns true if the bytes of each word are swapped
+     *
+     * @return True if byte swapped
+     */
+    public boolean isByteSwap() {
+        return byteSwap;
+    }
+
+    /**
+     * Returns true if the least significant word comes first
+     *
+     * @return True if word swapped
+     */
+    public boolean isWordSwap() {
+        return wordSwap;
+    }
+
+    /**
+     * Returns the byte order name e.g. <tt>CDAB</tt>
+     *
+     * @return Byte order
+     */
+    public String getByteOrder() {
+        return orderName(BIG_ENDIAN.substring(0, Math.max(2, type.getWordCount() * 2)), byteSwap, wordSwap);
+    }
+
+    /**
+     * Returns the scale applied to the raw value
+     *
+     * @return Scale
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Returns the offset added to the scaled value
+     *
+     * @return Offset
+     */
+    public double getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the deadband applied before a change is reported
+     *
+     * @return Deadband, zero if every change is reported
+     */
+    public double getDeadband() {
+        return deadband;
+    }
+
+    /**
+     * Returns true if the deadband is a percentage of the last reported value
+     *
+     * @return True for a percentage deadband
+     */
+    public boolean isDeadbandPercent() {
+        return deadbandPercent;
+    }
+
+    /**
+     * Sets the deadband applied before a change is reported
+     *
+     * @param deadband Deadband, zero to report every change
+     * @param percent  True if the deadband is a percentage of the last reported value
+     */
+    public void setDeadband(double deadband, boolean percent) {
+        this.deadband = Math.abs(deadband);
+        this.deadbandPercent = percent;
+        TagDatabase db = database;
+        if (db != null && !isVirtual()) {
+            db.planChanged();
+        }
+    }
+
+    /**
+     * Returns the unit ID of the slave holding the tag
+     *
+     * @return Unit ID
+     */
+    public int getUnitId() {
+        return unitId;
+    }
+
+    /**
+     * Returns the table holding the tag
+     *
+     * @return Table or null for a virtual tag
+     */
+    public Table getTable() {
+        return table;
+    }
+
+    /**
+     * Returns the address of the first item of the tag
+     *
+     * @return Address
+     */
+    public int getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the number of table items the tag occupies
+     *
+     * @return Item count
+     */
+    public int getItemCount() {
+        return table == Table.COILS || table == Table.DISCRETE_INPUTS ? 1 : type.getWordCount();
+    }
+
+    /**
+     * Returns true if the value is set by the application rather than read from a slave
+     *
+     * @return True if virtual
+     */
+    public boolean isVirtual() {
+        return table == null;
+    }
+
+    /**
+     * Returns the index of the tag within its database
+     *
+     * @return Index or -1 if the tag hasn't been added to a database
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the current value of the tag
+     *
+     * @return Value or <tt>NaN</tt> if there is no valid value
+     */
+    public double getValue() {
+        return database == null ? Double.NaN : database.getValue(index);
+    }
+
+    /**
+     * Returns the time the value was last updated
+     *
+     * @return Time in milliseconds or 0 if never
+     */
+    public long getTimestamp() {
+        return database == null ? 0 : database.getTimestamp(index);
+    }
+
+    /**
+     * Returns true if the last poll of the tag succeeded
+     *
+     * @return True if the value is valid
+     */
+    public boolean isValid() {
+        return database != null && database.isValid(index);
+    }
+
+    /**
+     * Adds a listener that is called when the value changes
+     *
+     * @param listener Listener to add
+     */
+    public synchronized void addListener(TagListener listener) {
+        TagListener[] current = listeners;
+        TagListener[] updated = new TagListener[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = listener;
+        listeners = updated;
+    }
+
+    /**
+     * Removes a listener
+     *
+     * @param listener Listener to remove
+     */
+    public synchronized void removeListener(TagListener listener) {
+        TagListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                TagListener[] updated = new TagListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                listeners = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the specification of the tag in the form accepted by {@link #parse(String)}
+     *
+     * @return Specification
+     */
+    public String toSpec() {
+        if (isVirtual()) {
+            return name;
+        }
+        StringBuilder spec = new StringBuilder(name).append(' ').append(type.getKey());
+        if (byteSwap || wordSwap) {
+            spec.append(' ').append(getByteOrder());
+        }
+        if (scale != 1) {
+            spec.append(" scale ").append(scale);
+        }
+        if (offset != 0) {
+            spec.append(" offset ").append(offset);
+        }
+        if (deadband != 0) {
+            spec.append(" deadband ").append(deadband).append(deadbandPercent ? "%" : "");
+        }
+        return spec.append(" @ unit ").append(unitId).append(' ').append(tableName(table)).append(' ').append(address).toString();
+    }
+
+    @Override
+    public String toString() {
+        return toSpec();
+    }
+}
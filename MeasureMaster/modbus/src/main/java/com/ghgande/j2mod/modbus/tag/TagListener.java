@@ -0,0 +1,34 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+/**
+ * Interface implemented by objects that want to be told when the value of a
+ * tag changes
+ */
+public interface TagListener {
+
+    /**
+     * Called on the polling thread after the value of the tag has changed.
+     * It is not called when a poll returns the same value.
+     *
+     * @param tag       Tag that changed
+     * @param oldValue  Previous value, <tt>NaN</tt> if the tag had no valid value
+     * @param newValue  New value
+     * @param timestamp Time of the poll in milliseconds
+     */
+    void tagChanged(Tag tag, double oldValue, double newValue, long timestamp);
+}
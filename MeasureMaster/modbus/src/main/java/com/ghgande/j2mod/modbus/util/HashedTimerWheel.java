@@ -0,0 +1,395 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.util;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hashed timing wheel for managing large numbers of short timers such as
+ * request deadlines, retry delays and poll ticks.
+ * <p>
+ * Time is divided into ticks and each tick maps onto one of a fixed number of
+ * buckets.  A timer is placed in the bucket of the tick it expires on along
+ * with the number of whole revolutions of the wheel still to go, so scheduling
+ * and cancellation are O(1) regardless of how many timers are pending.  The
+ * price is resolution - a timer fires on the first tick at or after its
+ * deadline.
+ * <p>
+ * New and cancelled timers are handed to the worker thread through lock free
+ * queues so that the calling threads never contend with it.  The tasks are run
+ * on the worker thread and must therefore be short and must not block; longer
+ * work should be passed on to another thread.
+ */
+public class HashedTimerWheel {
+
+    private static final String TAG = "HashedTimerWheel";
+
+    /**
+     * Default tick duration in milliseconds (=<tt>10</tt>)
+     */
+    public static final long DEFAULT_TICK = 10;
+
+    /**
+     * Default number of buckets in the wheel (=<tt>512</tt>)
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final String name;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> additions = new ConcurrentLinkedQueue<Timeout>();
+    private final ConcurrentLinkedQueue<Timeout> cancellations = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private volatile boolean running;
+    private volatile long startTime;
+    private Thread worker;
+    private long tick;
+
+    /**
+     * Creates a wheel with the default tick and size
+     *
+     * @param name Name to give the worker thread
+     */
+    public HashedTimerWheel(String name) {
+        this(name, DEFAULT_TICK, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Creates a wheel
+     *
+     * @param name      Name to give the worker thread
+     * @param tick      Duration of a tick
+     * @param unit      Unit of the tick duration
+     * @param wheelSize Number of buckets, rounded up to a power of two
+     */
+    public HashedTimerWheel(String name, long tick, TimeUnit unit, int wheelSize) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("Tick must be greater than 0");
+        }
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("Wheel size must be between 1 and 2^30");
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.name = name;
+        this.tickNanos = unit.toNanos(tick);
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Schedules a task to run once after the delay.
+     * The worker thread is started on first use.
+     *
+     * @param task  Task to run on the worker thread
+     * @param delay Delay before the task is run
+     * @param unit  Unit of the delay
+     * @return Handle that can be used to cancel the timer
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw new IllegalArgumentException("Task cannot be null");
+        }
+        start();
+        Timeout timeout = new Timeout(this, task, System.nanoTime() + unit.toNanos(Math.max(0, delay)) - startTime);
+        pending.incrementAndGet();
+        additions.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Returns the number of timers that have been scheduled and have neither
+     * fired nor been cancelled
+     *
+     * @return Number of pending timers
+     */
+    public long getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Returns the number of timers that have fired since the wheel was created
+     *
+     * @return Number of expired timers
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    /**
+     * Returns true if the worker thread is running
+     *
+     * @return True if running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops the worker thread.  Timers that have not yet fired are discarded.
+     */
+    public synchronized void stop() {
+        if (running) {
+            running = false;
+            worker.interrupt();
+            try {
+                worker.join(1000);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            worker = null;
+            additions.clear();
+            cancellations.clear();
+            for (Bucket bucket : wheel) {
+                bucket.clear();
+            }
+            pending.set(0);
+        }
+    }
+
+    /**
+     * Starts the worker thread if it is not already running
+     */
+    private synchronized void start() {
+        if (!running) {
+            startTime = System.nanoTime();
+            tick = 0;
+            running = true;
+            worker = new Thread(new Worker());
+            worker.setName(name);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * The worker advances the wheel one tick at a time, moving new timers
+     * into their buckets and expiring the timers of the current bucket
+     */
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            Log.d(TAG, "Started " + name);
+            while (running) {
+                long deadline = tickNanos * (tick + 1);
+                long sleep = deadline - (System.nanoTime() - startTime);
+                if (sleep > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleep);
+                    }
+                    catch (InterruptedException e) {
+                        if (!running) {
+                            break;
+                        }
+                    }
+                    continue;
+                }
+                removeCancelled();
+                transferAdditions();
+                wheel[(int)(tick & mask)].expire();
+                tick++;
+            }
+            Log.d(TAG, "Stopped " + name);
+        }
+
+        /**
+         * Unlinks the cancelled timers from their buckets
+         */
+        private void removeCancelled() {
+            Timeout timeout;
+            while ((timeout = cancellations.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+        }
+
+        /**
+         * Places newly scheduled timers in their buckets
+         */
+        private void transferAdditions() {
+            Timeout timeout;
+            while ((timeout = additions.poll()) != null) {
+                if (timeout.state != Timeout.ST_INIT) {
+                    continue;
+                }
+                long ticks = timeout.deadline / tickNanos;
+                timeout.remainingRounds = (ticks - tick) / wheel.length;
+
+                // Timers already overdue go into the current bucket
+                wheel[(int)(Math.max(ticks, tick) & mask)].add(timeout);
+            }
+        }
+    }
+
+    /**
+     * Handle on a scheduled timer
+     */
+    public static final class Timeout {
+
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedTimerWheel owner;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = ST_INIT;
+
+        // Only accessed by the worker thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(HashedTimerWheel owner, Runnable task, long deadline) {
+            this.owner = owner;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timer if it has not already fired
+         *
+         * @return True if the timer was cancelled by this call
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            owner.pending.decrementAndGet();
+            owner.cancellations.add(this);
+            return true;
+        }
+
+        /**
+         * Returns true if the timer was cancelled
+         *
+         * @return True if cancelled
+         */
+        public boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+
+        /**
+         * Returns true if the timer has fired
+         *
+         * @return True if expired
+         */
+        public boolean isExpired() {
+            return state == ST_EXPIRED;
+        }
+
+        /**
+         * Runs the task if the timer has not been cancelled
+         */
+        private void expire() {
+            if (STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                owner.pending.decrementAndGet();
+                owner.expired.incrementAndGet();
+                try {
+                    task.run();
+                }
+                catch (Throwable e) {
+                    Log.w(TAG, "Timer task failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of timers that hash to the same slot of the wheel
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            }
+            else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        /**
+         * Fires every timer in the bucket whose last round is due and counts
+         * down the rest.  Tasks only ever queue new or cancelled timers, so
+         * running them while walking the list is safe.
+         */
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                }
+                else if (timeout.isCancelled()) {
+                    remove(timeout);
+                }
+                else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void clear() {
+            while (head != null) {
+                remove(head);
+            }
+        }
+    }
+}
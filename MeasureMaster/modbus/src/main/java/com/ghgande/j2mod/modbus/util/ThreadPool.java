@@ -21,29 +21,61 @@ import android.util.Log;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class implementing a simple thread pool.
+ * <p>
+ * The queue of tasks waiting for a thread may be bounded, in which case a
+ * task that does not fit is refused rather than blocking the caller.  The
+ * pool counts what it does so that its load can be watched: the tasks
+ * running, the depth of the queue, the tasks refused and completed, and the
+ * latency from a task being executed to a thread picking it up.
  *
  * @author Dieter Wimberger
  * @author Steve O'Hara (4NG)
  * @version 2.0 (March 2016)
  */
 public class ThreadPool {
-    
-    private LinkedBlockingQueue<Runnable> taskPool;
-    private List<PoolThread> threadPool = new ArrayList<PoolThread>();
-    private int size = 1;
-    private boolean running;
+
+    private static final String TAG = "ThreadPool";
+
+    private final LinkedBlockingQueue<Task> taskPool;
+    private final List<PoolThread> threadPool = new ArrayList<PoolThread>();
+    private final int size;
+    private final int queueLimit;
+    private volatile boolean running;
+
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong startedCount = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private volatile long maxLatency;
 
     /**
-     * Constructs a new <tt>ThreadPool</tt> instance.
+     * Constructs a new <tt>ThreadPool</tt> instance with an unbounded queue.
      *
      * @param size the size of the thread pool.
      */
     public ThreadPool(int size) {
+        this(size, 0);
+    }
+
+    /**
+     * Constructs a new <tt>ThreadPool</tt> instance.
+     *
+     * @param size       the size of the thread pool.
+     * @param queueLimit the number of tasks that may wait for a thread, 0 for no limit.
+     */
+    public ThreadPool(int size, int queueLimit) {
+        if (size < 1 || queueLimit < 0) {
+            throw new IllegalArgumentException(String.format("Invalid pool size %d or queue limit %d", size, queueLimit));
+        }
         this.size = size;
-        taskPool = new LinkedBlockingQueue<Runnable>();
+        this.queueLimit = queueLimit;
+        taskPool = new LinkedBlockingQueue<Task>(queueLimit > 0 ? queueLimit : Integer.MAX_VALUE);
     }
 
     /**
@@ -51,16 +83,17 @@ public class ThreadPool {
      * through a thread in this <tt>ThreadPool</tt>.
      *
      * @param task the <tt>Runnable</tt> to be executed.
+     * @return true if the task was queued, false if the pool is closed or its queue is full.
      */
-    public synchronized void execute(Runnable task) {
-        if (running) {
-            try {
-                taskPool.put(task);
-            }
-            catch (InterruptedException ex) {
-                //FIXME: Handle!?
-            }
+    public boolean execute(Runnable task) {
+        if (!running) {
+            return false;
         }
+        if (!taskPool.offer(new Task(task))) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -68,7 +101,7 @@ public class ThreadPool {
      * n started threads.
      * @param name Name to give each thread
      */
-    public void initPool(String name) {
+    public synchronized void initPool(String name) {
         running = true;
         for (int i = size; --i >= 0; ) {
             PoolThread thread = new PoolThread();
@@ -81,13 +114,106 @@ public class ThreadPool {
     /**
      * Shutdown the pool of threads
      */
-    public void close() {
+    public synchronized void close() {
         if (running) {
             taskPool.clear();
             running = false;
             for (PoolThread thread : threadPool) {
                 thread.interrupt();
             }
+            threadPool.clear();
+        }
+    }
+
+    /**
+     * Returns the number of threads in the pool
+     *
+     * @return Pool size
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of tasks that may wait for a thread
+     *
+     * @return Queue limit, 0 if unbounded
+     */
+    public int getQueueLimit() {
+        return queueLimit;
+    }
+
+    /**
+     * Returns the number of tasks running
+     *
+     * @return Active task count
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * Returns the number of tasks waiting for a thread
+     *
+     * @return Queue depth
+     */
+    public int getQueueDepth() {
+        return taskPool.size();
+    }
+
+    /**
+     * Returns the number of tasks refused because the queue was full
+     *
+     * @return Rejected task count
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the number of tasks that have finished
+     *
+     * @return Completed task count
+     */
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * Returns the average time tasks waited for a thread
+     *
+     * @return Latency in nanoseconds
+     */
+    public long getAverageLatency() {
+        long started = startedCount.get();
+        return started == 0 ? 0 : totalLatency.get() / started;
+    }
+
+    /**
+     * Returns the longest time a task waited for a thread
+     *
+     * @return Latency in nanoseconds
+     */
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d active, %d queued, %d rejected, %d completed, latency %d us (max %d us)",
+                getActiveCount(), size, getQueueDepth(), getRejectedCount(), getCompletedCount(),
+                getAverageLatency() / 1000, getMaxLatency() / 1000);
+    }
+
+    /**
+     * A task with the time it was queued
+     */
+    private static class Task {
+        final Runnable runnable;
+        final long queued = System.nanoTime();
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
         }
     }
 
@@ -107,18 +233,35 @@ public class ThreadPool {
          * up available tasks from the <tt>LinkedQueue</tt>.
          */
         public void run() {
-            Log.d("tag","Running PoolThread");
-            do {
+            while (running) {
+                Task task;
+                try {
+                    task = taskPool.take();
+                }
+                catch (InterruptedException ex) {
+                    // Interrupted by close()
+                    continue;
+                }
+                long latency = System.nanoTime() - task.queued;
+                startedCount.incrementAndGet();
+                totalLatency.addAndGet(latency);
+                if (latency > maxLatency) {
+                    maxLatency = latency;
+                }
+                activeCount.incrementAndGet();
                 try {
-                    Log.d("tag",this.toString());
-                    taskPool.take().run();
+                    task.runnable.run();
                 }
-                catch (Exception ex) {
+                catch (RuntimeException ex) {
                     if (running) {
-                        Log.e("tag","Problem starting receiver thread"+ ex.toString());
+                        Log.e(TAG, "Task failed - " + ex.toString());
                     }
                 }
-            } while (running);
+                finally {
+                    activeCount.decrementAndGet();
+                    completedCount.incrementAndGet();
+                }
+            }
         }
     }
 
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that allows a sustained rate of events with bursts up to a
+ * given size.
+ * <p>
+ * The bucket starts full and is refilled continuously from
+ * <tt>System.nanoTime()</tt>, so it needs no timer thread.
+ */
+public class TokenBucket {
+
+    private final double rate;
+    private final double burst;
+    private double tokens;
+    private long refilled;
+
+    /**
+     * Creates a full bucket
+     *
+     * @param rate  Sustained events per second
+     * @param burst Events allowed at once
+     */
+    public TokenBucket(double rate, int burst) {
+        if (rate <= 0 || burst < 1) {
+            throw new IllegalArgumentException(String.format("Invalid rate %f or burst %d", rate, burst));
+        }
+        this.rate = rate;
+        this.burst = burst;
+        tokens = burst;
+        refilled = System.nanoTime();
+    }
+
+    /**
+     * Returns the sustained rate
+     *
+     * @return Events per second
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Returns the burst size
+     *
+     * @return Events allowed at once
+     */
+    public int getBurst() {
+        return (int) burst;
+    }
+
+    /**
+     * Takes a token if there is one
+     *
+     * @return 0 if a token was taken, otherwise the time until one is available in nanoseconds
+     */
+    public synchronized long tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens--;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / rate * TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    /**
+     * Returns a token taken by {@link #tryAcquire()} that was not used
+     */
+    public synchronized void refund() {
+        tokens = Math.min(burst, tokens + 1);
+    }
+
+    /**
+     * Returns the tokens in the bucket now
+     *
+     * @return Token count, possibly fractional
+     */
+    public synchronized double getTokens() {
+        refill();
+        return tokens;
+    }
+
+    /**
+     * Adds the tokens earned since the last refill
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilled) * rate / TimeUnit.SECONDS.toNanos(1));
+        refilled = now;
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.cmd;
+
+import com.ghgande.j2mod.modbus.facade.RegisterMap.Table;
+import com.ghgande.j2mod.modbus.tag.PollBlock;
+import com.ghgande.j2mod.modbus.tag.Tag;
+import com.ghgande.j2mod.modbus.tag.TagDatabase;
+import com.ghgande.j2mod.modbus.tag.TagType;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generates the source of a typed device class from a register map descriptor.
+ * <p>
+ * The descriptor holds one tag specification per line in the form accepted by
+ * {@link Tag#parse(String)}.  The tags are compiled into poll blocks exactly as
+ * the {@link TagDatabase} would, and the generated class has
+ * <ul>
+ * <li>a single <tt>int[]</tt> buffer holding the raw items of every block</li>
+ * <li>a <tt>read()</tt> method issuing one request per block</li>
+ * <li>a typed getter per tag decoding straight from fixed buffer offsets</li>
+ * <li>a setter per holding register and coil tag writing through preallocated registers</li>
+ * </ul>
+ * so the device can be used without any lookups, conversions through byte
+ * arrays or allocation in application code.
+ * <p>
+ * Usage:
+ * <pre>
+ * java com.ghgande.j2mod.modbus.cmd.DeviceGenerator descriptor package class [output directory]
+ * </pre>
+ */
+public class DeviceGenerator {
+
+    private static void printUsage() {
+        System.out.printf("\nUsage:\n    java com.ghgande.j2mod.modbus.cmd.DeviceGenerator <descriptor> <package> <class> [<output directory>]");
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            printUsage();
+            System.exit(1);
+        }
+        try {
+            File descriptor = new File(args[0]);
+            File dir = new File(args.length > 3 ? args[3] : ".", args[1].replace('.', File.separatorChar));
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            File output = new File(dir, args[2] + ".java");
+            Reader in = new FileReader(descriptor);
+            Writer out = new FileWriter(output);
+            try {
+                generate(in, descriptor.getName(), args[1], args[2], out);
+            }
+            finally {
+                in.close();
+                out.close();
+            }
+            System.out.println("Generated " + output);
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Generates a device class
+     *
+     * @param descriptor  Reader of the descriptor
+     * @param source      Name of the descriptor for the generated comments
+     * @param packageName Package of the generated class
+     * @param className   Name of the generated class
+     * @param out         Writer to receive the source
+     * @throws IOException If the descriptor is invalid or the output cannot be written
+     */
+    public static void generate(Reader descriptor, String source, String packageName, String className, Writer out) throws IOException {
+        TagDatabase db = new TagDatabase();
+        db.load(descriptor);
+        List<Tag> tags = db.getTags();
+        PollBlock[] blocks = db.getBlocks();
+        int[] bases = new int[blocks.length];
+        int size = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            bases[i] = size;
+            size += blocks[i].getCount();
+        }
+
+        PrintWriter w = new PrintWriter(out);
+        if (packageName != null && !packageName.isEmpty()) {
+            w.printf("package %s;%n%n", packageName);
+        }
+        w.println("import com.ghgande.j2mod.modbus.ModbusException;");
+        w.println("import com.ghgande.j2mod.modbus.facade.AbstractModbusMaster;");
+        w.println("import com.ghgande.j2mod.modbus.procimg.InputRegister;");
+        w.println("import com.ghgande.j2mod.modbus.procimg.Register;");
+        w.println("import com.ghgande.j2mod.modbus.procimg.SimpleRegister;");
+        w.println("import com.ghgande.j2mod.modbus.util.BitVector;");
+        w.println();
+        w.println("/**");
+        w.printf(" * Device generated from %s by {@link com.ghgande.j2mod.modbus.cmd.DeviceGenerator}.%n", source);
+        w.println(" * Do not edit - regenerate from the descriptor instead.");
+        w.println(" * <p>");
+        w.printf(" * {@link #read()} issues %d request(s):%n", blocks.length);
+        w.println(" * <ul>");
+        for (PollBlock block : blocks) {
+            w.printf(" * <li>unit %d %s %d-%d</li>%n", block.getUnitId(), block.getTable(), block.getRef(), block.getRef() + block.getCount() - 1);
+        }
+        w.println(" * </ul>");
+        w.println(" */");
+        w.printf("public class %s {%n%n", className);
+        w.println("    private final AbstractModbusMaster master;");
+        w.printf("    private final int[] buffer = new int[%d];%n", size);
+
+        Set<String> used = new HashSet<String>();
+        String[] names = new String[tags.size()];
+        for (Tag tag : tags) {
+            if (tag.isVirtual()) {
+                continue;
+            }
+            String name = javaName(tag.getName());
+            String unique = name;
+            for (int n = 2; !used.add(unique); n++) {
+                unique = name + n;
+            }
+            names[tag.getIndex()] = unique;
+            if (isWritable(tag) && tag.getTable() == Table.HOLDING_REGISTERS) {
+                w.printf("    private final Register[] w%s = {", unique);
+                for (int i = 0; i < tag.getItemCount(); i++) {
+                    w.print(i == 0 ? "new SimpleRegister()" : ", new SimpleRegister()");
+                }
+                w.println("};");
+            }
+        }
+        w.println();
+        w.println("    /**");
+        w.println("     * Creates the device");
+        w.println("     *");
+        w.println("     * @param master Connected master to communicate through");
+        w.println("     */");
+        w.printf("    public %s(AbstractModbusMaster master) {%n", className);
+        w.println("        this.master = master;");
+        w.println("    }");
+        w.println();
+
+        // Bulk read
+        w.println("    /**");
+        w.println("     * Reads every tag of the device into the buffer");
+        w.println("     *");
+        w.println("     * @throws ModbusException If a request fails");
+        w.println("     */");
+        w.println("    public void read() throws ModbusException {");
+        w.println("        synchronized (master) {");
+        for (int i = 0; i < blocks.length; i++) {
+            PollBlock block = blocks[i];
+            String args = String.format("%d, %d, %d", block.getUnitId(), block.getRef(), block.getCount());
+            switch (block.getTable()) {
+                case COILS:
+                    w.printf("            copy(master.readCoils(%s), %d);%n", args, bases[i]);
+                    break;
+                case DISCRETE_INPUTS:
+                    w.printf("            copy(master.readInputDiscretes(%s), %d);%n", args, bases[i]);
+                    break;
+                case INPUT_REGISTERS:
+                    w.printf("            copy(master.readInputRegisters(%s), %d);%n", args, bases[i]);
+                    break;
+                default:
+                    w.printf("            copy(master.readMultipleRegisters(%s), %d);%n", args, bases[i]);
+                    break;
+            }
+        }
+        w.println("        }");
+        w.println("    }");
+
+        // Accessors
+        for (Tag tag : tags) {
+            if (tag.isVirtual()) {
+                continue;
+            }
+            int block = blockOf(blocks, tag);
+            int offset = bases[block] + tag.getAddress() - blocks[block].getRef();
+            writeGetter(w, tag, names[tag.getIndex()], offset);
+            if (isWritable(tag)) {
+                writeSetter(w, tag, names[tag.getIndex()], offset);
+            }
+        }
+
+        // Helpers
+        w.println();
+        w.println("    private void copy(BitVector bits, int offset) {");
+        w.println("        for (int i = 0; i < bits.size(); i++) {");
+        w.println("            buffer[offset + i] = bits.getBit(i) ? 1 : 0;");
+        w.println("        }");
+        w.println("    }");
+        w.println();
+        w.println("    private void copy(InputRegister[] registers, int offset) {");
+        w.println("        for (int i = 0; i < registers.length; i++) {");
+        w.println("            buffer[offset + i] = registers[i].toUnsignedShort();");
+        w.println("        }");
+        w.println("    }");
+        w.println();
+        w.println("    private static int swap(int word) {");
+        w.println("        return ((word & 0xff) << 8) | ((word >>> 8) & 0xff);");
+        w.println("    }");
+        w.println("}");
+        w.flush();
+        if (w.checkError()) {
+            throw new IOException("Cannot write generated source");
+        }
+    }
+
+    /**
+     * Writes the getter of a tag
+     */
+    private static void writeGetter(PrintWriter w, Tag tag, String name, int offset) {
+        boolean scaled = isScaled(tag);
+        String type = scaled ? "double" : javaType(tag.getType());
+        String expression = decodeExpression(tag, offset);
+        if (scaled) {
+            String raw = tag.getType() == TagType.BOOL ? "(" + expression + " ? 1 : 0)" : "(" + expression + ")";
+            expression = String.format("(double)%s * %s + %s", raw, tag.getScale(), tag.getOffset());
+        }
+        w.println();
+        w.println("    /**");
+        w.printf("     * Returns %s from the last read%n", tag.getName());
+        w.printf("     * <p>%s%n", tag.toSpec());
+        w.println("     *");
+        w.println("     * @return Value");
+        w.println("     */");
+        w.printf("    public %s %s%s() {%n", type, tag.getType() == TagType.BOOL && !scaled ? "is" : "get", name);
+        w.printf("        return %s;%n", expression);
+        w.println("    }");
+    }
+
+    /**
+     * Writes the setter of a holding register or coil tag
+     */
+    private static void writeSetter(PrintWriter w, Tag tag, String name, int offset) {
+        boolean scaled = isScaled(tag);
+        TagType type = tag.getType();
+        w.println();
+        w.println("    /**");
+        w.printf("     * Writes %s to the device%n", tag.getName());
+        w.println("     *");
+        w.println("     * @param value Value to write");
+        w.println("     * @throws ModbusException If the write fails");
+        w.println("     */");
+        w.printf("    public void set%s(%s value) throws ModbusException {%n", name, scaled ? "double" : javaType(type));
+        if (tag.getTable() == Table.COILS) {
+            String state = scaled ? String.format("(value - %s) / %s != 0", tag.getOffset(), tag.getScale()) : "value";
+            w.printf("        boolean state = %s;%n", state);
+            w.println("        synchronized (master) {");
+            w.printf("            master.writeCoil(%d, %d, state);%n", tag.getUnitId(), tag.getAddress());
+            w.println("        }");
+            w.printf("        buffer[%d] = state ? 1 : 0;%n", offset);
+            w.println("    }");
+            return;
+        }
+
+        // Work out the raw value
+        String raw = scaled ? String.format("(value - %s) / %s", tag.getOffset(), tag.getScale()) : "value";
+        switch (type) {
+            case BOOL:
+                w.printf("        long raw = %s ? 1 : 0;%n", scaled ? raw + " != 0" : raw);
+                break;
+            case FLOAT32:
+                w.printf("        long raw = Float.floatToIntBits((float)(%s));%n", raw);
+                break;
+            case FLOAT64:
+                w.printf("        long raw = Double.doubleToLongBits(%s);%n", raw);
+                break;
+            default:
+                w.printf("        long raw = %s;%n", scaled ? "Math.round(" + raw + ")" : raw);
+                break;
+        }
+
+        // Split into big endian words in the order of the device, send them
+        // under the master lock and only show the value to the getters once
+        // the device has it
+        int words = type.getWordCount();
+        w.println("        synchronized (master) {");
+        for (int i = 0; i < words; i++) {
+            int shift = (words - 1 - i) * 16;
+            int position = tag.isWordSwap() ? words - 1 - i : i;
+            String word = shift == 0 ? "(int)raw & 0xffff" : String.format("(int)(raw >>> %d) & 0xffff", shift);
+            if (tag.isByteSwap()) {
+                word = "swap(" + word + ")";
+            }
+            w.printf("            w%s[%d].setValue(%s);%n", name, position, word);
+        }
+        if (words == 1) {
+            w.printf("            master.writeSingleRegister(%d, %d, w%s[0]);%n", tag.getUnitId(), tag.getAddress(), name);
+        }
+        else {
+            w.printf("            master.writeMultipleRegisters(%d, %d, w%s);%n", tag.getUnitId(), tag.getAddress(), name);
+        }
+        for (int i = 0; i < words; i++) {
+            w.printf("            buffer[%d] = w%s[%d].toUnsignedShort();%n", offset + i, name, i);
+        }
+        w.println("        }");
+        w.println("    }");
+    }
+
+    /**
+     * Returns the Java expression decoding the raw value of a tag from the buffer
+     */
+    private static String decodeExpression(Tag tag, int offset) {
+        String[] words = new String[tag.getItemCount()];
+        for (int i = 0; i < words.length; i++) {
+            int position = tag.isWordSwap() ? words.length - 1 - i : i;
+            words[i] = tag.isByteSwap() ? String.format("swap(buffer[%d])", offset + position) : String.format("buffer[%d]", offset + position);
+        }
+        switch (tag.getType()) {
+            case BOOL:
+                return words[0] + " != 0";
+            case INT16:
+                return "(short)" + words[0];
+            case UINT16:
+                return words[0];
+            case INT32:
+                return String.format("(%s << 16 | %s)", words[0], words[1]);
+            case UINT32:
+                return String.format("((%s << 16 | %s) & 0xffffffffL)", words[0], words[1]);
+            case FLOAT32:
+                return String.format("Float.intBitsToFloat(%s << 16 | %s)", words[0], words[1]);
+            case INT64:
+                return String.format("((long)%s << 48 | (long)%s << 32 | (long)%s << 16 | %s)", words[0], words[1], words[2], words[3]);
+            default:
+                return String.format("Double.longBitsToDouble((long)%s << 48 | (long)%s << 32 | (long)%s << 16 | %s)", words[0], words[1], words[2], words[3]);
+        }
+    }
+
+    /**
+     * Returns the Java type returned for an unscaled tag
+     */
+    private static String javaType(TagType type) {
+        switch (type) {
+            case BOOL:
+                return "boolean";
+            case INT16:
+            case UINT16:
+            case INT32:
+                return "int";
+            case UINT32:
+            case INT64:
+                return "long";
+            case FLOAT32:
+                return "float";
+            default:
+                return "double";
+        }
+    }
+
+    /**
+     * Returns true if the tag has a scale or offset applied
+     */
+    private static boolean isScaled(Tag tag) {
+        return tag.getScale() != 1 || tag.getOffset() != 0;
+    }
+
+    /**
+     * Returns true if the tag is in a writable table
+     */
+    private static boolean isWritable(Tag tag) {
+        return tag.getTable() == Table.HOLDING_REGISTERS || tag.getTable() == Table.COILS;
+    }
+
+    /**
+     * Returns the index of the block holding the tag
+     */
+    private static int blockOf(PollBlock[] blocks, Tag tag) {
+        for (int i = 0; i < blocks.length; i++) {
+            PollBlock block = blocks[i];
+            if (block.getUnitId() == tag.getUnitId() && block.getTable() == tag.getTable() &&
+                    tag.getAddress() >= block.getRef() && tag.getAddress() + tag.getItemCount() <= block.getRef() + block.getCount()) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("No block holds tag " + tag.getName());
+    }
+
+    /**
+     * Converts a tag name such as <tt>Boiler1.Pressure</tt> into a Java identifier part
+     */
+    private static String javaName(String name) {
+        StringBuilder result = new StringBuilder();
+        boolean upper = true;
+        for (char c : name.toCharArray()) {
+            if (Character.isLetterOrDigit(c)) {
+                result.append(upper ? Character.toUpperCase(c) : c);
+                upper = false;
+            }
+            else {
+                upper = true;
+            }
+        }
+        if (result.length() == 0 || Character.isDigit(result.charAt(0))) {
+            result.insert(0, "Tag");
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import android.util.Log;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.procimg.ClockRegisterBlock;
+import com.ghgande.j2mod.modbus.procimg.InputRegister;
+
+/**
+ * Estimates the offset and drift between the <tt>System.nanoTime()</tt>
+ * clock of the master and the clock a slave exposes in a
+ * {@link ClockRegisterBlock}, so that values read from the slave can be
+ * stamped in master time.
+ * <p>
+ * Each sample reads the clock block and notes the master time before and
+ * after.  The slave latched its clock somewhere within that round trip, so
+ * the sample bounds the offset to within half the round trip of its
+ * midpoint.  Samples whose round trip was delayed by queuing or retries say
+ * little, so of the last {@link #WINDOW} samples only those within twice the
+ * shortest round trip are kept, and a straight line fitted through them
+ * gives the offset and its drift.  The error bound is the widest half round
+ * trip of the kept samples plus the largest distance of one of them from the
+ * line.
+ */
+public class ClockOffsetEstimator {
+
+    private static final String TAG = "ClockOffsetEstimator";
+
+    /**
+     * Number of recent samples the estimate is made from (=<tt>32</tt>)
+     */
+    public static final int WINDOW = 32;
+
+    private final AbstractModbusMaster master;
+    private final int unitId;
+    private final int ref;
+    private final boolean inputRegisters;
+
+    // Recent samples, master midpoint and offset in nanoseconds
+    private final long[] midpoints = new long[WINDOW];
+    private final long[] offsets = new long[WINDOW];
+    private final long[] roundTrips = new long[WINDOW];
+    private int count;
+    private long total;
+
+    // Current fit: offset = intercept + slope * (master time - reference)
+    private long reference;
+    private double intercept;
+    private double slope;
+    private long errorBound = Long.MAX_VALUE;
+    private boolean valid;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Creates an estimator for the clock block of a slave
+     *
+     * @param master         Master to read with
+     * @param unitId         Unit identifier of the slave
+     * @param ref            Address of the first clock register
+     * @param inputRegisters True if the block is in the input registers, false for holding registers
+     */
+    public ClockOffsetEstimator(AbstractModbusMaster master, int unitId, int ref, boolean inputRegisters) {
+        this.master = master;
+        this.unitId = unitId;
+        this.ref = ref;
+        this.inputRegisters = inputRegisters;
+    }
+
+    /**
+     * Reads the slave clock once and updates the estimate
+     *
+     * @return Round trip of the sample in nanoseconds
+     * @throws ModbusException if the read fails
+     */
+    public long sample() throws ModbusException {
+        long sent;
+        long received;
+        InputRegister[] registers;
+        synchronized (master) {
+            sent = System.nanoTime();
+            if (inputRegisters) {
+                registers = master.readInputRegisters(unitId, ref, ClockRegisterBlock.REGISTER_COUNT);
+            }
+            else {
+                registers = master.readMultipleRegisters(unitId, ref, ClockRegisterBlock.REGISTER_COUNT);
+            }
+            received = System.nanoTime();
+        }
+        long slaveTime = 0;
+        for (InputRegister register : registers) {
+            slaveTime = slaveTime << 16 | register.toUnsignedShort();
+        }
+        add(sent, received, slaveTime * 1000);
+        return received - sent;
+    }
+
+    /**
+     * Adds a sample made by other means
+     *
+     * @param sent      Master time just before the request was sent, in nanoseconds
+     * @param received  Master time just after the response was received, in nanoseconds
+     * @param slaveTime Slave clock in nanoseconds
+     */
+    public synchronized void add(long sent, long received, long slaveTime) {
+        int slot = (int) (total++ % WINDOW);
+        midpoints[slot] = sent + (received - sent) / 2;
+        offsets[slot] = slaveTime - midpoints[slot];
+        roundTrips[slot] = received - sent;
+        count = Math.min(count + 1, WINDOW);
+        fit();
+    }
+
+    /**
+     * Samples in the background
+     *
+     * @param interval Time between samples in milliseconds
+     */
+    public synchronized void start(final long interval) {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        sample();
+                    }
+                    catch (ModbusException e) {
+                        Log.d(TAG, "Clock sample failed - " + e.getMessage());
+                    }
+                    try {
+                        Thread.sleep(interval);
+                    }
+                    catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        }, "Modbus Clock Estimator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops sampling in the background
+     */
+    public void stop() {
+        Thread current;
+        synchronized (this) {
+            current = thread;
+            thread = null;
+            running = false;
+        }
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    /**
+     * Returns true once there is an estimate
+     *
+     * @return True if synchronized
+     */
+    public synchronized boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Returns the estimated offset of the slave clock now
+     *
+     * @return Slave time less master time, in nanoseconds
+     */
+    public synchronized long getOffset() {
+        return offsetAt(System.nanoTime());
+    }
+
+    /**
+     * Returns the estimated drift of the slave clock against the master
+     *
+     * @return Drift in parts per million, positive if the slave runs fast
+     */
+    public synchronized double getDrift() {
+        return slope * 1e6;
+    }
+
+    /**
+     * Returns the bound on the error of a conversion
+     *
+     * @return Bound in nanoseconds, or <tt>Long.MAX_VALUE</tt> with no estimate
+     */
+    public synchronized long getErrorBound() {
+        return errorBound;
+    }
+
+    /**
+     * Returns the number of samples taken
+     *
+     * @return Sample count
+     */
+    public synchronized long getSampleCount() {
+        return total;
+    }
+
+    /**
+     * Converts a slave clock reading to master time
+     *
+     * @param slaveMicros Slave clock in microseconds, as in the clock block
+     * @return <tt>System.nanoTime()</tt> value of the master
+     * @throws IllegalStateException if there is no estimate yet
+     */
+    public synchronized long toMasterTime(long slaveMicros) {
+        checkValid();
+        // Solve slave = master + intercept + slope * (master - reference) for master
+        double relative = (slaveMicros * 1000 - reference - intercept) / (1 + slope);
+        return reference + Math.round(relative);
+    }
+
+    /**
+     * Converts a master time to the slave clock
+     *
+     * @param masterNanos <tt>System.nanoTime()</tt> value of the master
+     * @return Slave clock in microseconds
+     * @throws IllegalStateException if there is no estimate yet
+     */
+    public synchronized long toSlaveTime(long masterNanos) {
+        checkValid();
+        return (masterNanos + offsetAt(masterNanos)) / 1000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (!valid) {
+            return "No clock estimate";
+        }
+        return String.format("offset %d us, drift %.2f ppm, error %d us, %d samples", getOffset() / 1000,
+                getDrift(), errorBound / 1000, total);
+    }
+
+    /**
+     * Returns the fitted offset at a master time
+     */
+    private long offsetAt(long masterNanos) {
+        return Math.round(intercept + slope * (masterNanos - reference));
+    }
+
+    /**
+     * Throws if there is no estimate
+     */
+    private void checkValid() {
+        if (!valid) {
+            throw new IllegalStateException("No clock estimate yet");
+        }
+    }
+
+    /**
+     * Filters the window by round trip and fits a line through what is left
+     */
+    private void fit() {
+        long minRoundTrip = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            minRoundTrip = Math.min(minRoundTrip, roundTrips[i]);
+        }
+        long limit = minRoundTrip * 2;
+
+        // Work relative to the newest sample to keep the sums precise
+        reference = midpoints[(int) ((total - 1) % WINDOW)];
+        int n = 0;
+        double sumX = 0;
+        double sumY = 0;
+        double sumXX = 0;
+        double sumXY = 0;
+        for (int i = 0; i < count; i++) {
+            if (roundTrips[i] <= limit) {
+                double x = midpoints[i] - reference;
+                double y = offsets[i];
+                n++;
+                sumX += x;
+                sumY += y;
+                sumXX += x * x;
+                sumXY += x * y;
+            }
+        }
+        double spread = n * sumXX - sumX * sumX;
+        if (n >= 3 && spread > 0) {
+            slope = (n * sumXY - sumX * sumY) / spread;
+            intercept = (sumY - slope * sumX) / n;
+        }
+        else {
+            slope = 0;
+            intercept = sumY / n;
+        }
+
+        long bound = 0;
+        for (int i = 0; i < count; i++) {
+            if (roundTrips[i] <= limit) {
+                double residual = Math.abs(offsets[i] - (intercept + slope * (midpoints[i] - reference)));
+                bound = Math.max(bound, roundTrips[i] / 2 + Math.round(residual));
+            }
+        }
+        errorBound = bound;
+        valid = true;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Negative cache of <tt>ILLEGAL_FUNCTION</tt> and <tt>ILLEGAL_ADDRESS</tt>
+ * exception responses returned by slaves.
+ * <p>
+ * A request that a slave has rejected with one of these exceptions will be
+ * rejected again on every poll until the slave configuration changes, so the
+ * master remembers the result for a configurable time and answers locally.
+ * <ul>
+ * <li>An illegal function is remembered per (unit, function code) because the
+ * slave does not implement the function at all</li>
+ * <li>An illegal address is remembered per (unit, function code, reference, count)
+ * and also rejects any request whose range covers a known bad range</li>
+ * </ul>
+ * The cache is disabled by default so that a master always asks the slave;
+ * set a TTL greater than zero with {@link #setTtl(long)} to enable it.
+ * Expired entries are dropped as lookups pass over them, and at most
+ * {@link #MAX_ENTRIES} are kept, the oldest making way for new ones.
+ */
+public class ExceptionResponseCache {
+
+    /**
+     * Default time in milliseconds that a rejection is remembered (=<tt>0</tt>, disabled)
+     */
+    public static final long DEFAULT_TTL = 0;
+
+    /**
+     * Number of rejections remembered at most (=<tt>256</tt>)
+     */
+    public static final int MAX_ENTRIES = 256;
+
+    private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ExceptionResponseCache.Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private long ttl = DEFAULT_TTL;
+    private long hits;
+    private long misses;
+
+    /**
+     * Returns the time that rejections are remembered for
+     *
+     * @return TTL in milliseconds
+     */
+    public synchronized long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Sets the time that rejections are remembered for.
+     * A value of zero or less disables the cache and clears any entries
+     *
+     * @param ttl TTL in milliseconds
+     */
+    public synchronized void setTtl(long ttl) {
+        this.ttl = ttl;
+        if (ttl <= 0) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Returns true if the cache is enabled
+     *
+     * @return True if the TTL is greater than zero
+     */
+    public synchronized boolean isEnabled() {
+        return ttl > 0;
+    }
+
+    /**
+     * Records an exception response from the slave.  Only illegal function and
+     * illegal address exceptions are cached, everything else is ignored.
+     *
+     * @param unitId        Unit ID of the request
+     * @param functionCode  Function code of the request
+     * @param ref           Starting reference of the request
+     * @param count         Number of items addressed by the request
+     * @param exceptionCode Exception code returned by the slave
+     */
+    public synchronized void put(int unitId, int functionCode, int ref, int count, int exceptionCode) {
+        if (ttl <= 0) {
+            return;
+        }
+        long expires = System.currentTimeMillis() + ttl;
+        if (exceptionCode == Modbus.ILLEGAL_FUNCTION_EXCEPTION) {
+            entries.put(key(unitId, functionCode, -1, 0), new Entry(unitId, functionCode, -1, 0, exceptionCode, expires));
+        }
+        else if (exceptionCode == Modbus.ILLEGAL_ADDRESS_EXCEPTION) {
+            entries.put(key(unitId, functionCode, ref, count), new Entry(unitId, functionCode, ref, count, exceptionCode, expires));
+        }
+    }
+
+    /**
+     * Looks up the request in the cache
+     *
+     * @param unitId       Unit ID of the request
+     * @param functionCode Function code of the request
+     * @param ref          Starting reference of the request
+     * @param count        Number of items addressed by the request
+     * @return The cached exception code or -1 if the request is not known to be bad
+     */
+    public synchronized int get(int unitId, int functionCode, int ref, int count) {
+        if (ttl <= 0) {
+            return -1;
+        }
+        if (entries.isEmpty()) {
+            misses++;
+            return -1;
+        }
+        long now = System.currentTimeMillis();
+
+        // Unsupported function or exact match
+        Entry entry = live(key(unitId, functionCode, -1, 0), now);
+        if (entry == null) {
+            entry = live(key(unitId, functionCode, ref, count), now);
+        }
+
+        // Any range that covers a known bad range is also bad, dropping the
+        // expired entries on the way
+        if (entry == null) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry candidate = it.next();
+                if (candidate.expires <= now) {
+                    it.remove();
+                }
+                else if (candidate.unitId == unitId && candidate.functionCode == functionCode && candidate.ref >= 0 &&
+                        candidate.ref >= ref && candidate.ref + candidate.count <= ref + count) {
+                    entry = candidate;
+                    break;
+                }
+            }
+        }
+        if (entry == null) {
+            misses++;
+            return -1;
+        }
+        hits++;
+        return entry.exceptionCode;
+    }
+
+    /**
+     * Removes any entries for the given unit e.g. after the device has been re-configured
+     *
+     * @param unitId Unit ID to forget
+     */
+    public synchronized void invalidate(int unitId) {
+        for (Entry entry : new ArrayList<Entry>(entries.values())) {
+            if (entry.unitId == unitId) {
+                entries.remove(key(entry.unitId, entry.functionCode, entry.ref, entry.count));
+            }
+        }
+    }
+
+    /**
+     * Removes all entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of requests that were rejected locally
+     *
+     * @return Number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that had to go to the slave
+     *
+     * @return Number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns a description of each live entry for diagnostic purposes
+     * in the form <tt>unit:fc:ref:count=exception</tt> (ref and count are
+     * omitted for illegal function entries)
+     *
+     * @return List of entries
+     */
+    public synchronized List<String> getEntries() {
+        List<String> list = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        for (Entry entry : new ArrayList<Entry>(entries.values())) {
+            if (entry.expires <= now) {
+                entries.remove(key(entry.unitId, entry.functionCode, entry.ref, entry.count));
+            }
+            else {
+                list.add(entry.toString());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the entry for the key if it hasn't expired
+     *
+     * @param key Key of the entry
+     * @param now Current time
+     * @return Entry or null
+     */
+    private Entry live(long key, long now) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expires <= now) {
+            entries.remove(key);
+            entry = null;
+        }
+        return entry;
+    }
+
+    /**
+     * Packs the request identity into a single key
+     *
+     * @param unitId       Unit ID
+     * @param functionCode Function code
+     * @param ref          Reference or -1 for the whole function
+     * @param count        Number of items
+     * @return Key
+     */
+    private static long key(int unitId, int functionCode, int ref, int count) {
+        return ((long)(unitId & 0xff) << 48) | ((long)(functionCode & 0xff) << 40) |
+               ((long)(ref & 0xffffff) << 16) | (count & 0xffff);
+    }
+
+    /**
+     * A single rejected request
+     */
+    private static class Entry {
+        final int unitId;
+        final int functionCode;
+        final int ref;
+        final int count;
+        final int exceptionCode;
+        final long expires;
+
+        Entry(int unitId, int functionCode, int ref, int count, int exceptionCode, long expires) {
+            this.unitId = unitId;
+            this.functionCode = functionCode;
+            this.ref = ref;
+            this.count = count;
+            this.exceptionCode = exceptionCode;
+            this.expires = expires;
+        }
+
+        @Override
+        public String toString() {
+            if (ref < 0) {
+                return String.format("%d:%d=%d", unitId, functionCode, exceptionCode);
+            }
+            return String.format("%d:%d:%d:%d=%d", unitId, functionCode, ref, count, exceptionCode);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The register map of a single slave unit as learned by
+ * {@link RegisterMapDiscovery}.
+ * <p>
+ * For each of the four Modbus tables the map holds whether the table is
+ * supported, the largest number of items the device accepts in a single
+ * request and the list of valid address ranges.  The map can be stored and
+ * re-loaded so that a device only needs to be discovered once, and it can
+ * split a read into the minimal set of requests that stay inside valid
+ * ranges and block sizes.
+ */
+public class RegisterMap {
+
+    /**
+     * The Modbus data tables
+     */
+    public enum Table {
+        COILS("coils", Modbus.READ_COILS, Modbus.MAX_BITS),
+        DISCRETE_INPUTS("discretes", Modbus.READ_INPUT_DISCRETES, Modbus.MAX_BITS),
+        INPUT_REGISTERS("inputs", Modbus.READ_INPUT_REGISTERS, 125),
+        HOLDING_REGISTERS("holding", Modbus.READ_HOLDING_REGISTERS, 125);
+
+        private final String key;
+        private final int functionCode;
+        private final int maxBlockSize;
+
+        Table(String key, int functionCode, int maxBlockSize) {
+            this.key = key;
+            this.functionCode = functionCode;
+            this.maxBlockSize = maxBlockSize;
+        }
+
+        /**
+         * Returns the function code used to read this table
+         *
+         * @return Function code
+         */
+        public int getFunctionCode() {
+            return functionCode;
+        }
+
+        /**
+         * Returns the largest number of items the protocol allows in one read of this table
+         *
+         * @return Protocol maximum
+         */
+        public int getMaxBlockSize() {
+            return maxBlockSize;
+        }
+    }
+
+    private final int unitId;
+    private final boolean[] supported = new boolean[Table.values().length];
+    private final int[] maxBlockSize = new int[Table.values().length];
+    private final List<List<int[]>> ranges = new ArrayList<List<int[]>>();
+
+    /**
+     * Creates an empty map for the unit
+     *
+     * @param unitId Unit ID of the slave
+     */
+    public RegisterMap(int unitId) {
+        this.unitId = unitId;
+        for (Table table : Table.values()) {
+            maxBlockSize[table.ordinal()] = table.getMaxBlockSize();
+            ranges.add(new ArrayList<int[]>());
+        }
+    }
+
+    /**
+     * Returns the unit ID this map describes
+     *
+     * @return Unit ID
+     */
+    public int getUnitId() {
+        return unitId;
+    }
+
+    /**
+     * Returns true if the device implements the read function for the table
+     *
+     * @param table Table
+     * @return True if supported
+     */
+    public synchronized boolean isSupported(Table table) {
+        return supported[table.ordinal()];
+    }
+
+    /**
+     * Sets whether the device implements the read function for the table
+     *
+     * @param table     Table
+     * @param supported True if supported
+     */
+    public synchronized void setSupported(Table table, boolean supported) {
+        this.supported[table.ordinal()] = supported;
+    }
+
+    /**
+     * Returns the largest number of items the device accepts in a single read of the table
+     *
+     * @param table Table
+     * @return Block size
+     */
+    public synchronized int getMaxBlockSize(Table table) {
+        return maxBlockSize[table.ordinal()];
+    }
+
+    /**
+     * Sets the largest number of items the device accepts in a single read of the table
+     *
+     * @param table     Table
+     * @param blockSize Block size, limited to the protocol maximum
+     */
+    public synchronized void setMaxBlockSize(Table table, int blockSize) {
+        maxBlockSize[table.ordinal()] = Math.max(1, Math.min(blockSize, table.getMaxBlockSize()));
+    }
+
+    /**
+     * Adds a valid range to the table, merging it with any adjacent or overlapping range
+     *
+     * @param table Table
+     * @param ref   First valid address
+     * @param count Number of valid addresses
+     */
+    public synchronized void addRange(Table table, int ref, int count) {
+        if (count < 1) {
+            return;
+        }
+        List<int[]> list = ranges.get(table.ordinal());
+        int start = ref;
+        int end = ref + count;
+        int index = 0;
+        while (index < list.size()) {
+            int[] range = list.get(index);
+            if (range[0] + range[1] < start) {
+                index++;
+            }
+            else if (range[0] > end) {
+                break;
+            }
+            else {
+                start = Math.min(start, range[0]);
+                end = Math.max(end, range[0] + range[1]);
+                list.remove(index);
+            }
+        }
+        list.add(index, new int[]{start, end - start});
+        supported[table.ordinal()] = true;
+    }
+
+    /**
+     * Returns the valid ranges of the table in address order
+     *
+     * @param table Table
+     * @return List of {ref, count} pairs
+     */
+    public synchronized List<int[]> getRanges(Table table) {
+        List<int[]> list = new ArrayList<int[]>();
+        for (int[] range : ranges.get(table.ordinal())) {
+            list.add(new int[]{range[0], range[1]});
+        }
+        return list;
+    }
+
+    /**
+     * Returns true if every address of the block is inside a single valid range
+     *
+     * @param table Table
+     * @param ref   First address
+     * @param count Number of addresses
+     * @return True if the block can be read
+     */
+    public synchronized boolean isValid(Table table, int ref, int count) {
+        for (int[] range : ranges.get(table.ordinal())) {
+            if (ref >= range[0] && ref + count <= range[0] + range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits a read of the table into the requests needed to read all of the
+     * valid addresses within the block.  Invalid addresses are skipped and no
+     * request is larger than the device's block size.
+     *
+     * @param table Table
+     * @param ref   First address
+     * @param count Number of addresses
+     * @return List of {ref, count} requests in address order
+     */
+    public synchronized List<int[]> split(Table table, int ref, int count) {
+        List<int[]> requests = new ArrayList<int[]>();
+        int blockSize = maxBlockSize[table.ordinal()];
+        int end = ref + count;
+        for (int[] range : ranges.get(table.ordinal())) {
+            int start = Math.max(ref, range[0]);
+            int stop = Math.min(end, range[0] + range[1]);
+            while (start < stop) {
+                int length = Math.min(blockSize, stop - start);
+                requests.add(new int[]{start, length});
+                start += length;
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Saves the map to the file
+     *
+     * @param file File to write
+     * @throws IOException If the file cannot be written
+     */
+    public void store(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            store(out);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Saves the map to the stream as properties
+     *
+     * @param out Stream to write to
+     * @throws IOException If the stream cannot be written
+     */
+    public synchronized void store(OutputStream out) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("unit", Integer.toString(unitId));
+        for (Table table : Table.values()) {
+            props.setProperty(table.key + ".supported", Boolean.toString(supported[table.ordinal()]));
+            props.setProperty(table.key + ".maxBlock", Integer.toString(maxBlockSize[table.ordinal()]));
+            StringBuilder value = new StringBuilder();
+            for (int[] range : ranges.get(table.ordinal())) {
+                if (value.length() > 0) {
+                    value.append(',');
+                }
+                value.append(range[0]).append('-').append(range[0] + range[1] - 1);
+            }
+            props.setProperty(table.key + ".ranges", value.toString());
+        }
+        props.store(out, "Modbus register map");
+    }
+
+    /**
+     * Loads a map previously saved with {@link #store(File)}
+     *
+     * @param file File to read
+     * @return Register map
+     * @throws IOException If the file cannot be read or is invalid
+     */
+    public static RegisterMap load(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return load(in);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads a map previously saved with {@link #store(OutputStream)}
+     *
+     * @param in Stream to read from
+     * @return Register map
+     * @throws IOException If the stream cannot be read or is invalid
+     */
+    public static RegisterMap load(InputStream in) throws IOException {
+        Properties props = new Properties();
+        props.load(in);
+        try {
+            RegisterMap map = new RegisterMap(Integer.parseInt(props.getProperty("unit", "1")));
+            for (Table table : Table.values()) {
+                map.setMaxBlockSize(table, Integer.parseInt(props.getProperty(table.key + ".maxBlock", Integer.toString(table.getMaxBlockSize()))));
+                String value = props.getProperty(table.key + ".ranges", "");
+                for (String range : value.split(",")) {
+                    range = range.trim();
+                    if (!range.isEmpty()) {
+                        int dash = range.indexOf('-');
+                        int start = Integer.parseInt(range.substring(0, dash));
+                        int end = Integer.parseInt(range.substring(dash + 1));
+                        map.addRange(table, start, end - start + 1);
+                    }
+                }
+                map.setSupported(table, Boolean.parseBoolean(props.getProperty(table.key + ".supported", "false")));
+            }
+            return map;
+        }
+        catch (RuntimeException e) {
+            throw new IOException("Invalid register map - " + e.getMessage(), e);
+        }
+    }
+}
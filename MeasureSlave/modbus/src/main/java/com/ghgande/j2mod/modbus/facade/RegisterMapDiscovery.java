@@ -0,0 +1,252 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import android.util.Log;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.facade.RegisterMap.Table;
+
+/**
+ * Discovers the valid address ranges of a slave using as few requests as possible.
+ * <p>
+ * The address space of each table is sampled every <tt>stride</tt> addresses.
+ * When a sample succeeds, the start of the range is found by a binary search
+ * back towards the last failed sample, and the end of the range is found by
+ * growing the number of items read from the start (doubling, then a binary
+ * search) until the slave answers <tt>ILLEGAL_ADDRESS</tt>.  An
+ * <tt>ILLEGAL_VALUE</tt> answer is taken to mean the request was larger than
+ * the device allows, which is how the maximum block size is learned.
+ * <p>
+ * Valid ranges are assumed to be contiguous; ranges shorter than the stride
+ * that lie entirely between two samples will not be found, so the stride is
+ * a trade off between probe traffic and resolution.
+ */
+public class RegisterMapDiscovery {
+
+    private static final String TAG = "RegisterMapDiscovery";
+
+    /**
+     * Default distance between samples of the address space (=<tt>16</tt>)
+     */
+    public static final int DEFAULT_STRIDE = 16;
+
+    private final AbstractModbusMaster master;
+    private int stride = DEFAULT_STRIDE;
+    private int probeCount;
+
+    /**
+     * Creates a discovery tool that uses the given connected master
+     *
+     * @param master Master to send the probes with
+     */
+    public RegisterMapDiscovery(AbstractModbusMaster master) {
+        this.master = master;
+    }
+
+    /**
+     * Returns the distance between samples of the address space
+     *
+     * @return Stride
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Sets the distance between samples of the address space
+     *
+     * @param stride Stride, at least 1
+     */
+    public void setStride(int stride) {
+        this.stride = Math.max(1, stride);
+    }
+
+    /**
+     * Returns the number of requests sent by this tool
+     *
+     * @return Number of probes
+     */
+    public int getProbeCount() {
+        return probeCount;
+    }
+
+    /**
+     * Discovers all four tables of the unit between address 0 and the given end
+     *
+     * @param unitId Unit ID of the slave
+     * @param end    First address not to probe
+     * @return Register map
+     * @throws ModbusException If the slave cannot be reached
+     */
+    public RegisterMap discover(int unitId, int end) throws ModbusException {
+        RegisterMap map = new RegisterMap(unitId);
+        for (Table table : Table.values()) {
+            discover(map, table, 0, end);
+        }
+        return map;
+    }
+
+    /**
+     * Discovers a table between two addresses and adds the results to the map
+     *
+     * @param map   Map to update
+     * @param table Table to probe
+     * @param start First address to probe
+     * @param end   First address not to probe
+     * @throws ModbusException If the slave cannot be reached
+     */
+    public void discover(RegisterMap map, Table table, int start, int end) throws ModbusException {
+        int lastInvalid = start - 1;
+        int address = start;
+        while (address < end) {
+            int result = probe(map, table, address, 1);
+            if (result == Modbus.ILLEGAL_FUNCTION_EXCEPTION) {
+                Log.d(TAG, "Unit " + map.getUnitId() + " does not support " + table);
+                map.setSupported(table, false);
+                return;
+            }
+            if (result != 0) {
+                lastInvalid = address;
+                address += stride;
+                continue;
+            }
+            map.setSupported(table, true);
+
+            // Binary search for the first valid address after the last failed sample
+            int low = lastInvalid + 1;
+            int high = address;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (probe(map, table, middle, 1) == 0) {
+                    high = middle;
+                }
+                else {
+                    low = middle + 1;
+                }
+            }
+            int rangeStart = high;
+
+            // Walk forward a block at a time until the range ends
+            int current = address;
+            int rangeEnd;
+            while (true) {
+                int length = longestRead(map, table, current, end - current);
+                if (length < map.getMaxBlockSize(table) || current + length >= end) {
+                    rangeEnd = current + length;
+                    break;
+                }
+                current += length;
+                if (probe(map, table, current, 1) != 0) {
+                    rangeEnd = current;
+                    break;
+                }
+            }
+            map.addRange(table, rangeStart, rangeEnd - rangeStart);
+            Log.d(TAG, String.format("Unit %d %s valid %d-%d", map.getUnitId(), table, rangeStart, rangeEnd - 1));
+
+            lastInvalid = rangeEnd;
+            address = rangeEnd + 1;
+        }
+    }
+
+    /**
+     * Finds the largest number of items that can be read from a valid address,
+     * reducing the map's block size if the device rejects the quantity
+     *
+     * @param map   Map holding the block size
+     * @param table Table to probe
+     * @param ref   Valid address to read from
+     * @param limit Largest number of items of interest
+     * @return Number of items that can be read, at least 1
+     * @throws ModbusException If the slave cannot be reached
+     */
+    private int longestRead(RegisterMap map, Table table, int ref, int limit) throws ModbusException {
+        int good = 1;
+        int bad = -1;
+
+        // Double the count until it fails or reaches the block size
+        while (bad < 0) {
+            int max = Math.min(map.getMaxBlockSize(table), limit);
+            if (good >= max) {
+                return max;
+            }
+            int count = Math.min(good * 2, max);
+            int result = probe(map, table, ref, count);
+            if (result == 0) {
+                good = count;
+            }
+            else if (result == Modbus.ILLEGAL_VALUE_EXCEPTION) {
+                map.setMaxBlockSize(table, count - 1);
+            }
+            else {
+                bad = count;
+            }
+        }
+
+        // Binary search between the last good count and the first bad one
+        while (bad - good > 1) {
+            int count = (good + bad) >>> 1;
+            int result = probe(map, table, ref, count);
+            if (result == 0) {
+                good = count;
+            }
+            else {
+                if (result == Modbus.ILLEGAL_VALUE_EXCEPTION) {
+                    map.setMaxBlockSize(table, count - 1);
+                }
+                bad = count;
+            }
+        }
+        return good;
+    }
+
+    /**
+     * Sends a single read request
+     *
+     * @param map   Map holding the unit ID
+     * @param table Table to read
+     * @param ref   First address
+     * @param count Number of items
+     * @return 0 if the read succeeded, otherwise the exception code returned by the slave
+     * @throws ModbusException If the slave cannot be reached
+     */
+    private int probe(RegisterMap map, Table table, int ref, int count) throws ModbusException {
+        probeCount++;
+        try {
+            switch (table) {
+                case COILS:
+                    master.readCoils(map.getUnitId(), ref, count);
+                    break;
+                case DISCRETE_INPUTS:
+                    master.readInputDiscretes(map.getUnitId(), ref, count);
+                    break;
+                case INPUT_REGISTERS:
+                    master.readInputRegisters(map.getUnitId(), ref, count);
+                    break;
+                default:
+                    master.readMultipleRegisters(map.getUnitId(), ref, count);
+                    break;
+            }
+            return 0;
+        }
+        catch (ModbusSlaveException e) {
+            return e.getType();
+        }
+    }
+}
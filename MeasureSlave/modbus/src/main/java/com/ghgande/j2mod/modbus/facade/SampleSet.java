@@ -0,0 +1,187 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+
+/**
+ * The results of one round of a {@link SynchronizedSampler}: the response of
+ * every target with the <tt>System.nanoTime()</tt> just before its request
+ * was sent and just after its response was received.
+ * <p>
+ * The instant a slave sampled its values is not known, but it lies between
+ * the send and receive times; the midpoint is taken as the best estimate and
+ * the skew of the set is the spread of the midpoints.
+ */
+public class SampleSet {
+
+    private final long scheduledTime;
+    final long[] sendTimes;
+    final long[] receiveTimes;
+    final ModbusResponse[] responses;
+    final ModbusException[] errors;
+
+    SampleSet(long scheduledTime, int size) {
+        this.scheduledTime = scheduledTime;
+        sendTimes = new long[size];
+        receiveTimes = new long[size];
+        responses = new ModbusResponse[size];
+        errors = new ModbusException[size];
+    }
+
+    /**
+     * Returns the number of targets
+     *
+     * @return Size
+     */
+    public int size() {
+        return responses.length;
+    }
+
+    /**
+     * Returns the instant the requests were scheduled for
+     *
+     * @return <tt>System.nanoTime()</tt> value
+     */
+    public long getScheduledTime() {
+        return scheduledTime;
+    }
+
+    /**
+     * Returns the time just before the request of a target was sent
+     *
+     * @param target Target number
+     * @return <tt>System.nanoTime()</tt> value
+     */
+    public long getSendTime(int target) {
+        return sendTimes[target];
+    }
+
+    /**
+     * Returns the time just after the response of a target was received
+     *
+     * @param target Target number
+     * @return <tt>System.nanoTime()</tt> value
+     */
+    public long getReceiveTime(int target) {
+        return receiveTimes[target];
+    }
+
+    /**
+     * Returns the round trip time of a target
+     *
+     * @param target Target number
+     * @return Time in nanoseconds
+     */
+    public long getRoundTrip(int target) {
+        return receiveTimes[target] - sendTimes[target];
+    }
+
+    /**
+     * Returns the response of a target
+     *
+     * @param target Target number
+     * @return Response or null if the request failed
+     */
+    public ModbusResponse getResponse(int target) {
+        return responses[target];
+    }
+
+    /**
+     * Returns the error of a target
+     *
+     * @param target Target number
+     * @return Error or null if the request succeeded
+     */
+    public ModbusException getError(int target) {
+        return errors[target];
+    }
+
+    /**
+     * Returns true if every target responded
+     *
+     * @return True if complete
+     */
+    public boolean isComplete() {
+        for (ModbusException error : errors) {
+            if (error != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the spread of the send times of the targets that responded
+     *
+     * @return Skew in nanoseconds
+     */
+    public long getSendSkew() {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < responses.length; i++) {
+            if (errors[i] == null) {
+                min = Math.min(min, sendTimes[i]);
+                max = Math.max(max, sendTimes[i]);
+            }
+        }
+        return max < min ? 0 : max - min;
+    }
+
+    /**
+     * Returns the spread of the estimated sampling instants (the midpoints
+     * between send and receive) of the targets that responded
+     *
+     * @return Skew in nanoseconds
+     */
+    public long getSkew() {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < responses.length; i++) {
+            if (errors[i] == null) {
+                long midpoint = sendTimes[i] + (receiveTimes[i] - sendTimes[i]) / 2;
+                min = Math.min(min, midpoint);
+                max = Math.max(max, midpoint);
+            }
+        }
+        return max < min ? 0 : max - min;
+    }
+
+    /**
+     * Returns the widest window any responding target could have sampled in,
+     * from the earliest send to the latest receive
+     *
+     * @return Bound in nanoseconds
+     */
+    public long getSkewBound() {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < responses.length; i++) {
+            if (errors[i] == null) {
+                min = Math.min(min, sendTimes[i]);
+                max = Math.max(max, receiveTimes[i]);
+            }
+        }
+        return max < min ? 0 : max - min;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d targets, skew %d us (send %d us, bound %d us)%s", size(), getSkew() / 1000,
+                getSendSkew() / 1000, getSkewBound() / 1000, isComplete() ? "" : ", incomplete");
+    }
+}
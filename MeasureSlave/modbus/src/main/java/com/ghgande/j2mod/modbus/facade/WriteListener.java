@@ -0,0 +1,36 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import com.ghgande.j2mod.modbus.facade.RegisterMap.Table;
+
+/**
+ * Interface implemented by consumers of the writes made through a master,
+ * e.g. to poll the values written back from the slave
+ */
+public interface WriteListener {
+
+    /**
+     * Called on the writing thread once the slave has accepted a write.  The
+     * thread may hold the lock of the master, so the call must not block.
+     *
+     * @param unitId Unit ID written to
+     * @param table  Table written to
+     * @param ref    First address written
+     * @param count  Number of items written
+     */
+    void written(int unitId, Table table, int ref, int count);
+}
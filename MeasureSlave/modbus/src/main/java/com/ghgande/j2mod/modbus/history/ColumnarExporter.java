@@ -0,0 +1,483 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.history;
+
+import android.util.Log;
+
+import com.ghgande.j2mod.modbus.facade.RegisterMap.Table;
+import com.ghgande.j2mod.modbus.tag.PollBlock;
+import com.ghgande.j2mod.modbus.tag.PollBlockListener;
+import com.ghgande.j2mod.modbus.tag.TagDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes every polled block with its timestamp to columnar segment files for
+ * offline analysis.
+ * <p>
+ * Poll threads copy the raw items of a block into a preallocated ring buffer
+ * and return; if the ring is full the row is dropped and counted rather than
+ * blocking the poll.  A single writer thread collects the rows of each block
+ * into chunks and appends them to memory mapped segment files, starting a new
+ * file when one is full.
+ * <p>
+ * Every segment starts with a schema header describing the blocks, so each
+ * file can be read on its own.  All values are big endian and every record
+ * starts on an 8 byte boundary:
+ * <pre>
+ *   header  int magic 'J2MC', int version, long created, int segment number,
+ *           int block count, int header length, int rows per chunk,
+ *           then per block: int unit, int function code, int ref, int count
+ *   chunk   int magic 'CHNK', int block, int rows, int reserved,
+ *           long timestamp x rows,
+ *           then per item of the block: short value x rows
+ * </pre>
+ * Register values are stored as 16-bit words and coils and discretes as 0 or
+ * 1.  A chunk magic is written after the rest of the chunk, and a zero magic
+ * marks the end of the data in a segment.
+ * <p>
+ * The blocks are fixed when the exporter is started, either one by one with
+ * {@link #addBlock(int, Table, int, int)} or all of the blocks of a
+ * {@link TagDatabase} with {@link #attach(TagDatabase)}.
+ */
+public class ColumnarExporter implements PollBlockListener {
+
+    private static final String TAG = "ColumnarExporter";
+
+    /**
+     * Default size of a segment file (=<tt>16 MB</tt>)
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Default number of rows the ring buffer holds (=<tt>4096</tt>)
+     */
+    public static final int DEFAULT_RING_SIZE = 4096;
+
+    /**
+     * Default number of rows of a block written as one chunk (=<tt>256</tt>)
+     */
+    public static final int DEFAULT_CHUNK_ROWS = 256;
+
+    /**
+     * Longest time a partly filled chunk waits before it is written (=<tt>1000</tt> ms)
+     */
+    public static final long FLUSH_INTERVAL = 1000;
+
+    private static final int MAGIC = 0x4A324D43;
+    private static final int CHUNK_MAGIC = 0x43484E4B;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER = 32;
+    private static final int BLOCK_ENTRY = 16;
+    private static final int CHUNK_HEADER = 16;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int ringSize;
+    private final int chunkRows;
+    private final List<int[]> schema = new ArrayList<int[]>();
+    private volatile int[] byPollBlock = new int[0];
+    private int[] counts;
+
+    // Ring buffer, written under the producer lock and read by the writer
+    private final Object producerLock = new Object();
+    private long[] ringTimes;
+    private int[] ringBlocks;
+    private short[] ringItems;
+    private int slotSize;
+    private long head;
+    private volatile long published;
+    private volatile long consumed;
+    private long dropped;
+
+    // Staged chunks and the current segment, used by the writer only
+    private long[][] stageTimes;
+    private short[][] stageItems;
+    private int[] stageRows;
+    private MappedByteBuffer segment;
+    private int position;
+    private int segmentNumber;
+
+    private volatile Thread writer;
+    private volatile boolean running;
+    private volatile long exported;
+    private volatile int segmentCount;
+
+    /**
+     * Creates an exporter with the default sizes
+     *
+     * @param directory Directory to write the segment files to
+     */
+    public ColumnarExporter(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_RING_SIZE, DEFAULT_CHUNK_ROWS);
+    }
+
+    /**
+     * Creates an exporter
+     *
+     * @param directory   Directory to write the segment files to
+     * @param segmentSize Size of a segment file in bytes
+     * @param ringSize    Number of rows the ring buffer holds, rounded up to a power of two
+     * @param chunkRows   Number of rows of a block written as one chunk
+     */
+    public ColumnarExporter(File directory, int segmentSize, int ringSize, int chunkRows) {
+        if (ringSize < 1 || chunkRows < 1) {
+            throw new IllegalArgumentException("Ring size and chunk rows must be positive");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        int size = 1;
+        while (size < ringSize) {
+            size <<= 1;
+        }
+        this.ringSize = size;
+        this.chunkRows = chunkRows;
+    }
+
+    /**
+     * Adds a block to the schema
+     *
+     * @param unitId Unit identifier
+     * @param table  Table the block is read from
+     * @param ref    First address
+     * @param count  Number of items
+     * @return Block number to pass to {@link #offer(int, long, int[])}
+     */
+    public synchronized int addBlock(int unitId, Table table, int ref, int count) {
+        if (writer != null) {
+            throw new IllegalStateException("Exporter has already been started");
+        }
+        if (count < 1 || count > table.getMaxBlockSize()) {
+            throw new IllegalArgumentException("Invalid block size " + count);
+        }
+        schema.add(new int[]{unitId, table.getFunctionCode(), ref, count});
+        return schema.size() - 1;
+    }
+
+    /**
+     * Adds all of the blocks of a database to the schema and exports every
+     * read of them.  The database is compiled if it has not been, and should
+     * not have tags added afterwards as that changes its blocks.
+     *
+     * @param database Database to export
+     */
+    public synchronized void attach(TagDatabase database) {
+        database.compile();
+        for (PollBlock block : database.getBlocks()) {
+            int number = addBlock(block.getUnitId(), block.getTable(), block.getRef(), block.getCount());
+            if (block.getIndex() >= byPollBlock.length) {
+                int length = byPollBlock.length;
+                byPollBlock = Arrays.copyOf(byPollBlock, block.getIndex() + 1);
+                Arrays.fill(byPollBlock, length, byPollBlock.length, -1);
+            }
+            byPollBlock[block.getIndex()] = number;
+        }
+        database.addPollBlockListener(this);
+    }
+
+    /**
+     * Starts the writer thread
+     *
+     * @throws IOException if the first segment cannot be created
+     */
+    public synchronized void start() throws IOException {
+        if (writer != null) {
+            return;
+        }
+        if (schema.isEmpty()) {
+            throw new IllegalStateException("No blocks to export");
+        }
+        int maxCount = 0;
+        counts = new int[schema.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = schema.get(i)[3];
+            maxCount = Math.max(maxCount, counts[i]);
+        }
+        int largestChunk = CHUNK_HEADER + chunkRows * 8 + align(chunkRows * 2 * maxCount);
+        if (headerLength() + largestChunk + 4 > segmentSize) {
+            throw new IllegalArgumentException("Segment size too small for a chunk of " + chunkRows + " rows");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        slotSize = maxCount;
+        ringTimes = new long[ringSize];
+        ringBlocks = new int[ringSize];
+        ringItems = new short[ringSize * slotSize];
+        stageTimes = new long[schema.size()][chunkRows];
+        stageItems = new short[schema.size()][];
+        stageRows = new int[schema.size()];
+        for (int i = 0; i < counts.length; i++) {
+            stageItems[i] = new short[counts[i] * chunkRows];
+        }
+        startSegment();
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Modbus Columnar Exporter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stops the writer once it has written everything in the ring
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = writer;
+            running = false;
+        }
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Hands a row to the writer without blocking
+     *
+     * @param block     Block number from {@link #addBlock(int, Table, int, int)}
+     * @param timestamp Time of the read in milliseconds
+     * @param items     One 16-bit word or bit per item of the block
+     * @return False if the row was dropped because the ring is full or the exporter is stopped
+     */
+    public boolean offer(int block, long timestamp, int[] items) {
+        if (!running) {
+            return false;
+        }
+        int count = counts[block];
+        synchronized (producerLock) {
+            if (head - consumed >= ringSize) {
+                dropped++;
+                return false;
+            }
+            int slot = (int) head & (ringSize - 1);
+            ringTimes[slot] = timestamp;
+            ringBlocks[slot] = block;
+            int base = slot * slotSize;
+            for (int i = 0; i < count; i++) {
+                ringItems[base + i] = (short) items[i];
+            }
+            published = ++head;
+        }
+        return true;
+    }
+
+    @Override
+    public void blockPolled(PollBlock block, int[] items, long timestamp) {
+        int[] map = byPollBlock;
+        if (block.getIndex() < map.length && map[block.getIndex()] >= 0) {
+            offer(map[block.getIndex()], timestamp, items);
+        }
+    }
+
+    /**
+     * Returns the number of rows written to the segments
+     *
+     * @return Row count
+     */
+    public long getExportedCount() {
+        return exported;
+    }
+
+    /**
+     * Returns the number of rows dropped because the ring was full
+     *
+     * @return Dropped count
+     */
+    public long getDroppedCount() {
+        synchronized (producerLock) {
+            return dropped;
+        }
+    }
+
+    /**
+     * Returns the number of rows waiting in the ring
+     *
+     * @return Backlog
+     */
+    public int getBacklog() {
+        return (int) (published - consumed);
+    }
+
+    /**
+     * Returns the number of segment files started
+     *
+     * @return Segment count
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Writer loop; moves rows from the ring into the staged chunks and writes
+     * full chunks, and partial ones every flush interval
+     */
+    private void drain() {
+        long lastFlush = System.currentTimeMillis();
+        try {
+            while (true) {
+                boolean stopping = !running;
+                long available = published;
+                long next = consumed;
+                for (; next < available; next++) {
+                    int slot = (int) next & (ringSize - 1);
+                    stage(ringBlocks[slot], ringTimes[slot], slot * slotSize);
+                }
+                consumed = next;
+                long now = System.currentTimeMillis();
+                if (stopping || now - lastFlush >= FLUSH_INTERVAL) {
+                    for (int i = 0; i < stageRows.length; i++) {
+                        writeChunk(i);
+                    }
+                    lastFlush = now;
+                }
+                if (stopping) {
+                    break;
+                }
+                if (available == published) {
+                    LockSupport.parkNanos(1000000);
+                }
+            }
+            segment.force();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Export stopped - " + e.getMessage());
+            running = false;
+        }
+        finally {
+            synchronized (this) {
+                writer = null;
+            }
+        }
+    }
+
+    /**
+     * Copies a row into the staged chunk of its block, writing the chunk when full
+     */
+    private void stage(int block, long timestamp, int base) throws IOException {
+        int rows = stageRows[block];
+        int count = counts[block];
+        stageTimes[block][rows] = timestamp;
+        short[] items = stageItems[block];
+        for (int i = 0; i < count; i++) {
+            items[i * chunkRows + rows] = ringItems[base + i];
+        }
+        stageRows[block] = rows + 1;
+        if (rows + 1 == chunkRows) {
+            writeChunk(block);
+        }
+    }
+
+    /**
+     * Writes the staged rows of a block as one chunk
+     */
+    private void writeChunk(int block) throws IOException {
+        int rows = stageRows[block];
+        if (rows == 0) {
+            return;
+        }
+        int count = counts[block];
+        int length = CHUNK_HEADER + rows * 8 + align(rows * 2 * count);
+        if (position + length + 4 > segment.capacity()) {
+            segment.force();
+            startSegment();
+        }
+        int start = position;
+        segment.position(start + 4);
+        segment.putInt(block);
+        segment.putInt(rows);
+        segment.putInt(0);
+        long[] times = stageTimes[block];
+        for (int i = 0; i < rows; i++) {
+            segment.putLong(times[i]);
+        }
+        short[] items = stageItems[block];
+        for (int item = 0; item < count; item++) {
+            int base = item * chunkRows;
+            for (int i = 0; i < rows; i++) {
+                segment.putShort(items[base + i]);
+            }
+        }
+        segment.putInt(start, CHUNK_MAGIC);
+        position = start + length;
+        stageRows[block] = 0;
+        exported += rows;
+    }
+
+    /**
+     * Creates the next segment file and writes the schema header
+     */
+    private void startSegment() throws IOException {
+        File file;
+        do {
+            file = new File(directory, String.format("%08d.col", ++segmentNumber));
+        } while (file.exists());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(segmentSize);
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        finally {
+            raf.close();
+        }
+        segment.putInt(MAGIC);
+        segment.putInt(VERSION);
+        segment.putLong(System.currentTimeMillis());
+        segment.putInt(segmentNumber);
+        segment.putInt(schema.size());
+        segment.putInt(headerLength());
+        segment.putInt(chunkRows);
+        for (int[] block : schema) {
+            for (int field : block) {
+                segment.putInt(field);
+            }
+        }
+        position = headerLength();
+        segmentCount++;
+    }
+
+    /**
+     * Returns the length of the schema header
+     */
+    private int headerLength() {
+        return align(FILE_HEADER + schema.size() * BLOCK_ENTRY);
+    }
+
+    /**
+     * Rounds a length up to a multiple of 8
+     */
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.history;
+
+/**
+ * Summary of the valid samples of a series over a time range, as returned by
+ * the queries of a {@link TimeSeriesStore}.  <tt>NaN</tt> samples, recorded
+ * while a tag had no valid value, are not counted.
+ */
+public class Rollup {
+
+    private final long start;
+    private final long end;
+    private int count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double sum;
+
+    Rollup(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Returns the start of the range
+     *
+     * @return Time in milliseconds, inclusive
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the end of the range
+     *
+     * @return Time in milliseconds, exclusive
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the number of valid samples in the range
+     *
+     * @return Count
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the smallest value
+     *
+     * @return Minimum or <tt>NaN</tt> if there are no samples
+     */
+    public double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    /**
+     * Returns the largest value
+     *
+     * @return Maximum or <tt>NaN</tt> if there are no samples
+     */
+    public double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    /**
+     * Returns the sum of the values
+     *
+     * @return Sum
+     */
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * Returns the mean of the values
+     *
+     * @return Average or <tt>NaN</tt> if there are no samples
+     */
+    public double getAverage() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * Adds a sample
+     */
+    void add(double value) {
+        if (!Double.isNaN(value)) {
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+    }
+
+    /**
+     * Adds the summary of a whole block
+     */
+    void merge(int count, double min, double max, double sum) {
+        if (count > 0) {
+            this.count += count;
+            this.min = Math.min(this.min, min);
+            this.max = Math.max(this.max, max);
+            this.sum += sum;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d-%d count=%d min=%s max=%s avg=%s", start, end, count, getMin(), getMax(), getAverage());
+    }
+}
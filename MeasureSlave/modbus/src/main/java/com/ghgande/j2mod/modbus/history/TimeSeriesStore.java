@@ -0,0 +1,765 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.history;
+
+import android.util.Log;
+
+import com.ghgande.j2mod.modbus.tag.ChangeSet;
+import com.ghgande.j2mod.modbus.tag.ChangeSetListener;
+import com.ghgande.j2mod.modbus.tag.TagDatabase;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An embedded store of compressed time series, for keeping the history of
+ * polled values on the device itself.
+ * <p>
+ * Samples are compressed per series as they arrive, timestamps as delta of
+ * deltas and values XORed with their predecessor (see {@link SeriesEncoder}),
+ * so a value polled at a steady rate that does not change costs two bits.
+ * When the open block of a series is full it is appended to the current
+ * segment, a memory mapped file of fixed size, together with its time range,
+ * count, minimum, maximum and sum.  When a segment is full the next one is
+ * started and, if a limit is set, the oldest one is deleted.
+ * <p>
+ * Queries return raw samples or {@link Rollup}s over a time range.  A block
+ * that falls wholly inside a rollup bucket is summarised from its header
+ * without being decoded, so rollups over long ranges only decode the blocks
+ * at the edges of the buckets.
+ * <p>
+ * {@link #attach(TagDatabase)} records every tag a database reports, one
+ * series per tag name.  As tags are reported by exception a value that does
+ * not change is recorded once and holds until the next sample.  Open blocks
+ * are kept in memory until they are full, {@link #flush()} or
+ * {@link #close()} is called, so samples since the last flush are lost if
+ * the process dies.  The existing segments are read back when the store is
+ * opened.
+ * <p>
+ * Every record in a segment starts with its length and ends with a CRC of
+ * the rest of it, so reading a segment back stops at the first record torn
+ * by a crash, or overwritten in part by a shorter record after one.
+ */
+public class TimeSeriesStore {
+
+    private static final String TAG = "TimeSeriesStore";
+
+    /**
+     * Default size of a segment file (=<tt>4 MB</tt>)
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Default size of a compressed block (=<tt>1024</tt> bytes)
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private static final String SUFFIX = ".seg";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte RECORD_SERIES = 1;
+    private static final byte RECORD_BLOCK = 2;
+    private static final int SERIES_HEADER = 4 + 1 + 4 + 2;
+    private static final int BLOCK_HEADER = 4 + 1 + 4 + 8 + 8 + 4 + 4 + 8 + 8 + 8 + 4;
+    private static final int CRC_LENGTH = 4;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int blockSize;
+    private final Map<String, Series> series = new LinkedHashMap<String, Series>();
+    private final List<Series> seriesById = new ArrayList<Series>();
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final SeriesDecoder decoder = new SeriesDecoder();
+    private final byte[] scratch;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer recordBuffer;
+    private Segment current;
+    private int maxSegments;
+    private long sampleCount;
+    private long storedBytes;
+    private boolean closed;
+
+    /**
+     * Opens a store with the default segment and block sizes
+     *
+     * @param directory Directory holding the segment files
+     * @throws IOException if the directory or its segments cannot be opened
+     */
+    public TimeSeriesStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Opens a store, reading back the segments already in the directory
+     *
+     * @param directory   Directory holding the segment files
+     * @param segmentSize Size of a segment file in bytes, at least 64 KB
+     * @param blockSize   Size of a compressed block in bytes, from 64 to a quarter of the segment size
+     * @throws IOException if the directory or its segments cannot be opened
+     */
+    public TimeSeriesStore(File directory, int segmentSize, int blockSize) throws IOException {
+        if (segmentSize < 64 * 1024) {
+            throw new IllegalArgumentException("Segment size must be at least 64 KB");
+        }
+        if (blockSize < 64 || blockSize > segmentSize / 4) {
+            throw new IllegalArgumentException("Block size must be from 64 bytes to a quarter of the segment size");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.blockSize = blockSize;
+        scratch = new byte[blockSize];
+        recordBuffer = ByteBuffer.allocate(BLOCK_HEADER + blockSize + CRC_LENGTH);
+        recover();
+    }
+
+    /**
+     * Returns the number of segments kept before the oldest is deleted
+     *
+     * @return Limit or 0 if unlimited
+     */
+    public synchronized int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /**
+     * Sets the number of segments kept; the oldest segment is deleted when a
+     * new one would exceed the limit
+     *
+     * @param maxSegments Limit, 0 for unlimited
+     */
+    public synchronized void setMaxSegments(int maxSegments) {
+        this.maxSegments = Math.max(0, maxSegments);
+    }
+
+    /**
+     * Records a sample
+     *
+     * @param name  Series name
+     * @param time  Time in milliseconds
+     * @param value Value, <tt>NaN</tt> for no valid value
+     * @throws IOException if a segment cannot be written
+     */
+    public synchronized void append(String name, long time, double value) throws IOException {
+        checkOpen();
+        append(getSeries(name), time, value);
+    }
+
+    /**
+     * Records every tag the database reports from now on, using the tag
+     * names as series names
+     *
+     * @param database Database to record
+     */
+    public void attach(final TagDatabase database) {
+        database.addChangeSetListener(new ChangeSetListener() {
+            private Series[] byTag = new Series[0];
+
+            @Override
+            public void changed(ChangeSet changes) {
+                synchronized (TimeSeriesStore.this) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        for (int i = 0; i < changes.size(); i++) {
+                            int index = changes.getIndex(i);
+                            if (index >= byTag.length) {
+                                byTag = Arrays.copyOf(byTag, Math.max(index + 1, byTag.length * 2));
+                            }
+                            Series target = byTag[index];
+                            if (target == null) {
+                                target = getSeries(database.getTag(index).getName());
+                                byTag[index] = target;
+                            }
+                            append(target, changes.getTimestamp(), changes.getValue(i));
+                        }
+                    }
+                    catch (IOException e) {
+                        Log.w(TAG, "Cannot record change set", e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Summarises a series over a time range
+     *
+     * @param name Series name
+     * @param from Start time in milliseconds, inclusive
+     * @param to   End time in milliseconds, exclusive
+     * @return Rollup, empty if the series is unknown
+     */
+    public Rollup query(String name, long from, long to) {
+        return rollup(name, from, to, to - from)[0];
+    }
+
+    /**
+     * Summarises a series over consecutive intervals of a time range
+     *
+     * @param name     Series name
+     * @param from     Start time in milliseconds, inclusive
+     * @param to       End time in milliseconds, exclusive
+     * @param interval Length of each bucket in milliseconds
+     * @return One rollup per bucket, the last one possibly shorter
+     */
+    public synchronized Rollup[] rollup(String name, long from, long to, long interval) {
+        if (to <= from || interval <= 0) {
+            throw new IllegalArgumentException("Empty time range or interval");
+        }
+        long buckets = (to - from + interval - 1) / interval;
+        if (buckets > 1000000) {
+            throw new IllegalArgumentException("Too many buckets - " + buckets);
+        }
+        Rollup[] result = new Rollup[(int) buckets];
+        for (int i = 0; i < result.length; i++) {
+            long start = from + i * interval;
+            result[i] = new Rollup(start, Math.min(to, start + interval));
+        }
+        Series target = series.get(name);
+        if (target == null) {
+            return result;
+        }
+        int blockCount = target.blocks.size();
+        for (int i = 0; i <= blockCount; i++) {
+            Block block = i < blockCount ? target.blocks.get(i) : target.openBlock();
+            if (block == null || block.maxTime < from || block.minTime >= to) {
+                continue;
+            }
+            if (block.minTime >= from && block.maxTime < to) {
+                long first = (block.minTime - from) / interval;
+                if (first == (block.maxTime - from) / interval) {
+                    result[(int) first].merge(block.valid, block.min, block.max, block.sum);
+                    continue;
+                }
+            }
+            decode(target, block);
+            while (decoder.next()) {
+                long time = decoder.time;
+                if (time >= from && time < to) {
+                    result[(int) ((time - from) / interval)].add(decoder.value);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the raw samples of a series in a time range, in the order they
+     * were recorded
+     *
+     * @param name   Series name
+     * @param from   Start time in milliseconds, inclusive
+     * @param to     End time in milliseconds, exclusive
+     * @param times  Array to receive the timestamps
+     * @param values Array to receive the values
+     * @return Number of samples read, at most the length of the arrays
+     */
+    public synchronized int read(String name, long from, long to, long[] times, double[] values) {
+        Series target = series.get(name);
+        int limit = Math.min(times.length, values.length);
+        int count = 0;
+        if (target == null) {
+            return 0;
+        }
+        int blockCount = target.blocks.size();
+        for (int i = 0; i <= blockCount && count < limit; i++) {
+            Block block = i < blockCount ? target.blocks.get(i) : target.openBlock();
+            if (block == null || block.maxTime < from || block.minTime >= to) {
+                continue;
+            }
+            decode(target, block);
+            while (count < limit && decoder.next()) {
+                if (decoder.time >= from && decoder.time < to) {
+                    times[count] = decoder.time;
+                    values[count++] = decoder.value;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the names of the series in the store
+     *
+     * @return List of names
+     */
+    public synchronized List<String> getSeriesNames() {
+        return new ArrayList<String>(series.keySet());
+    }
+
+    /**
+     * Returns the number of samples held
+     *
+     * @return Sample count
+     */
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the number of bytes the samples take, in the segments and in
+     * the open blocks
+     *
+     * @return Size in bytes
+     */
+    public synchronized long getStoredBytes() {
+        long total = storedBytes;
+        for (Series entry : seriesById) {
+            if (entry != null) {
+                total += entry.encoder.byteLength();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Writes the open blocks to the current segment and forces it to storage
+     *
+     * @throws IOException if the segment cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        for (Series entry : seriesById) {
+            if (entry != null) {
+                seal(entry);
+            }
+        }
+        current.buffer.force();
+    }
+
+    /**
+     * Flushes the open blocks and closes the store
+     *
+     * @throws IOException if the open blocks cannot be written
+     */
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            try {
+                flush();
+            }
+            finally {
+                closed = true;
+            }
+        }
+    }
+
+    /**
+     * Throws if the store has been closed
+     */
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Time series store is closed");
+        }
+    }
+
+    /**
+     * Returns a series, creating and recording it if it is new
+     *
+     * @param name Series name
+     * @return Series
+     */
+    private Series getSeries(String name) throws IOException {
+        Series entry = series.get(name);
+        if (entry == null) {
+            entry = define(seriesById.size(), name);
+            writeSeries(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Adds a series to the maps
+     */
+    private Series define(int id, String name) {
+        while (seriesById.size() <= id) {
+            seriesById.add(null);
+        }
+        Series entry = seriesById.get(id);
+        if (entry == null) {
+            entry = new Series(id, name, new SeriesEncoder(blockSize));
+            seriesById.set(id, entry);
+            series.put(name, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Appends a sample to the open block of a series, sealing it first if full
+     */
+    private void append(Series target, long time, double value) throws IOException {
+        if (!target.encoder.hasRoom()) {
+            seal(target);
+        }
+        target.encoder.append(time, value);
+        sampleCount++;
+    }
+
+    /**
+     * Writes the open block of a series to the current segment and empties it
+     */
+    private void seal(Series target) throws IOException {
+        SeriesEncoder encoder = target.encoder;
+        if (encoder.count == 0) {
+            return;
+        }
+        int payload = encoder.byteLength();
+        int length = BLOCK_HEADER + payload + CRC_LENGTH;
+        reserve(length);
+        ByteBuffer buffer = startRecord(RECORD_BLOCK, length);
+        buffer.putInt(target.id);
+        buffer.putLong(encoder.minTime);
+        buffer.putLong(encoder.maxTime);
+        buffer.putInt(encoder.count);
+        buffer.putInt(encoder.valid);
+        buffer.putDouble(encoder.min);
+        buffer.putDouble(encoder.max);
+        buffer.putDouble(encoder.sum);
+        buffer.putInt(encoder.bitLength);
+        buffer.put(encoder.data, 0, payload);
+        int start = writeRecord();
+        target.blocks.add(new Block(current, start + BLOCK_HEADER, encoder.bitLength, encoder.count,
+                encoder.valid, encoder.minTime, encoder.maxTime, encoder.min, encoder.max, encoder.sum));
+        storedBytes += length;
+        encoder.reset();
+    }
+
+    /**
+     * Writes the name of a series to the current segment
+     */
+    private void writeSeries(Series entry) throws IOException {
+        byte[] name = entry.name.getBytes(UTF8);
+        if (name.length > 0xffff) {
+            throw new IllegalArgumentException("Series name too long");
+        }
+        int length = SERIES_HEADER + name.length + CRC_LENGTH;
+        reserve(length);
+        ByteBuffer buffer = startRecord(RECORD_SERIES, length);
+        buffer.putInt(entry.id);
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+        writeRecord();
+    }
+
+    /**
+     * Starts building a record in the record buffer, growing it if needed
+     *
+     * @param type   Record type
+     * @param length Length of the whole record including its CRC
+     * @return Buffer to put the rest of the record in
+     */
+    private ByteBuffer startRecord(byte type, int length) {
+        if (recordBuffer.capacity() < length) {
+            recordBuffer = ByteBuffer.allocate(length);
+        }
+        ByteBuffer buffer = recordBuffer;
+        buffer.clear();
+        buffer.putInt(length);
+        buffer.put(type);
+        return buffer;
+    }
+
+    /**
+     * Adds the CRC to the record built in the record buffer and copies it to
+     * the current segment
+     *
+     * @return Position of the record in the segment
+     */
+    private int writeRecord() {
+        ByteBuffer buffer = recordBuffer;
+        crc.reset();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        int start = current.position;
+        current.buffer.position(start);
+        current.buffer.put(buffer.array(), 0, buffer.position());
+        current.position = start + buffer.position();
+        return start;
+    }
+
+    /**
+     * Makes sure the current segment has room for a record and the zero length
+     * that marks the end after it, starting a new segment if not
+     */
+    private void reserve(int length) throws IOException {
+        if (current.position + length + 4 > current.buffer.capacity()) {
+            startSegment();
+        }
+    }
+
+    /**
+     * Starts a new segment, repeating the series names at its start so every
+     * segment can be read on its own, and drops the oldest segment if over
+     * the limit
+     */
+    private void startSegment() throws IOException {
+        int number = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).number + 1;
+        File file = new File(directory, String.format("%08d%s", number, SUFFIX));
+        if (current != null) {
+            current.buffer.force();
+        }
+        current = Segment.map(file, number, segmentSize);
+        segments.add(current);
+        for (Series entry : seriesById) {
+            if (entry != null) {
+                if (current.position + SERIES_HEADER + entry.name.length() * 3 + CRC_LENGTH + 4 > current.buffer.capacity()) {
+                    throw new IOException("Segment size too small for the series names");
+                }
+                writeSeries(entry);
+            }
+        }
+        while (maxSegments > 0 && segments.size() > maxSegments) {
+            dropOldest();
+        }
+    }
+
+    /**
+     * Deletes the oldest segment and forgets its blocks
+     */
+    private void dropOldest() {
+        Segment oldest = segments.remove(0);
+        for (Series entry : seriesById) {
+            if (entry != null) {
+                while (!entry.blocks.isEmpty() && entry.blocks.get(0).segment == oldest) {
+                    Block block = entry.blocks.remove(0);
+                    sampleCount -= block.count;
+                    storedBytes -= BLOCK_HEADER + (block.bits + 7) / 8 + CRC_LENGTH;
+                }
+            }
+        }
+        if (!oldest.file.delete()) {
+            Log.w(TAG, "Cannot delete segment " + oldest.file);
+        }
+    }
+
+    /**
+     * Reads back the segments in the directory, or starts the first one
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.matches("\\d{8}" + SUFFIX.replace(".", "\\."));
+            }
+        });
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                int number = Integer.parseInt(file.getName().substring(0, 8));
+                Segment segment = Segment.map(file, number, (int) file.length());
+                scan(segment);
+                segments.add(segment);
+            }
+        }
+        if (segments.isEmpty()) {
+            startSegment();
+        }
+        else {
+            current = segments.get(segments.size() - 1);
+        }
+    }
+
+    /**
+     * Rebuilds the series and block index from the records of a segment,
+     * stopping at the first record that is incomplete or fails its CRC
+     */
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int limit = buffer.capacity();
+        int maxLength = Math.max(BLOCK_HEADER + blockSize, SERIES_HEADER + 0xffff) + CRC_LENGTH;
+        int position = 0;
+        while (position + SERIES_HEADER + CRC_LENGTH <= limit) {
+            int length = buffer.getInt(position);
+            if (length < SERIES_HEADER + CRC_LENGTH || length > maxLength || length > limit - position
+                    || !isIntact(buffer, position, length)) {
+                break;
+            }
+            byte type = buffer.get(position + 4);
+            if (type == RECORD_SERIES) {
+                int id = buffer.getInt(position + 5);
+                int nameLength = buffer.getShort(position + 9) & 0xffff;
+                if (id < 0 || SERIES_HEADER + nameLength + CRC_LENGTH != length) {
+                    break;
+                }
+                byte[] name = new byte[nameLength];
+                buffer.position(position + SERIES_HEADER);
+                buffer.get(name);
+                define(id, new String(name, UTF8));
+            }
+            else if (type == RECORD_BLOCK && length >= BLOCK_HEADER + CRC_LENGTH) {
+                buffer.position(position + 5);
+                int id = buffer.getInt();
+                long minTime = buffer.getLong();
+                long maxTime = buffer.getLong();
+                int count = buffer.getInt();
+                int valid = buffer.getInt();
+                double min = buffer.getDouble();
+                double max = buffer.getDouble();
+                double sum = buffer.getDouble();
+                int bits = buffer.getInt();
+                int payload = (bits + 7) >>> 3;
+                if (id < 0 || id >= seriesById.size() || seriesById.get(id) == null || bits < 0
+                        || payload > blockSize || BLOCK_HEADER + payload + CRC_LENGTH != length) {
+                    break;
+                }
+                seriesById.get(id).blocks.add(new Block(segment, position + BLOCK_HEADER, bits, count, valid,
+                        minTime, maxTime, min, max, sum));
+                sampleCount += count;
+                storedBytes += length;
+            }
+            else {
+                break;
+            }
+            position += length;
+        }
+        segment.position = position;
+    }
+
+    /**
+     * Returns true if the CRC at the end of a record matches the rest of it
+     */
+    private boolean isIntact(ByteBuffer buffer, int position, int length) {
+        if (recordBuffer.capacity() < length) {
+            recordBuffer = ByteBuffer.allocate(length);
+        }
+        byte[] record = recordBuffer.array();
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(record, 0, length);
+        crc.reset();
+        crc.update(record, 0, length - CRC_LENGTH);
+        return (int) crc.getValue() == buffer.getInt(position + length - CRC_LENGTH);
+    }
+
+    /**
+     * Points the decoder at a block
+     */
+    private void decode(Series target, Block block) {
+        if (block.segment == null) {
+            decoder.reset(target.encoder.data, block.count);
+        }
+        else {
+            ByteBuffer view = block.segment.buffer.duplicate();
+            view.position(block.offset);
+            view.get(scratch, 0, (block.bits + 7) >>> 3);
+            decoder.reset(scratch, block.count);
+        }
+    }
+
+    /**
+     * A series and its blocks in time order
+     */
+    private static final class Series {
+        final int id;
+        final String name;
+        final SeriesEncoder encoder;
+        final List<Block> blocks = new ArrayList<Block>();
+
+        Series(int id, String name, SeriesEncoder encoder) {
+            this.id = id;
+            this.name = name;
+            this.encoder = encoder;
+        }
+
+        /**
+         * Describes the open block, or returns null if it is empty
+         */
+        Block openBlock() {
+            if (encoder.count == 0) {
+                return null;
+            }
+            return new Block(null, 0, encoder.bitLength, encoder.count, encoder.valid, encoder.minTime,
+                    encoder.maxTime, encoder.min, encoder.max, encoder.sum);
+        }
+    }
+
+    /**
+     * Location and summary of a sealed block
+     */
+    private static final class Block {
+        final Segment segment;
+        final int offset;
+        final int bits;
+        final int count;
+        final int valid;
+        final long minTime;
+        final long maxTime;
+        final double min;
+        final double max;
+        final double sum;
+
+        Block(Segment segment, int offset, int bits, int count, int valid, long minTime, long maxTime,
+              double min, double max, double sum) {
+            this.segment = segment;
+            this.offset = offset;
+            this.bits = bits;
+            this.count = count;
+            this.valid = valid;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+        }
+    }
+
+    /**
+     * A memory mapped segment file
+     */
+    private static final class Segment {
+        final int number;
+        final File file;
+        final MappedByteBuffer buffer;
+        int position;
+
+        private Segment(int number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Maps a segment file, creating or extending it to the size
+         */
+        static Segment map(File file, int number, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                FileChannel channel = raf.getChannel();
+                return new Segment(number, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+            finally {
+                raf.close();
+            }
+        }
+    }
+}
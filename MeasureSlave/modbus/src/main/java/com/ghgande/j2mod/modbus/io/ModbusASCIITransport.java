@@ -110,7 +110,7 @@ public class ModbusASCIITransport extends ModbusSerialTransport {
 
                     int functionCode = byteInputStream.readUnsignedByte();
                     //create request
-                    request = ModbusRequest.createModbusRequest(functionCode);
+                    request = listener.createRequest(unitID, functionCode);
                     request.setHeadless();
                     //read message
                     byteInputStream.reset(inBuffer, byteInputOutputStream.size());
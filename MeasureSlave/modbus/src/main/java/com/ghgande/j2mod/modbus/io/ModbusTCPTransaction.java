@@ -24,6 +24,7 @@ import com.ghgande.j2mod.modbus.ModbusSlaveException;
 import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
+import com.ghgande.j2mod.modbus.util.HashedTimerWheel;
 import com.ghgande.j2mod.modbus.util.ModbusUtil;
 
 /**
@@ -112,6 +113,36 @@ public class ModbusTCPTransaction extends ModbusTransaction {
             throw new ModbusException("Invalid request or connection");
         }
 
+        HashedTimerWheel.Timeout timeout = startDeadline();
+        try {
+            executeWithRetries();
+        }
+        catch (ModbusIOException e) {
+            if (expired) {
+                throw deadlineExceeded();
+            }
+            throw e;
+        }
+        finally {
+            stopDeadline(timeout);
+        }
+    }
+
+    @Override
+    void abort() {
+
+        // Closing the socket unblocks the read in progress
+        connection.close();
+    }
+
+    /**
+     * Sends the request and reads the response, retrying until a valid
+     * response is received or the retries are exhausted
+     *
+     * @throws ModbusException If the transaction fails
+     */
+    private void executeWithRetries() throws ModbusException {
+
         // Try sending the message up to retries time. Note that the message
         // is read immediately after being written, with no flushing of buffers.
         int retryCounter = 0;
@@ -121,6 +152,12 @@ public class ModbusTCPTransaction extends ModbusTransaction {
         // While we haven't exhausted all the retry attempts
         while (keepTrying) {
 
+            // Don't reconnect or send the request again once the deadline has
+            // passed, the caller will already have been told that it failed
+            if (expired) {
+                throw deadlineExceeded();
+            }
+
             // Automatically connect if we aren't already connected
             if (!connection.isConnected()) {
                 try {
@@ -158,7 +195,7 @@ public class ModbusTCPTransaction extends ModbusTransaction {
                 //   c) we haven't exceeded the maximum retry count
                 if (responseIsInValid()) {
                     retryCounter++;
-                    if (retryCounter >= retryLimit) {
+                    if (retryCounter >= retryLimit || expired) {
                         throw new ModbusIOException("Executing transaction failed (tried %d times)", retryLimit);
                     }
                     keepTrying = true;
@@ -176,7 +213,7 @@ public class ModbusTCPTransaction extends ModbusTransaction {
 
                 // Up the retry counter and check if we are exhausted
                 retryCounter++;
-                if (retryCounter >= retryLimit) {
+                if (retryCounter >= retryLimit || expired) {
                     throw new ModbusIOException("Executing transaction %s failed (tried %d times) %s", request.getHexMessage(), retryLimit, ex.getMessage());
                 }
                 else {
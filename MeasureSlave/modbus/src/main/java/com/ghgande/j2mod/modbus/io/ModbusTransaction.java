@@ -20,8 +20,10 @@ import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.util.HashedTimerWheel;
 
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Interface defining a ModbusTransaction.
@@ -43,6 +45,12 @@ public abstract class ModbusTransaction {
     int retries = Modbus.DEFAULT_RETRIES;
     private Random random = new Random(System.nanoTime());
     static int transactionID = Modbus.DEFAULT_TRANSACTION_ID;
+    private static HashedTimerWheel timerWheel;
+    private int deadline;
+    volatile boolean expired;
+    private final Object deadlineLock = new Object();
+    private int execution;
+    private boolean executing;
 
     /**
      * Returns the <tt>ModbusRequest</tt> instance
@@ -126,6 +134,108 @@ public abstract class ModbusTransaction {
         validityCheck = b;
     }
 
+    /**
+     * Returns the overall time allowed for the transaction including all retries
+     *
+     * @return Deadline in milliseconds, 0 if there is none
+     */
+    public int getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Sets the overall time allowed for the transaction including all retries.
+     * <p>
+     * The socket/port timeout only bounds a single read, so a transaction that
+     * is retried can take many times longer than the timeout to fail.  When a
+     * deadline is set a timer is armed on the shared timer wheel as the
+     * transaction starts and if it fires the transaction is aborted and
+     * fails with a <tt>ModbusIOException</tt>.
+     *
+     * @param deadline Deadline in milliseconds, 0 for none
+     */
+    public void setDeadline(int deadline) {
+        this.deadline = Math.max(0, deadline);
+    }
+
+    /**
+     * Returns the timer wheel shared by all transactions for their deadlines.
+     * It can also be used by applications for retry and poll timers.
+     *
+     * @return Shared timer wheel
+     */
+    public static synchronized HashedTimerWheel getTimerWheel() {
+        if (timerWheel == null) {
+            timerWheel = new HashedTimerWheel("Modbus Transaction Timer");
+        }
+        return timerWheel;
+    }
+
+    /**
+     * Arms the deadline timer for an execution of the transaction
+     *
+     * @return Timer handle or null if there is no deadline
+     */
+    HashedTimerWheel.Timeout startDeadline() {
+        int current;
+        synchronized (deadlineLock) {
+            expired = false;
+            executing = true;
+            current = ++execution;
+        }
+        if (deadline <= 0) {
+            return null;
+        }
+        return getTimerWheel().schedule(new Expiry(current), deadline, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Disarms the deadline timer once the execution has finished.  Once this
+     * returns the execution can no longer be aborted
+     *
+     * @param timeout Timer handle returned by {@link #startDeadline()}
+     */
+    void stopDeadline(HashedTimerWheel.Timeout timeout) {
+        synchronized (deadlineLock) {
+            executing = false;
+        }
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Marks the execution as expired and aborts it if it is still running
+     *
+     * @param expiredExecution Number of the execution the timer was armed for
+     */
+    private void expire(int expiredExecution) {
+        synchronized (deadlineLock) {
+            if (executing && execution == expiredExecution) {
+                expired = true;
+                abort();
+            }
+        }
+    }
+
+    /**
+     * Creates the exception thrown when the deadline has passed
+     *
+     * @return Exception to throw
+     */
+    ModbusIOException deadlineExceeded() {
+        return new ModbusIOException("Transaction deadline of %d ms exceeded", deadline);
+    }
+
+    /**
+     * Called when the deadline passes to unblock the executing thread.  It is
+     * not called on the timer thread, so it may block, and it is never called
+     * once the execution has finished.  The default implementation does
+     * nothing, in which case the transaction stops at its next retry.
+     */
+    void abort() {
+    }
+
     /**
      * getTransactionID -- get the next transaction ID to use.
      * @return next transaction ID to use
@@ -187,4 +297,28 @@ public abstract class ModbusTransaction {
      */
     public abstract void execute() throws ModbusException;
 
-}
\ No newline at end of file
+
+    /**
+     * Deadline timer of one execution.  Aborting may block on closing the
+     * connection, so it is passed from the timer thread to a thread of its own
+     */
+    private final class Expiry implements Runnable {
+        private final int expiredExecution;
+
+        Expiry(int expiredExecution) {
+            this.expiredExecution = expiredExecution;
+        }
+
+        @Override
+        public void run() {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    expire(expiredExecution);
+                }
+            }, "Modbus Transaction Abort");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
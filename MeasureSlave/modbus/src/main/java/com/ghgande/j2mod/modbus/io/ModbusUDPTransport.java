@@ -90,10 +90,11 @@ public class ModbusUDPTransport extends AbstractModbusTransport {
             ModbusRequest req;
             synchronized (byteInputStream) {
                 byteInputStream.reset(terminal.receiveMessage());
-                byteInputStream.skip(7);
+                byteInputStream.skip(6);
+                int unitId = byteInputStream.readUnsignedByte();
                 int functionCode = byteInputStream.readUnsignedByte();
                 byteInputStream.reset();
-                req = ModbusRequest.createModbusRequest(functionCode);
+                req = listener.createRequest(unitId, functionCode);
                 req.readFrom(byteInputStream);
             }
             return req;
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.msg;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.net.AbstractModbusListener;
+
+import java.util.Arrays;
+
+/**
+ * Table of the {@link FunctionCodeHandler} serving each function code of a
+ * slave, with the handlers of individual units that override them.
+ * <p>
+ * A registry starts with the standard handler of every function code the
+ * library implements, which creates the matching request class and
+ * executes it with {@link ModbusRequest#createResponse}; any other code is
+ * answered with an illegal function exception.  The tables are 256 entries
+ * indexed by function code and are replaced, never changed, when a handler
+ * is registered, so a lookup is an array load without locking.
+ */
+public class FunctionCodeRegistry {
+
+    /**
+     * Number of function codes, and of unit IDs, in the tables (=<tt>256</tt>)
+     */
+    public static final int SIZE = 256;
+
+    private static final FunctionCodeHandler[] STANDARD = createStandardHandlers();
+
+    private volatile FunctionCodeHandler[] handlers = STANDARD;
+    private volatile FunctionCodeHandler[][] units = new FunctionCodeHandler[SIZE][];
+    private final FunctionCodeHandler[][] unitHandlers = new FunctionCodeHandler[SIZE][];
+
+    /**
+     * Returns the standard handler of a function code
+     *
+     * @param functionCode Function code
+     * @return Handler, answering with an illegal function exception if the code is not implemented
+     */
+    public static FunctionCodeHandler getStandardHandler(int functionCode) {
+        return STANDARD[functionCode & 0xff];
+    }
+
+    /**
+     * Returns the handler of a function code for all units without one of their own
+     *
+     * @param functionCode Function code
+     * @return Handler
+     */
+    public FunctionCodeHandler getHandler(int functionCode) {
+        return handlers[functionCode & 0xff];
+    }
+
+    /**
+     * Returns the handler serving a function code of a unit
+     *
+     * @param unitId       Unit ID
+     * @param functionCode Function code
+     * @return Handler
+     */
+    public FunctionCodeHandler getHandler(int unitId, int functionCode) {
+        FunctionCodeHandler[] table = units[unitId & 0xff];
+        return (table != null ? table : handlers)[functionCode & 0xff];
+    }
+
+    /**
+     * Returns true if a function code of a unit is served by its standard
+     * handler, so its requests may be answered without request objects
+     *
+     * @param unitId       Unit ID
+     * @param functionCode Function code
+     * @return True if standard
+     */
+    public boolean isStandard(int unitId, int functionCode) {
+        return getHandler(unitId, functionCode) == STANDARD[functionCode & 0xff];
+    }
+
+    /**
+     * Registers the handler of a function code for all units without one of
+     * their own
+     *
+     * @param functionCode Function code, 1 to 127
+     * @param handler      Handler, null to restore the standard one
+     */
+    public synchronized void register(int functionCode, FunctionCodeHandler handler) {
+        checkFunctionCode(functionCode);
+        FunctionCodeHandler[] table = handlers.clone();
+        table[functionCode] = handler != null ? handler : STANDARD[functionCode];
+        handlers = table;
+        publishUnits();
+    }
+
+    /**
+     * Registers the handler of a function code for one unit
+     *
+     * @param unitId       Unit ID, 0 to 255
+     * @param functionCode Function code, 1 to 127
+     * @param handler      Handler, null to serve the unit like the others
+     */
+    public synchronized void register(int unitId, int functionCode, FunctionCodeHandler handler) {
+        checkFunctionCode(functionCode);
+        if (unitId < 0 || unitId >= SIZE) {
+            throw new IllegalArgumentException("Invalid unit ID " + unitId);
+        }
+        FunctionCodeHandler[] overrides = unitHandlers[unitId];
+        if (overrides == null) {
+            if (handler == null) {
+                return;
+            }
+            overrides = new FunctionCodeHandler[SIZE];
+            unitHandlers[unitId] = overrides;
+        }
+        overrides[functionCode] = handler;
+        publishUnits();
+    }
+
+    /**
+     * Rebuilds the tables of the units with handlers of their own over the
+     * current table of the slave
+     */
+    private void publishUnits() {
+        FunctionCodeHandler[][] tables = new FunctionCodeHandler[SIZE][];
+        for (int unit = 0; unit < SIZE; unit++) {
+            FunctionCodeHandler[] overrides = unitHandlers[unit];
+            if (overrides == null) {
+                continue;
+            }
+            FunctionCodeHandler[] table = handlers.clone();
+            boolean any = false;
+            for (int code = 0; code < SIZE; code++) {
+                if (overrides[code] != null) {
+                    table[code] = overrides[code];
+                    any = true;
+                }
+            }
+            if (any) {
+                tables[unit] = table;
+            }
+            else {
+                unitHandlers[unit] = null;
+            }
+        }
+        units = tables;
+    }
+
+    private static void checkFunctionCode(int functionCode) {
+        if (functionCode < 1 || functionCode >= Modbus.EXCEPTION_OFFSET) {
+            throw new IllegalArgumentException("Invalid function code " + functionCode);
+        }
+    }
+
+    /**
+     * Builds the table of standard handlers
+     */
+    private static FunctionCodeHandler[] createStandardHandlers() {
+        FunctionCodeHandler[] handlers = new FunctionCodeHandler[SIZE];
+        Arrays.fill(handlers, new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new IllegalFunctionRequest(functionCode);
+            }
+        });
+        handlers[Modbus.READ_COILS] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new ReadCoilsRequest();
+            }
+        };
+        handlers[Modbus.READ_INPUT_DISCRETES] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new ReadInputDiscretesRequest();
+            }
+        };
+        handlers[Modbus.READ_MULTIPLE_REGISTERS] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new ReadMultipleRegistersRequest();
+            }
+        };
+        handlers[Modbus.READ_INPUT_REGISTERS] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new ReadInputRegistersRequest();
+            }
+        };
+        handlers[Modbus.WRITE_COIL] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new WriteCoilRequest();
+            }
+        };
+        handlers[Modbus.WRITE_SINGLE_REGISTER] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new WriteSingleRegisterRequest();
+            }
+        };
+        handlers[Modbus.WRITE_MULTIPLE_COILS] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new WriteMultipleCoilsRequest();
+            }
+        };
+        handlers[Modbus.WRITE_MULTIPLE_REGISTERS] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new WriteMultipleRegistersRequest();
+            }
+        };
+        handlers[Modbus.READ_EXCEPTION_STATUS] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new ReadExceptionStatusRequest();
+            }
+        };
+        handlers[Modbus.READ_SERIAL_DIAGNOSTICS] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new ReadSerialDiagnosticsRequest();
+            }
+        };
+        handlers[Modbus.READ_COMM_EVENT_COUNTER] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new ReadCommEventCounterRequest();
+            }
+        };
+        handlers[Modbus.READ_COMM_EVENT_LOG] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new ReadCommEventLogRequest();
+            }
+        };
+        handlers[Modbus.REPORT_SLAVE_ID] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new ReportSlaveIDRequest();
+            }
+        };
+        handlers[Modbus.READ_FILE_RECORD] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new ReadFileRecordRequest();
+            }
+        };
+        handlers[Modbus.WRITE_FILE_RECORD] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new WriteFileRecordRequest();
+            }
+        };
+        handlers[Modbus.MASK_WRITE_REGISTER] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new MaskWriteRegisterRequest();
+            }
+        };
+        handlers[Modbus.READ_WRITE_MULTIPLE] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new ReadWriteMultipleRequest();
+            }
+        };
+        handlers[Modbus.READ_FIFO_QUEUE] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new ReadFIFOQueueRequest();
+            }
+        };
+        handlers[Modbus.READ_MEI] = new StandardHandler() {
+            @Override
+            public ModbusRequest createRequest(int functionCode) {
+                return new ReadMEIRequest();
+            }
+        };
+        return handlers;
+    }
+
+    /**
+     * Handler executing a request class of the library
+     */
+    private abstract static class StandardHandler implements FunctionCodeHandler {
+        @Override
+        public ModbusResponse execute(ModbusRequest request, AbstractModbusListener listener) {
+            return request.createResponse(listener);
+        }
+    }
+}
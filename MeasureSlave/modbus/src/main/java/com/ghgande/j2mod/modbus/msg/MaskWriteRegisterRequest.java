@@ -132,6 +132,7 @@ public class MaskWriteRegisterRequest extends ModbusRequest {
 
         // Get the process image.
         ProcessImage procimg = listener.getProcessImage(getUnitID());
+        beginUpdate(procimg);
         try {
             Register register = procimg.getRegister(reference);
 
@@ -149,6 +150,9 @@ public class MaskWriteRegisterRequest extends ModbusRequest {
         catch (IllegalAddressException iaex) {
             return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
         }
+        finally {
+            endUpdate(procimg);
+        }
         response = (MaskWriteRegisterResponse)getResponse();
         response.setReference(reference);
         response.setAndMask(andMask);
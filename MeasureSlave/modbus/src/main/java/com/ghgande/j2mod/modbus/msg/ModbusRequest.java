@@ -15,8 +15,9 @@
  */
 package com.ghgande.j2mod.modbus.msg;
 
-import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.net.AbstractModbusListener;
+import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.UpdatableProcessImage;
 
 /**
  * Abstract class implementing a <tt>ModbusRequest</tt>. This class provides
@@ -38,71 +39,7 @@ public abstract class ModbusRequest extends ModbusMessageImpl {
      * @return a ModbusRequest instance specific for the given function type.
      */
     public static ModbusRequest createModbusRequest(int functionCode) {
-        ModbusRequest request;
-
-        switch (functionCode) {
-            case Modbus.READ_COILS:
-                request = new ReadCoilsRequest();
-                break;
-            case Modbus.READ_INPUT_DISCRETES:
-                request = new ReadInputDiscretesRequest();
-                break;
-            case Modbus.READ_MULTIPLE_REGISTERS:
-                request = new ReadMultipleRegistersRequest();
-                break;
-            case Modbus.READ_INPUT_REGISTERS:
-                request = new ReadInputRegistersRequest();
-                break;
-            case Modbus.WRITE_COIL:
-                request = new WriteCoilRequest();
-                break;
-            case Modbus.WRITE_SINGLE_REGISTER:
-                request = new WriteSingleRegisterRequest();
-                break;
-            case Modbus.WRITE_MULTIPLE_COILS:
-                request = new WriteMultipleCoilsRequest();
-                break;
-            case Modbus.WRITE_MULTIPLE_REGISTERS:
-                request = new WriteMultipleRegistersRequest();
-                break;
-            case Modbus.READ_EXCEPTION_STATUS:
-                request = new ReadExceptionStatusRequest();
-                break;
-            case Modbus.READ_SERIAL_DIAGNOSTICS:
-                request = new ReadSerialDiagnosticsRequest();
-                break;
-            case Modbus.READ_COMM_EVENT_COUNTER:
-                request = new ReadCommEventCounterRequest();
-                break;
-            case Modbus.READ_COMM_EVENT_LOG:
-                request = new ReadCommEventLogRequest();
-                break;
-            case Modbus.REPORT_SLAVE_ID:
-                request = new ReportSlaveIDRequest();
-                break;
-            case Modbus.READ_FILE_RECORD:
-                request = new ReadFileRecordRequest();
-                break;
-            case Modbus.WRITE_FILE_RECORD:
-                request = new WriteFileRecordRequest();
-                break;
-            case Modbus.MASK_WRITE_REGISTER:
-                request = new MaskWriteRegisterRequest();
-                break;
-            case Modbus.READ_WRITE_MULTIPLE:
-                request = new ReadWriteMultipleRequest();
-                break;
-            case Modbus.READ_FIFO_QUEUE:
-                request = new ReadFIFOQueueRequest();
-                break;
-            case Modbus.READ_MEI:
-                request = new ReadMEIRequest();
-                break;
-            default:
-                request = new IllegalFunctionRequest(functionCode);
-                break;
-        }
-        return request;
+        return FunctionCodeRegistry.getStandardHandler(functionCode).createRequest(functionCode);
     }
 
     /**
@@ -152,6 +89,28 @@ public abstract class ModbusRequest extends ModbusMessageImpl {
         return updateResponseWithHeader(new ExceptionResponse(getFunctionCode(), code), true);
     }
 
+    /**
+     * Tells the image that a request is about to modify it, if it wants to know
+     *
+     * @param image Process image to be modified
+     */
+    static void beginUpdate(ProcessImage image) {
+        if (image instanceof UpdatableProcessImage) {
+            ((UpdatableProcessImage)image).beginUpdate();
+        }
+    }
+
+    /**
+     * Tells the image that a request has finished modifying it, if it wants to know
+     *
+     * @param image Process image that was modified
+     */
+    static void endUpdate(ProcessImage image) {
+        if (image instanceof UpdatableProcessImage) {
+            ((UpdatableProcessImage)image).endUpdate();
+        }
+    }
+
     /**
      * Updates the response with the header information to match the request
      *
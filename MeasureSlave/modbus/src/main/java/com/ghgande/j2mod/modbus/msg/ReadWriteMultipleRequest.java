@@ -113,9 +113,15 @@ public class ReadWriteMultipleRequest extends ModbusRequest {
         // 2. get input registers range
         try {
             // First the write
-            writeRegs = procimg.getRegisterRange(getWriteReference(), getWriteWordCount());
-            for (int i = 0; i < writeRegs.length; i++) {
-                writeRegs[i].setValue(getRegister(i).getValue());
+            beginUpdate(procimg);
+            try {
+                writeRegs = procimg.getRegisterRange(getWriteReference(), getWriteWordCount());
+                for (int i = 0; i < writeRegs.length; i++) {
+                    writeRegs[i].setValue(getRegister(i).getValue());
+                }
+            }
+            finally {
+                endUpdate(procimg);
             }
 
             // handle register and write response
@@ -111,6 +111,7 @@ public class WriteMultipleCoilsRequest extends ModbusRequest {
         // 1. get process image
         ProcessImage procimg = listener.getProcessImage(getUnitID());
         // 2. get coil range
+        beginUpdate(procimg);
         try {
             douts = procimg.getDigitalOutRange(reference, coils.size());
             // 3. set coils
@@ -121,6 +122,9 @@ public class WriteMultipleCoilsRequest extends ModbusRequest {
         catch (IllegalAddressException iaex) {
             return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
         }
+        finally {
+            endUpdate(procimg);
+        }
         response = (WriteMultipleCoilsResponse)getResponse();
         response.setBitCount(coils.size());
         response.setReference(reference);
@@ -81,6 +81,7 @@ public class WriteSingleRegisterRequest extends ModbusRequest {
         ProcessImage procimg = listener.getProcessImage(getUnitID());
 
         // 2. get register
+        beginUpdate(procimg);
         try {
             reg = procimg.getRegister(reference);
 
@@ -90,6 +91,9 @@ public class WriteSingleRegisterRequest extends ModbusRequest {
         catch (IllegalAddressException iaex) {
             return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
         }
+        finally {
+            endUpdate(procimg);
+        }
         return updateResponseWithHeader(new WriteSingleRegisterResponse(this.getReference(), reg.getValue()));
     }
 
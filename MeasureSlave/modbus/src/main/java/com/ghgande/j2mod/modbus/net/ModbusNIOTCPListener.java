@@ -0,0 +1,904 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.net;
+
+import android.util.Log;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.io.ModbusTransaction;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.RequestView;
+import com.ghgande.j2mod.modbus.msg.ResponseEncoder;
+import com.ghgande.j2mod.modbus.util.ThreadPool;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Modbus TCP listener built on non-blocking channels, so that a slave can
+ * serve thousands of masters without a thread for each of them.
+ * <p>
+ * The listener thread accepts connections and hands them round robin to a
+ * few event loops, each a thread with a selector of its own.  An event loop
+ * reads into a buffer taken from its pool only while a connection has bytes
+ * to read, and splits the stream into frames by the length in the MBAP
+ * header.  Complete frames are copied into arrays the connection reuses and
+ * executed on a small worker pool, one at a time per connection so
+ * responses keep the order of the requests, read in place with a
+ * {@link RequestView}.  A worker
+ * writes its response straight to the channel and leaves what the socket
+ * does not take to the event loop.  A connection with too many frames
+ * waiting is not read until the workers catch up.  A request over the
+ * limits of the rate limiter does not hold a worker while it waits for its
+ * turn: the connection is handed back to its event loop after the wait, on
+ * the shared timer wheel, and asks again from a worker then.  Requests that
+ * cannot get a turn by the queue deadline are answered with a busy exception.
+ * <p>
+ * During a connection storm the single accepting thread becomes the limit.
+ * With several acceptors each has a thread, a selector and its share of the
+ * event loops.  Where the platform supports <tt>SO_REUSEPORT</tt> every
+ * acceptor binds a server socket of its own to the port and the kernel
+ * spreads the connections over them; elsewhere the acceptors share one
+ * server socket.  All of them serve the process images of the same slave.
+ * <p>
+ * Only Modbus TCP framing is handled; use {@link ModbusTCPListener} for RTU
+ * over TCP.
+ */
+public class ModbusNIOTCPListener extends AbstractModbusListener {
+
+    private static final String TAG = "ModbusNIOTCPListener";
+
+    /**
+     * Default number of event loop threads (=<tt>1</tt>)
+     */
+    public static final int DEFAULT_EVENT_LOOPS = 1;
+
+    /**
+     * Number of frames that may wait per connection before it is no longer read (=<tt>16</tt>)
+     */
+    public static final int MAX_PENDING_FRAMES = 16;
+
+    // Length of the MBAP header and the largest length it may give
+    private static final int HEADER_LENGTH = 6;
+    private static final int MAX_FRAME_DATA = Modbus.MAX_MESSAGE_LENGTH - 2;
+
+    // Read buffers hold a few frames so one read can return several
+    private static final int BUFFER_SIZE = 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    // SO_REUSEPORT and socket options themselves are only known to newer
+    // platforms (API 24 on Android), so the option is looked up by name
+    private static final SocketOption<Boolean> REUSE_PORT = findReusePort();
+
+    private final ThreadPool threadPool;
+    private final int eventLoopCount;
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile int acceptorCount = 1;
+    private volatile Acceptor[] acceptors = new Acceptor[0];
+    private EventLoop[] eventLoops = new EventLoop[0];
+    private boolean reusePort;
+    private Thread listener;
+
+    /**
+     * Constructs a listener on the wildcard address (0.0.0.0) with one event loop
+     *
+     * @param poolsize Number of worker threads executing requests
+     */
+    public ModbusNIOTCPListener(int poolsize) {
+        this(poolsize, null, DEFAULT_EVENT_LOOPS);
+    }
+
+    /**
+     * Constructs a listener with one event loop
+     *
+     * @param poolsize Number of worker threads executing requests
+     * @param addr     Interface to listen on, null for all of them
+     */
+    public ModbusNIOTCPListener(int poolsize, InetAddress addr) {
+        this(poolsize, addr, DEFAULT_EVENT_LOOPS);
+    }
+
+    /**
+     * Constructs a listener
+     *
+     * @param poolsize   Number of worker threads executing requests
+     * @param addr       Interface to listen on, null for all of them
+     * @param eventLoops Number of event loop threads the connections are spread over
+     */
+    public ModbusNIOTCPListener(int poolsize, InetAddress addr, int eventLoops) {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("At least one event loop is required");
+        }
+        threadPool = new ThreadPool(Math.max(1, poolsize));
+        eventLoopCount = eventLoops;
+        if (addr == null) {
+            try {
+                addr = InetAddress.getByAddress(new byte[]{0, 0, 0, 0});
+            }
+            catch (UnknownHostException ex) {
+                // Can't happen -- size is fixed.
+            }
+        }
+        address = addr;
+    }
+
+    @Override
+    public void setAddress(InetAddress addr) {
+        if (addr != null) {
+            super.setAddress(addr);
+        }
+    }
+
+    /**
+     * Returns the number of accepting threads
+     *
+     * @return Acceptor count
+     */
+    public int getAcceptors() {
+        return acceptorCount;
+    }
+
+    /**
+     * Sets the number of accepting threads, each with its own server socket
+     * where <tt>SO_REUSEPORT</tt> is supported; takes effect when the
+     * listener is next started.  There are at least as many event loops as
+     * acceptors.
+     *
+     * @param acceptors Acceptor count
+     */
+    public void setAcceptors(int acceptors) {
+        if (acceptors < 1) {
+            throw new IllegalArgumentException("At least one acceptor is required");
+        }
+        acceptorCount = acceptors;
+    }
+
+    /**
+     * Returns true if the acceptors of the running listener have server
+     * sockets of their own bound with <tt>SO_REUSEPORT</tt>
+     *
+     * @return True if the port is shared by the kernel
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Returns the number of open connections
+     *
+     * @return Connection count
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    @Override
+    public void run() {
+
+        // Set a suitable thread name
+        if (threadName == null || threadName.isEmpty()) {
+            threadName = String.format("Modbus NIO TCP Listener [port:%d]", port);
+        }
+        Thread.currentThread().setName(threadName);
+
+        int count = acceptorCount;
+        Acceptor[] opened = new Acceptor[count];
+        EventLoop[] loops = new EventLoop[Math.max(eventLoopCount, count)];
+        try {
+            reusePort = count > 1 && REUSE_PORT != null;
+            ServerSocketChannel shared = null;
+            for (int i = 0; i < count; i++) {
+                ServerSocketChannel channel = shared;
+                if (channel == null) {
+                    channel = openServerChannel();
+                    if (!reusePort) {
+                        shared = channel;
+                    }
+                }
+                opened[i] = new Acceptor(channel, Selector.open());
+            }
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(Selector.open());
+                opened[i % count].loops.add(loops[i]);
+            }
+        }
+
+        // Catch any fatal errors and set the listening flag to false to indicate an error
+        catch (IOException e) {
+            error = String.format("Cannot start NIO TCP listener - %s", e.getMessage());
+            listening = false;
+            close(opened);
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    closeQuietly(loop.selector);
+                }
+            }
+            return;
+        }
+
+        acceptors = opened;
+        eventLoops = loops;
+        listener = Thread.currentThread();
+        listening = true;
+        threadPool.initPool(threadName);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].thread = startThread(loops[i], String.format("%s Loop %d", threadName, i));
+        }
+        for (int i = 1; i < opened.length; i++) {
+            opened[i].thread = startThread(opened[i], String.format("%s Acceptor %d", threadName, i));
+        }
+        try {
+            opened[0].run();
+        }
+        finally {
+            listening = false;
+            for (Acceptor acceptor : opened) {
+                acceptor.selector.wakeup();
+                if (acceptor.thread != null) {
+                    joinQuietly(acceptor.thread);
+                }
+            }
+            for (EventLoop loop : loops) {
+                loop.selector.wakeup();
+                joinQuietly(loop.thread);
+            }
+            threadPool.close();
+            close(opened);
+        }
+    }
+
+    @Override
+    public void stop() {
+        listening = false;
+        for (Acceptor acceptor : acceptors) {
+            acceptor.selector.wakeup();
+        }
+        if (listener != null && listener != Thread.currentThread()) {
+            joinQuietly(listener);
+        }
+    }
+
+    /**
+     * Opens and binds a non-blocking server socket, with <tt>SO_REUSEPORT</tt>
+     * if it is wanted so that other acceptors can bind the port too.  If the
+     * platform refuses the option the acceptors fall back to sharing the socket.
+     *
+     * @return Bound channel
+     * @throws IOException if the socket cannot be bound
+     */
+    private ServerSocketChannel openServerChannel() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.socket().setReuseAddress(true);
+            if (reusePort) {
+                try {
+                    channel.setOption(REUSE_PORT, true);
+                }
+                catch (UnsupportedOperationException e) {
+                    Log.d(TAG, "SO_REUSEPORT is not supported, acceptors will share a socket");
+                    reusePort = false;
+                }
+            }
+            channel.socket().bind(new InetSocketAddress(address, port), 1024);
+            channel.configureBlocking(false);
+            return channel;
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the server channels and selectors of the acceptors
+     */
+    private static void close(Acceptor[] acceptors) {
+        for (Acceptor acceptor : acceptors) {
+            if (acceptor != null) {
+                try {
+                    acceptor.channel.close();
+                }
+                catch (IOException e) {
+                    Log.d(TAG, "Error closing server channel - " + e.getMessage());
+                }
+                closeQuietly(acceptor.selector);
+            }
+        }
+    }
+
+    /**
+     * Starts a daemon thread
+     */
+    private static Thread startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Closes a selector ignoring errors
+     */
+    private static void closeQuietly(Selector selector) {
+        try {
+            selector.close();
+        }
+        catch (IOException e) {
+            Log.d(TAG, "Error closing selector - " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits for a thread to end
+     */
+    private static void joinQuietly(Thread thread) {
+        if (thread != null) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Reads a frame in place, executes it and encodes the response, straight
+     * from the process image or the response cache for the requests
+     * {@link ResponseEncoder} handles with their standard handler.  Only the
+     * other frames are decoded into request objects.
+     *
+     * @param frame Frame with its MBAP header
+     * @param view  View of the connection to read the frame with
+     * @return Response frame
+     * @throws IOException if the frame cannot be decoded
+     */
+    private ByteBuffer execute(byte[] frame, RequestView view) throws IOException {
+        if (view.wrap(frame, 0, frameLength(frame))) {
+            int length = ResponseEncoder.getLength(view);
+            if (length >= 0) {
+                byte[] output = new byte[HEADER_LENGTH + 1 + length];
+                length = encodeResponse(view, output, HEADER_LENGTH + 1);
+                if (length >= 0) {
+                    putHeader(output, view.getTransactionID(), view.getProtocolID(), view.getUnitID(), length);
+                    return ByteBuffer.wrap(output, 0, HEADER_LENGTH + 1 + length);
+                }
+            }
+        }
+        return encode(createResponse(view.toRequest(createRequest(view.getUnitID(), view.getFunctionCode()))));
+    }
+
+    /**
+     * Answers a frame the rate limiter has throttled with a busy exception
+     *
+     * @param frame Frame with its MBAP header
+     * @param view  View of the connection to read the frame with
+     * @return Response frame
+     */
+    private static ByteBuffer busy(byte[] frame, RequestView view) {
+        view.wrap(frame, 0, frameLength(frame));
+        return encode(view.createExceptionResponse(Modbus.SLAVE_BUSY_EXCEPTION));
+    }
+
+    /**
+     * Returns the length of a frame, header included
+     */
+    private static int frameLength(byte[] frame) {
+        return HEADER_LENGTH + ((frame[4] & 0xff) << 8 | frame[5] & 0xff);
+    }
+
+    /**
+     * Encodes a response object into a frame
+     *
+     * @param response Response
+     * @return Response frame
+     */
+    private static ByteBuffer encode(ModbusResponse response) {
+        byte[] message = response.getMessage();
+        int length = message != null ? message.length : 0;
+        byte[] output = new byte[HEADER_LENGTH + 2 + length];
+        putHeader(output, response.getTransactionID(), response.getProtocolID(), response.getUnitID(), length + 1);
+        output[7] = (byte) response.getFunctionCode();
+        if (length > 0) {
+            System.arraycopy(message, 0, output, HEADER_LENGTH + 2, length);
+        }
+        return ByteBuffer.wrap(output);
+    }
+
+    /**
+     * Writes the MBAP header and unit ID of a response
+     *
+     * @param output      Response frame
+     * @param transaction Transaction ID
+     * @param protocol    Protocol ID
+     * @param unit        Unit ID
+     * @param pduLength   Length of the PDU, function code included
+     */
+    private static void putHeader(byte[] output, int transaction, int protocol, int unit, int pduLength) {
+        output[0] = (byte) (transaction >> 8);
+        output[1] = (byte) transaction;
+        output[2] = (byte) (protocol >> 8);
+        output[3] = (byte) protocol;
+        output[4] = (byte) ((pduLength + 1) >> 8);
+        output[5] = (byte) (pduLength + 1);
+        output[6] = (byte) unit;
+    }
+
+    /**
+     * A server socket, possibly shared with other acceptors, with the
+     * selector and thread that accept its connections and hand them round
+     * robin to the event loops of the acceptor
+     */
+    private class Acceptor implements Runnable {
+        final ServerSocketChannel channel;
+        final Selector selector;
+        final List<EventLoop> loops = new ArrayList<EventLoop>();
+        Thread thread;
+        int nextLoop;
+
+        Acceptor(ServerSocketChannel channel, Selector selector) throws IOException {
+            this.channel = channel;
+            this.selector = selector;
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (listening) {
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    SocketChannel accepted;
+
+                    // Acceptors sharing a socket race for each connection, the losers get null
+                    while (listening && (accepted = channel.accept()) != null) {
+                        try {
+                            accepted.configureBlocking(false);
+                            accepted.socket().setTcpNoDelay(true);
+                            loops.get(nextLoop).add(accepted);
+                            nextLoop = (nextLoop + 1) % loops.size();
+                        }
+                        catch (IOException e) {
+                            Log.d(TAG, "Cannot accept connection - " + e.getMessage());
+                            closeQuietly(accepted);
+                        }
+                    }
+                }
+            }
+            catch (IOException e) {
+                if (listening) {
+                    error = String.format("Problem accepting connections - %s", e.getMessage());
+                    Log.e(TAG, error);
+                }
+            }
+            finally {
+                listening = false;
+            }
+        }
+    }
+
+    /**
+     * A selector and the thread that runs it, serving a share of the connections
+     */
+    private class EventLoop implements Runnable {
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+        Thread thread;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Hands a new connection to this loop
+         */
+        void add(final SocketChannel channel) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Connection connection = new Connection(EventLoop.this, channel);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                        connectionCount.incrementAndGet();
+                    }
+                    catch (IOException e) {
+                        Log.d(TAG, "Cannot register connection - " + e.getMessage());
+                        closeQuietly(channel);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Runs a task on the loop thread
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (listening) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                        }
+                        catch (IOException e) {
+                            Log.d(TAG, "Closing connection - " + e.getMessage());
+                            connection.close();
+                        }
+                    }
+                }
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Event loop failed - " + e.getMessage());
+            }
+            finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                closeQuietly(selector);
+            }
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer buffer = buffers.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        void release(ByteBuffer buffer) {
+            if (buffers.size() < MAX_POOLED_BUFFERS) {
+                buffer.clear();
+                buffers.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * One master connection.  The input buffer and the selection key belong
+     * to the event loop; the frame and output queues are guarded by the
+     * connection.  The view belongs to the worker executing the frames.
+     */
+    private class Connection implements Runnable {
+        final EventLoop loop;
+        final SocketChannel channel;
+        final RateLimiter.Session session;
+        SelectionKey key;
+        ByteBuffer input;
+        boolean paused;
+        boolean closed;
+
+        final ArrayDeque<byte[]> frames = new ArrayDeque<byte[]>();
+        final ArrayDeque<byte[]> spare = new ArrayDeque<byte[]>();
+        final RequestView view = new RequestView();
+        final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+        boolean executing;
+
+        // Frame waiting for its turn from the rate limiter, guarded by the
+        // connection, and when it first asked, belonging to the worker
+        byte[] held;
+        long heldSince;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            RateLimiter limiter = rateLimiter;
+            session = limiter == null ? null : limiter.open(channel.socket().getInetAddress());
+        }
+
+        /**
+         * Reads what the channel has and queues the complete frames
+         */
+        void read() throws IOException {
+            if (input == null) {
+                input = loop.acquire();
+            }
+            int count = channel.read(input);
+            if (count < 0) {
+                close();
+                return;
+            }
+            split();
+        }
+
+        /**
+         * Takes the complete frames out of the input buffer, on the loop thread
+         */
+        void split() throws IOException {
+            input.flip();
+            try {
+                while (input.remaining() >= HEADER_LENGTH) {
+                    int start = input.position();
+                    int protocol = input.getShort(start + 2) & 0xffff;
+                    int length = input.getShort(start + 4) & 0xffff;
+                    if (protocol != Modbus.DEFAULT_PROTOCOL_ID || length < 2 || length > MAX_FRAME_DATA) {
+                        throw new IOException(String.format("Invalid MBAP header (protocol %d, length %d)", protocol, length));
+                    }
+                    if (input.remaining() < HEADER_LENGTH + length) {
+                        break;
+                    }
+                    synchronized (this) {
+                        if (frames.size() >= MAX_PENDING_FRAMES) {
+                            paused = true;
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                            break;
+                        }
+                        byte[] frame = spare.poll();
+                        if (frame == null) {
+                            frame = new byte[HEADER_LENGTH + MAX_FRAME_DATA];
+                        }
+                        input.get(frame, 0, HEADER_LENGTH + length);
+                        frames.add(frame);
+                        if (!executing) {
+                            executing = true;
+                            threadPool.execute(this);
+                        }
+                    }
+                }
+            }
+            finally {
+                input.compact();
+                if (input.position() == 0) {
+                    loop.release(input);
+                    input = null;
+                }
+            }
+        }
+
+        /**
+         * Executes the queued frames in order, on a worker thread
+         */
+        @Override
+        public void run() {
+            while (true) {
+                byte[] frame;
+                boolean resume = false;
+                boolean retry;
+                synchronized (this) {
+                    retry = held != null;
+                    frame = retry ? held : frames.poll();
+                    held = null;
+                    if (frame == null || closed) {
+                        executing = false;
+                        return;
+                    }
+                    if (paused && frames.size() < MAX_PENDING_FRAMES / 2) {
+                        paused = false;
+                        resume = true;
+                    }
+                }
+                if (resume) {
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            resume();
+                        }
+                    });
+                }
+                try {
+                    long wait = 0;
+                    if (session != null) {
+                        if (!retry) {
+                            heldSince = System.nanoTime();
+                        }
+                        wait = session.tryAdmit(frame[6] & 0xff, heldSince, retry);
+                        if (wait > 0) {
+                            hold(frame, wait);
+                            return;
+                        }
+                    }
+                    write(wait < 0 ? busy(frame, view) : execute(frame, view));
+                    synchronized (this) {
+                        spare.add(frame);
+                    }
+                }
+                catch (Exception e) {
+                    Log.d(TAG, "Cannot execute request - " + e.getMessage());
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            close();
+                        }
+                    });
+                    synchronized (this) {
+                        executing = false;
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Keeps a frame over the rate limit until its turn, leaving the
+         * connection executing so the frames after it wait too.  After the
+         * wait the event loop hands the connection back to the workers,
+         * which ask the limiter again.
+         */
+        void hold(byte[] frame, long wait) {
+            synchronized (this) {
+                held = frame;
+            }
+            ModbusTransaction.getTimerWheel().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (Connection.this) {
+                                if (closed) {
+                                    return;
+                                }
+                            }
+                            threadPool.execute(Connection.this);
+                        }
+                    });
+                }
+            }, wait, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Reads again after the workers have caught up, on the loop thread
+         */
+        void resume() {
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                if (input != null) {
+                    split();
+                }
+            }
+            catch (IOException e) {
+                Log.d(TAG, "Closing connection - " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Writes a response, queuing what the socket does not take for the
+         * event loop
+         */
+        void write(ByteBuffer buffer) throws IOException {
+            synchronized (this) {
+                if (output.isEmpty()) {
+                    channel.write(buffer);
+                    if (!buffer.hasRemaining()) {
+                        return;
+                    }
+                    output.add(buffer);
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (key.isValid()) {
+                                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            }
+                        }
+                    });
+                }
+                else {
+                    output.add(buffer);
+                }
+            }
+        }
+
+        /**
+         * Writes the queued output, on the loop thread
+         */
+        void flush() throws IOException {
+            synchronized (this) {
+                ByteBuffer buffer;
+                while ((buffer = output.peek()) != null) {
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                    output.poll();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Closes the connection, on the loop thread
+         */
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                frames.clear();
+                output.clear();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            if (input != null) {
+                loop.release(input);
+                input = null;
+            }
+            closeQuietly(channel);
+            if (session != null) {
+                session.close();
+            }
+            connectionCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the <tt>SO_REUSEPORT</tt> option if the platform has it.  The
+     * class is not named in the code, so loading the listener cannot fail
+     * where it is missing.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePort() {
+        try {
+            return (SocketOption<Boolean>) Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            Log.d(TAG, "SO_REUSEPORT is not available - " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Closes a channel ignoring errors
+     */
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            Log.d(TAG, "Error closing channel - " + e.getMessage());
+        }
+    }
+}
@@ -21,12 +21,29 @@ import com.ghgande.j2mod.modbus.util.ThreadPool;
 
 import java.io.IOException;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class that implements a ModbusTCPListener.
  * <p>
  * If listening, it accepts incoming requests passing them on to be handled.
  * If not listening, silently drops the requests.
+ * <p>
+ * Every connection is served by a thread of the pool for as long as it is
+ * open, so the pool size is the number of masters served at once.  By
+ * default no more connections than that are admitted; with a higher
+ * connection limit the extra connections wait for a thread.  A connection
+ * over the limit is closed, or with {@link RejectPolicy#CLOSE_IDLE} the
+ * connection that has been idle longest makes way for it.  Connections that
+ * send nothing for the idle timeout are closed.
+ * <p>
+ * Requests pipelined on a connection are answered in batches, see
+ * {@link TCPConnectionHandler}.  With pipeline workers the read requests of
+ * a batch are executed concurrently on a pool shared by all connections.
  *
  * @author Dieter Wimberger
  * @author Julie Haugh
@@ -34,11 +51,36 @@ import java.net.*;
  * @version 2.0 (March 2016)
  */
 public class ModbusTCPListener extends AbstractModbusListener {
-    
+
+    private static final String TAG = "ModbusTCPListener";
+
+    /**
+     * What to do with a connection that arrives when the listener is full
+     */
+    public enum RejectPolicy {
+        /**
+         * Close the new connection
+         */
+        CLOSE_NEW,
+
+        /**
+         * Close the connection that has been idle longest to make room
+         */
+        CLOSE_IDLE
+    }
+
     private ServerSocket serverSocket = null;
     private ThreadPool threadPool;
     private Thread listener;
     private boolean useRtuOverTcp;
+    private final int poolSize;
+    private volatile int maxConnections;
+    private volatile int idleTimeout;
+    private volatile int pipelineWorkers;
+    private ThreadPool workerPool;
+    private volatile RejectPolicy rejectPolicy = RejectPolicy.CLOSE_NEW;
+    private final Set<TCPConnectionHandler> connections = new HashSet<TCPConnectionHandler>();
+    private final AtomicLong rejectedCount = new AtomicLong();
 
     /**
      * Constructs a ModbusTCPListener instance.<br>
@@ -60,7 +102,8 @@ public class ModbusTCPListener extends AbstractModbusListener {
      * @param useRtuOverTcp True if the RTU protocol should be used over TCP
      */
     public ModbusTCPListener(int poolsize, InetAddress addr, boolean useRtuOverTcp) {
-        threadPool = new ThreadPool(poolsize);
+        poolSize = Math.max(1, poolsize);
+        maxConnections = poolSize;
         address = addr;
         this.useRtuOverTcp = useRtuOverTcp;
     }
@@ -89,7 +132,8 @@ public class ModbusTCPListener extends AbstractModbusListener {
      * @param useRtuOverTcp True if the RTU protocol should be used over TCP
      */
     public ModbusTCPListener(int poolsize, boolean useRtuOverTcp) {
-        threadPool = new ThreadPool(poolsize);
+        poolSize = Math.max(1, poolsize);
+        maxConnections = poolSize;
         try {
             address = InetAddress.getByAddress(new byte[]{0, 0, 0, 0});
         }
@@ -99,6 +143,113 @@ public class ModbusTCPListener extends AbstractModbusListener {
         this.useRtuOverTcp = useRtuOverTcp;
     }
 
+    /**
+     * Returns the number of connections admitted at once
+     *
+     * @return Connection limit
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the number of connections admitted at once.  Connections beyond
+     * the pool size wait for a thread; the limit cannot be less than the pool
+     * size and takes effect when the listener is next started.
+     *
+     * @param maxConnections Connection limit
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(poolSize, maxConnections);
+    }
+
+    /**
+     * Returns the time a connection may go without a request before it is closed
+     *
+     * @return Timeout in milliseconds, 0 for none
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the time a connection may go without a request before it is
+     * closed; applies to connections accepted from now on
+     *
+     * @param idleTimeout Timeout in milliseconds, 0 for none
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = Math.max(0, idleTimeout);
+    }
+
+    /**
+     * Returns the number of threads executing pipelined read requests
+     *
+     * @return Worker count, 0 if pipelined requests are executed in turn
+     */
+    public int getPipelineWorkers() {
+        return pipelineWorkers;
+    }
+
+    /**
+     * Sets the number of threads shared by the connections to execute
+     * pipelined read requests concurrently; takes effect when the listener
+     * is next started
+     *
+     * @param pipelineWorkers Worker count, 0 to execute pipelined requests in turn
+     */
+    public void setPipelineWorkers(int pipelineWorkers) {
+        this.pipelineWorkers = Math.max(0, pipelineWorkers);
+    }
+
+    /**
+     * Returns what is done with connections beyond the limit
+     *
+     * @return Policy
+     */
+    public RejectPolicy getRejectPolicy() {
+        return rejectPolicy;
+    }
+
+    /**
+     * Sets what is done with connections beyond the limit
+     *
+     * @param rejectPolicy Policy
+     */
+    public void setRejectPolicy(RejectPolicy rejectPolicy) {
+        this.rejectPolicy = rejectPolicy == null ? RejectPolicy.CLOSE_NEW : rejectPolicy;
+    }
+
+    /**
+     * Returns the number of open connections, served or waiting for a thread
+     *
+     * @return Connection count
+     */
+    public int getConnectionCount() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+    /**
+     * Returns the number of connections closed because the listener was
+     * full, new ones refused and idle ones closed to make room
+     *
+     * @return Rejected connection count
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the pool serving the connections, for its metrics
+     *
+     * @return Pool or null if the listener has not been started
+     */
+    public ThreadPool getThreadPool() {
+        return threadPool;
+    }
+
     @Override
     public void setTimeout(int timeout) {
         super.setTimeout(timeout);
@@ -146,8 +297,17 @@ public class ModbusTCPListener extends AbstractModbusListener {
         listening = true;
         try {
 
-            // Initialise the message handling pool
+            // Initialise the message handling pool, with room in the queue for
+            // the connections beyond the pool size
+            threadPool = new ThreadPool(poolSize, maxConnections);
             threadPool.initPool(threadName);
+            if (pipelineWorkers > 0) {
+                workerPool = new ThreadPool(pipelineWorkers, pipelineWorkers * TCPConnectionHandler.MAX_PIPELINE_DEPTH);
+                workerPool.initPool(threadName + " Pipeline");
+            }
+            else {
+                workerPool = null;
+            }
 
             // Infinite loop, taking care of resources in case of a lot of
             // parallel logins
@@ -161,9 +321,7 @@ public class ModbusTCPListener extends AbstractModbusListener {
                 }
                 Log.e("Mak new connection {}", incoming.toString());
                 if (listening) {
-                    TCPSlaveConnection slave = new TCPSlaveConnection(incoming, useRtuOverTcp);
-                    slave.setTimeout(timeout);
-                    threadPool.execute(new TCPConnectionHandler(this, slave));
+                    admit(incoming);
                 }
                 else {
                     incoming.close();
@@ -177,6 +335,94 @@ public class ModbusTCPListener extends AbstractModbusListener {
             if (threadPool != null) {
                 threadPool.close();
             }
+            if (workerPool != null) {
+                workerPool.close();
+            }
+            closeConnections();
+        }
+    }
+
+    /**
+     * Hands a new connection to the pool if there is room for it
+     *
+     * @param incoming Socket of the connection
+     * @throws IOException if the socket cannot be closed
+     */
+    private void admit(Socket incoming) throws IOException {
+        final TCPConnectionHandler handler;
+        TCPConnectionHandler evicted = null;
+        synchronized (connections) {
+            if (connections.size() >= maxConnections) {
+                if (rejectPolicy == RejectPolicy.CLOSE_IDLE) {
+                    evicted = findIdlest();
+                }
+                if (evicted == null) {
+                    rejectedCount.incrementAndGet();
+                    Log.d(TAG, "Connection limit reached, refusing " + incoming);
+                    incoming.close();
+                    return;
+                }
+                connections.remove(evicted);
+                rejectedCount.incrementAndGet();
+            }
+            TCPSlaveConnection slave = new TCPSlaveConnection(incoming, useRtuOverTcp);
+            slave.setTimeout(idleTimeout > 0 ? idleTimeout : timeout);
+            handler = new TCPConnectionHandler(this, slave, workerPool);
+            connections.add(handler);
+        }
+        if (evicted != null) {
+            Log.d(TAG, "Connection limit reached, closing an idle connection");
+            evicted.close();
+        }
+        boolean queued = threadPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.run();
+                }
+                finally {
+                    synchronized (connections) {
+                        connections.remove(handler);
+                    }
+                }
+            }
+        });
+        if (!queued) {
+            synchronized (connections) {
+                connections.remove(handler);
+            }
+            rejectedCount.incrementAndGet();
+            handler.close();
+        }
+    }
+
+    /**
+     * Returns the connection that has gone longest without a request
+     */
+    private TCPConnectionHandler findIdlest() {
+        TCPConnectionHandler idlest = null;
+        long longest = -1;
+        for (TCPConnectionHandler handler : connections) {
+            long idle = handler.getIdleTime();
+            if (idle > longest) {
+                longest = idle;
+                idlest = handler;
+            }
+        }
+        return idlest;
+    }
+
+    /**
+     * Closes all of the open connections
+     */
+    private void closeConnections() {
+        List<TCPConnectionHandler> open;
+        synchronized (connections) {
+            open = new ArrayList<TCPConnectionHandler>(connections);
+            connections.clear();
+        }
+        for (TCPConnectionHandler handler : open) {
+            handler.close();
         }
     }
 
@@ -193,6 +439,10 @@ public class ModbusTCPListener extends AbstractModbusListener {
             if (threadPool != null) {
                 threadPool.close();
             }
+            if (workerPool != null) {
+                workerPool.close();
+            }
+            closeConnections();
         }
         catch (Exception ex) {
             Log.e("tag","Error while stopping ModbusTCPListener"+ex.toString());
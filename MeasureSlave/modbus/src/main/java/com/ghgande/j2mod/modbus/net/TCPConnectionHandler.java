@@ -17,11 +17,38 @@ package com.ghgande.j2mod.modbus.net;
 
 import android.util.Log;
 
+import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.io.AbstractModbusTransport;
+import com.ghgande.j2mod.modbus.io.ModbusTCPTransport;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.RequestView;
+import com.ghgande.j2mod.modbus.msg.ResponseEncoder;
+import com.ghgande.j2mod.modbus.util.ThreadPool;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Class implementing a handler for incoming Modbus/TCP requests.
+ * <p>
+ * A master may pipeline requests, sending more before the first has been
+ * answered.  After each request the handler reads whatever further requests
+ * have already arrived, up to {@link #MAX_PIPELINE_DEPTH}, and answers the
+ * batch with a single flush.  Given a pool of workers, the runs of read
+ * requests in a batch are executed concurrently; any other request, or a
+ * read whose function code has a handler registered in place of the
+ * standard one, acts as a barrier, executed alone once the requests before
+ * it have finished, so writes are seen by the reads that follow them.
+ * Responses are written in the order of the requests.  Requests over the
+ * limits of the rate limiter of the listener are answered with a busy
+ * exception instead.
+ * <p>
+ * The common reads are answered without request or response objects: the
+ * request is read in place with a {@link RequestView} and the response is
+ * encoded from the process image into a buffer of the handler, see
+ * {@link ResponseEncoder}.
  *
  * @author Dieter Wimberger
  * @author Steve O'Hara (4NG)
@@ -29,10 +56,31 @@ import com.ghgande.j2mod.modbus.io.AbstractModbusTransport;
  */
 public class TCPConnectionHandler implements Runnable {
 
+    /**
+     * Largest number of requests read ahead and answered as one batch (=<tt>16</tt>)
+     */
+    public static final int MAX_PIPELINE_DEPTH = 16;
+
+    // Room for the framing and PDU of one response
+    private static final int FRAME_SLOT = ModbusTCPTransport.PDU_OFFSET + ResponseEncoder.MAX_PDU_LENGTH + 2;
 
     private TCPSlaveConnection connection;
     private AbstractModbusTransport transport;
     private AbstractModbusListener listener;
+    private ThreadPool workers;
+    private RateLimiter.Session session;
+
+    // Requests of a batch, read in place into views; decoded only where a view does not support them
+    private final byte[] requestFrames = new byte[MAX_PIPELINE_DEPTH * ModbusTCPTransport.MAX_FRAME_LENGTH];
+    private final RequestView[] views = new RequestView[MAX_PIPELINE_DEPTH];
+    private final ModbusRequest[] requests = new ModbusRequest[MAX_PIPELINE_DEPTH];
+
+    // Responses of a batch, encoded straight from the process image into a slot per request or as objects
+    private final byte[] frames = new byte[MAX_PIPELINE_DEPTH * FRAME_SLOT];
+    private final int[] pduLengths = new int[MAX_PIPELINE_DEPTH];
+    private final ModbusResponse[] results = new ModbusResponse[MAX_PIPELINE_DEPTH];
+    private volatile long lastActivity = System.nanoTime();
+    private volatile boolean closed;
 
     /**
      * Constructs a new <tt>TCPConnectionHandler</tt> instance.
@@ -49,14 +97,40 @@ public class TCPConnectionHandler implements Runnable {
         this.listener = listener;
         this.connection = connection;
         transport = this.connection.getModbusTransport();
+        for (int i = 0; i < MAX_PIPELINE_DEPTH; i++) {
+            views[i] = new RequestView();
+        }
+    }
+
+    /**
+     * Constructs a new <tt>TCPConnectionHandler</tt> instance that executes
+     * pipelined read requests concurrently.
+     *
+     * @param listener   the listener that handled the incoming request
+     * @param connection an incoming connection.
+     * @param workers    pool to execute read requests on, null to execute them in turn
+     */
+    public TCPConnectionHandler(AbstractModbusListener listener, TCPSlaveConnection connection, ThreadPool workers) {
+        this(listener, connection);
+        this.workers = workers;
     }
 
     @Override
     public void run() {
+        RateLimiter limiter = listener.getRateLimiter();
+        if (limiter != null) {
+            session = limiter.open(connection.getAddress());
+        }
         try {
-            do {
-                listener.handleRequest(transport, listener);
-            } while (!Thread.currentThread().isInterrupted());
+            if (transport instanceof ModbusTCPTransport) {
+                servePipelined((ModbusTCPTransport) transport);
+            }
+            else {
+                while (!closed && !Thread.currentThread().isInterrupted()) {
+                    listener.handleRequest(transport, listener);
+                    lastActivity = System.nanoTime();
+                }
+            }
         }
         catch (ModbusIOException ex) {
             if (!ex.isEOF()) {
@@ -65,6 +139,209 @@ public class TCPConnectionHandler implements Runnable {
         }
         finally {
             connection.close();
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Reads requests in batches of those already received and answers each
+     * batch with one flush.  Unless the transport is headless, the frames
+     * are read into the buffer of the handler and wrapped in views; only the
+     * requests the views do not support are decoded into objects.
+     *
+     * @param tcpTransport Transport of the connection
+     * @throws ModbusIOException if the connection fails or is closed
+     */
+    private void servePipelined(ModbusTCPTransport tcpTransport) throws ModbusIOException {
+        boolean inPlace = !tcpTransport.isHeadless();
+        while (!closed && !Thread.currentThread().isInterrupted()) {
+            int count = 0;
+            do {
+                if (inPlace) {
+                    int offset = count * ModbusTCPTransport.MAX_FRAME_LENGTH;
+                    int length = tcpTransport.readFrame(requestFrames, offset);
+                    requests[count] = views[count].wrap(requestFrames, offset, length) ? null : decode(views[count]);
+                }
+                else {
+                    ModbusRequest request = tcpTransport.readRequest(listener);
+                    if (request == null) {
+                        throw new ModbusIOException("Request for transport %s is invalid (null)", transport.getClass().getSimpleName());
+                    }
+                    requests[count] = request;
+                }
+                count++;
+            } while (count < MAX_PIPELINE_DEPTH && tcpTransport.available() > 0);
+
+            execute(count, tcpTransport);
+            lastActivity = System.nanoTime();
+        }
+    }
+
+    /**
+     * Decodes a frame into a request object of the handler of its function code
+     *
+     * @param view View of the frame
+     * @return Request
+     * @throws ModbusIOException if the frame is not a valid request
+     */
+    private ModbusRequest decode(RequestView view) throws ModbusIOException {
+        try {
+            return view.toRequest(listener.createRequest(view.getUnitID(), view.getFunctionCode()));
         }
+        catch (IOException ex) {
+            throw new ModbusIOException("I/O exception - failed to read", ex);
+        }
+    }
+
+    /**
+     * Executes a batch, running consecutive read requests concurrently, and
+     * writes the responses with a flush after the last.  Responses hold
+     * references into the process image, so each run is written before the
+     * request after it executes.
+     *
+     * @param count        Number of requests in the batch
+     * @param tcpTransport Transport to write the responses to
+     * @throws ModbusIOException if a response cannot be written
+     */
+    private void execute(int count, ModbusTCPTransport tcpTransport) throws ModbusIOException {
+        for (int k = 0; k < count; k++) {
+            pduLengths[k] = -1;
+            results[k] = null;
+            if (session != null) {
+                results[k] = requests[k] != null ? session.admit(requests[k]) : session.admit(views[k]);
+            }
+        }
+        int i = 0;
+        while (i < count) {
+            int end = i + 1;
+            if (workers != null && isRead(i)) {
+                while (end < count && isRead(end)) {
+                    end++;
+                }
+            }
+            final CountDownLatch done = new CountDownLatch(end - i - 1);
+            for (int k = i + 1; k < end; k++) {
+                final int index = k;
+                Runnable task = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            execute(index);
+                        }
+                        finally {
+                            done.countDown();
+                        }
+                    }
+                };
+                if (!workers.execute(task)) {
+                    task.run();
+                }
+            }
+            execute(i);
+            try {
+                done.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ModbusIOException("Interrupted executing pipelined requests");
+            }
+            for (int k = i; k < end; k++) {
+                boolean flush = k == count - 1;
+                if (results[k] != null) {
+                    tcpTransport.writeResponse(results[k], flush);
+                }
+                else {
+                    tcpTransport.writeResponse(views[k], frames, k * FRAME_SLOT, pduLengths[k], flush);
+                }
+            }
+            i = end;
+        }
+    }
+
+    /**
+     * Executes one request of a batch, encoding the response straight from
+     * the process image into the frame slot of the request where it can, and
+     * answering a failure of the process image with a slave device failure
+     * rather than dropping the connection
+     *
+     * @param index Position of the request in the batch
+     */
+    private void execute(int index) {
+        if (results[index] != null) {
+            return;
+        }
+        try {
+            if (requests[index] == null) {
+                int length = listener.encodeResponse(views[index], frames, index * FRAME_SLOT + ModbusTCPTransport.PDU_OFFSET);
+                if (length >= 0) {
+                    pduLengths[index] = length;
+                    return;
+                }
+                requests[index] = decode(views[index]);
+            }
+            results[index] = listener.createResponse(requests[index]);
+        }
+        catch (ModbusIOException e) {
+            fail(index, e);
+        }
+        catch (RuntimeException e) {
+            fail(index, e);
+        }
+    }
+
+    /**
+     * Answers a request of the batch that failed with a slave device failure
+     */
+    private void fail(int index, Exception e) {
+        Log.d("tag", "Request failed - " + e.getMessage());
+        if (requests[index] != null) {
+            results[index] = requests[index].createExceptionResponse(Modbus.SLAVE_DEVICE_FAILURE);
+        }
+        else {
+            results[index] = views[index].createExceptionResponse(Modbus.SLAVE_DEVICE_FAILURE);
+        }
+    }
+
+    /**
+     * Returns true if a request of the batch only reads the process image,
+     * so it may run alongside other reads.  A custom handler may do anything,
+     * so only the standard handlers count.
+     */
+    private boolean isRead(int index) {
+        int unitId = requests[index] != null ? requests[index].getUnitID() : views[index].getUnitID();
+        int functionCode = requests[index] != null ? requests[index].getFunctionCode() : views[index].getFunctionCode();
+        if (!listener.getFunctionCodeRegistry().isStandard(unitId, functionCode)) {
+            return false;
+        }
+        switch (functionCode) {
+            case Modbus.READ_COILS:
+            case Modbus.READ_INPUT_DISCRETES:
+            case Modbus.READ_HOLDING_REGISTERS:
+            case Modbus.READ_INPUT_REGISTERS:
+            case Modbus.READ_FILE_RECORD:
+            case Modbus.READ_FIFO_QUEUE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the time since the connection was accepted or last served a request
+     *
+     * @return Idle time in nanoseconds
+     */
+    public long getIdleTime() {
+        return System.nanoTime() - lastActivity;
+    }
+
+    /**
+     * Closes the connection, ending the handler if it is running
+     */
+    public void close() {
+        closed = true;
+        connection.close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+/**
+ * Four read-only registers exposing the monotonic clock of the slave, so a
+ * master can estimate the offset between its clock and the slave's with
+ * ordinary register reads.
+ * <p>
+ * The clock is a 64-bit count of microseconds from an arbitrary origin, high
+ * word first.  The registers are {@link GroupedRegister}s, so the block must
+ * be read as a whole and a read of part of it fails with an illegal address
+ * exception.  Every read latches the clock as it reads the first register
+ * and the other three return the rest of the value that read latched, so
+ * the value is consistent and taken as close as possible to the moment the
+ * request is served, even when several masters read at once.  Responses
+ * covering the block are never cached.  Writes are refused with an illegal
+ * address exception.
+ */
+public class ClockRegisterBlock {
+
+    /**
+     * Number of registers in the block (=<tt>4</tt>)
+     */
+    public static final int REGISTER_COUNT = 4;
+
+    private final ClockRegister[] registers = new ClockRegister[REGISTER_COUNT];
+    private final ThreadLocal<long[]> readLatch = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+    private volatile long latched;
+
+    /**
+     * Creates a block
+     */
+    public ClockRegisterBlock() {
+        for (int i = 0; i < REGISTER_COUNT; i++) {
+            registers[i] = new ClockRegister(i);
+        }
+    }
+
+    /**
+     * Adds the block to the holding registers of an image
+     *
+     * @param image Process image
+     * @param ref   Address of the first register
+     */
+    public void addTo(SimpleProcessImage image, int ref) {
+        for (int i = 0; i < REGISTER_COUNT; i++) {
+            image.addRegister(ref + i, registers[i]);
+        }
+    }
+
+    /**
+     * Adds the block to the input registers of an image
+     *
+     * @param image Process image
+     * @param ref   Address of the first register
+     */
+    public void addInputsTo(SimpleProcessImage image, int ref) {
+        for (int i = 0; i < REGISTER_COUNT; i++) {
+            image.addInputRegister(ref + i, registers[i]);
+        }
+    }
+
+    /**
+     * Returns one of the registers
+     *
+     * @param index Register 0 to 3, 0 holding the high word
+     * @return Register
+     */
+    public Register getRegister(int index) {
+        return registers[index];
+    }
+
+    /**
+     * Returns the current clock
+     *
+     * @return Microseconds from an arbitrary origin
+     */
+    public long currentTime() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * Returns the value latched by the last read of the block
+     *
+     * @return Microseconds
+     */
+    public long getLatchedTime() {
+        return latched;
+    }
+
+    /**
+     * One word of the clock
+     */
+    private class ClockRegister implements Register, GroupedRegister {
+        private final int index;
+
+        ClockRegister(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int getGroupIndex() {
+            return index;
+        }
+
+        @Override
+        public int getGroupSize() {
+            return REGISTER_COUNT;
+        }
+
+        @Override
+        public int getValue() {
+            long[] latch = readLatch.get();
+            if (index == 0) {
+                latch[0] = currentTime();
+                latched = latch[0];
+            }
+            return (int) (latch[0] >>> (16 * (REGISTER_COUNT - 1 - index))) & 0xffff;
+        }
+
+        @Override
+        public int toUnsignedShort() {
+            return getValue();
+        }
+
+        @Override
+        public short toShort() {
+            return (short) getValue();
+        }
+
+        @Override
+        public byte[] toBytes() {
+            int value = getValue();
+            return new byte[]{(byte) (value >> 8), (byte) value};
+        }
+
+        @Override
+        public void setValue(int v) {
+            throw new IllegalAddressException();
+        }
+
+        @Override
+        public void setValue(short s) {
+            throw new IllegalAddressException();
+        }
+
+        @Override
+        public void setValue(byte[] bytes) {
+            throw new IllegalAddressException();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+/**
+ * A register that is one of a group of consecutive registers whose values
+ * are computed together when the group is read, such as the words of a
+ * {@link ClockRegisterBlock}.
+ * <p>
+ * The group only makes sense read as a whole, so a read that covers part
+ * of it fails with an illegal address exception.  As the values change on
+ * every read, responses covering a group are never cached.
+ */
+public interface GroupedRegister extends InputRegister {
+
+    /**
+     * Returns the position of the register in its group
+     *
+     * @return Index from 0
+     */
+    int getGroupIndex();
+
+    /**
+     * Returns the number of registers in the group
+     *
+     * @return Group size
+     */
+    int getGroupSize();
+}
@@ -18,7 +18,10 @@ package com.ghgande.j2mod.modbus.slave;
 import android.util.Log;
 
 import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.msg.FunctionCodeHandler;
+import com.ghgande.j2mod.modbus.msg.FunctionCodeRegistry;
 import com.ghgande.j2mod.modbus.net.AbstractModbusListener;
+import com.ghgande.j2mod.modbus.net.ModbusNIOTCPListener;
 import com.ghgande.j2mod.modbus.net.ModbusSerialListener;
 import com.ghgande.j2mod.modbus.net.ModbusTCPListener;
 import com.ghgande.j2mod.modbus.net.ModbusUDPListener;
@@ -27,8 +30,7 @@ import com.ghgande.j2mod.modbus.util.ModbusUtil;
 import com.ghgande.j2mod.modbus.util.SerialParameters;
 
 import java.net.InetAddress;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Class that implements a wrapper around a Slave Listener
@@ -38,6 +40,7 @@ import java.util.Map;
  */
 public class ModbusSlave {
 
+    private static final int UNIT_COUNT = 256;
 
     private ModbusSlaveType type;
     private int port;
@@ -46,18 +49,19 @@ public class ModbusSlave {
     private boolean isRunning;
     private Thread listenerThread;
 
-    private Map<Integer, ProcessImage> processImages = new HashMap<Integer, ProcessImage>();
+    // Process images indexed by unit ID, read without locking on every request
+    private final AtomicReferenceArray<ProcessImage> processImages = new AtomicReferenceArray<ProcessImage>(UNIT_COUNT);
 
     /**
      * Creates a TCP modbus slave
      *
      * @param port          Port to listen on if IP type
-     * @param poolSize      Pool size for TCP slaves
+     * @param poolSize      Number of connections served at once
      * @param useRtuOverTcp True if the RTU protocol should be used over TCP
      * @throws ModbusException If a problem occurs e.g. port already in use
      */
     protected ModbusSlave(int port, int poolSize, boolean useRtuOverTcp) throws ModbusException {
-        this(ModbusSlaveType.TCP, null, port, poolSize, null, useRtuOverTcp);
+        this(ModbusSlaveType.TCP, null, port, poolSize, null, useRtuOverTcp, 0);
     }
 
     /**
@@ -65,12 +69,25 @@ public class ModbusSlave {
      *
      * @param address       IP address to listen on
      * @param port          Port to listen on if IP type
-     * @param poolSize      Pool size for TCP slaves
+     * @param poolSize      Number of connections served at once
      * @param useRtuOverTcp True if the RTU protocol should be used over TCP
      * @throws ModbusException If a problem occurs e.g. port already in use
      */
     protected ModbusSlave(InetAddress address, int port, int poolSize, boolean useRtuOverTcp) throws ModbusException {
-        this(ModbusSlaveType.TCP, address, port, poolSize, null, useRtuOverTcp);
+        this(ModbusSlaveType.TCP, address, port, poolSize, null, useRtuOverTcp, 0);
+    }
+
+    /**
+     * Creates a TCP modbus slave served by non-blocking event loops
+     *
+     * @param address    IP address to listen on
+     * @param port       Port to listen on
+     * @param poolSize   Number of worker threads executing requests
+     * @param eventLoops Number of event loop threads
+     * @throws ModbusException If a problem occurs e.g. port already in use
+     */
+    protected ModbusSlave(InetAddress address, int port, int poolSize, int eventLoops) throws ModbusException {
+        this(ModbusSlaveType.TCP, address, port, poolSize, null, false, eventLoops);
     }
 
     /**
@@ -81,7 +98,7 @@ public class ModbusSlave {
      * @throws ModbusException If a problem occurs e.g. port already in use
      */
     protected ModbusSlave(int port, boolean useRtuOverTcp) throws ModbusException {
-        this(ModbusSlaveType.UDP, null, port, 0, null, useRtuOverTcp);
+        this(ModbusSlaveType.UDP, null, port, 0, null, useRtuOverTcp, 0);
     }
 
     /**
@@ -93,7 +110,7 @@ public class ModbusSlave {
      * @throws ModbusException If a problem occurs e.g. port already in use
      */
     protected ModbusSlave(InetAddress address, int port, boolean useRtuOverTcp) throws ModbusException {
-        this(ModbusSlaveType.UDP, address, port, 0, null, useRtuOverTcp);
+        this(ModbusSlaveType.UDP, address, port, 0, null, useRtuOverTcp, 0);
     }
 
     /**
@@ -103,7 +120,7 @@ public class ModbusSlave {
      * @throws ModbusException If a problem occurs e.g. port already in use
      */
     protected ModbusSlave(SerialParameters serialParams) throws ModbusException {
-        this(ModbusSlaveType.SERIAL, null, 0, 0, serialParams, false);
+        this(ModbusSlaveType.SERIAL, null, 0, 0, serialParams, false, 0);
     }
 
     /**
@@ -115,9 +132,10 @@ public class ModbusSlave {
      * @param poolSize      Pool size for TCP slaves
      * @param serialParams  Serial parameters for serial type slaves
      * @param useRtuOverTcp True if the RTU protocol should be used over TCP
+     * @param eventLoops    Number of event loops of a non-blocking TCP slave, 0 for a thread per connection
      * @throws ModbusException If a problem occurs e.g. port already in use
      */
-    private ModbusSlave(ModbusSlaveType type, InetAddress address, int port, int poolSize, SerialParameters serialParams, boolean useRtuOverTcp) throws ModbusException {
+    private ModbusSlave(ModbusSlaveType type, InetAddress address, int port, int poolSize, SerialParameters serialParams, boolean useRtuOverTcp, int eventLoops) throws ModbusException {
         this.type = type == null ? ModbusSlaveType.TCP : type;
         this.port = port;
         this.serialParams = serialParams;
@@ -128,6 +146,9 @@ public class ModbusSlave {
         if (this.type.is(ModbusSlaveType.UDP)) {
             listener = new ModbusUDPListener();
         }
+        else if (this.type.is(ModbusSlaveType.TCP) && eventLoops > 0) {
+            listener = new ModbusNIOTCPListener(poolSize, address, eventLoops);
+        }
         else if (this.type.is(ModbusSlaveType.TCP)) {
             listener = new ModbusTCPListener(poolSize, useRtuOverTcp);
         }
@@ -135,6 +156,7 @@ public class ModbusSlave {
             listener = new ModbusSerialListener(serialParams);
         }
 
+        listener.setSlave(this);
         listener.setListening(true);
         listener.setAddress(address);
         listener.setPort(port);
@@ -163,10 +185,10 @@ public class ModbusSlave {
      * Returns the process image for the given Unit ID
      *
      * @param unitId Unit ID of the associated image
-     * @return Process image
+     * @return Process image, null if there is none for the unit
      */
     public ProcessImage getProcessImage(int unitId) {
-        return processImages.get(unitId);
+        return unitId >= 0 && unitId < UNIT_COUNT ? processImages.get(unitId) : null;
     }
 
     /**
@@ -176,18 +198,52 @@ public class ModbusSlave {
      * @return Process image
      */
     public ProcessImage removeProcessImage(int unitId) {
-        return processImages.remove(unitId);
+        return unitId >= 0 && unitId < UNIT_COUNT ? processImages.getAndSet(unitId, null) : null;
     }
 
     /**
      * Adds a process image for the given Unit ID
      *
-     * @param unitId Unit ID to associate with this image
+     * @param unitId Unit ID to associate with this image, 0 to 255
      * @param processImage Process image to add
      * @return Process image
      */
     public ProcessImage addProcessImage(int unitId, ProcessImage processImage) {
-        return processImages.put(unitId, processImage);
+        if (unitId < 0 || unitId >= UNIT_COUNT) {
+            throw new IllegalArgumentException("Invalid unit ID " + unitId);
+        }
+        return processImages.getAndSet(unitId, processImage);
+    }
+
+    /**
+     * Registers the handler of a function code for all units of this slave
+     * without one of their own
+     *
+     * @param functionCode Function code, 1 to 127
+     * @param handler      Handler, null to restore the standard one
+     */
+    public void registerHandler(int functionCode, FunctionCodeHandler handler) {
+        listener.getFunctionCodeRegistry().register(functionCode, handler);
+    }
+
+    /**
+     * Registers the handler of a function code for one unit of this slave
+     *
+     * @param unitId       Unit ID, 0 to 255
+     * @param functionCode Function code, 1 to 127
+     * @param handler      Handler, null to serve the unit like the others
+     */
+    public void registerHandler(int unitId, int functionCode, FunctionCodeHandler handler) {
+        listener.getFunctionCodeRegistry().register(unitId, functionCode, handler);
+    }
+
+    /**
+     * Returns the handlers of the function codes this slave serves
+     *
+     * @return Function code registry
+     */
+    public FunctionCodeRegistry getFunctionCodeRegistry() {
+        return listener.getFunctionCodeRegistry();
     }
 
     /**
@@ -239,11 +295,12 @@ public class ModbusSlave {
     }
 
     /**
-     * Returns the listener used for this port
+     * Returns the listener used for this port, to configure its limits or
+     * read its metrics
      *
      * @return Listener
      */
-    protected AbstractModbusListener getListener() {
+    public AbstractModbusListener getListener() {
         return listener;
     }
 
@@ -17,6 +17,7 @@ package com.ghgande.j2mod.modbus.slave;
 
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.net.AbstractModbusListener;
+import com.ghgande.j2mod.modbus.net.ModbusNIOTCPListener;
 import com.ghgande.j2mod.modbus.util.ModbusUtil;
 import com.ghgande.j2mod.modbus.util.SerialParameters;
 
@@ -41,7 +42,7 @@ public class ModbusSlaveFactory {
      * Creates a TCP modbus slave or returns the one already allocated to this port
      *
      * @param port     Port to listen on
-     * @param poolSize Pool size of listener threads
+     * @param poolSize Number of connections served at once, further ones are refused
      * @return new or existing TCP modbus slave associated with the port
      *
      * @throws ModbusException If a problem occurs e.g. port already in use
@@ -54,7 +55,7 @@ public class ModbusSlaveFactory {
      * Creates a TCP modbus slave or returns the one already allocated to this port
      *
      * @param port          Port to listen on
-     * @param poolSize      Pool size of listener threads
+     * @param poolSize      Number of connections served at once, further ones are refused
      * @param useRtuOverTcp True if the RTU protocol should be used over TCP
      * @return new or existing TCP modbus slave associated with the port
      *
@@ -69,7 +70,7 @@ public class ModbusSlaveFactory {
      *
      * @param address       IP address to listen on
      * @param port          Port to listen on
-     * @param poolSize      Pool size of listener threads
+     * @param poolSize      Number of connections served at once, further ones are refused
      * @param useRtuOverTcp True if the RTU protocol should be used over TCP
      * @return new or existing TCP modbus slave associated with the port
      *
@@ -87,6 +88,44 @@ public class ModbusSlaveFactory {
         }
     }
 
+    /**
+     * Creates a TCP modbus slave served by a single non-blocking event loop, or
+     * returns the one already allocated to this port
+     *
+     * @param port     Port to listen on
+     * @param poolSize Number of worker threads executing requests
+     * @return new or existing TCP modbus slave associated with the port
+     *
+     * @throws ModbusException If a problem occurs e.g. port already in use
+     */
+    public static synchronized ModbusSlave createNIOTCPSlave(int port, int poolSize) throws ModbusException {
+        return createNIOTCPSlave(null, port, poolSize, ModbusNIOTCPListener.DEFAULT_EVENT_LOOPS);
+    }
+
+    /**
+     * Creates a TCP modbus slave served by non-blocking event loops, or
+     * returns the one already allocated to this port
+     *
+     * @param address    IP address to listen on
+     * @param port       Port to listen on
+     * @param poolSize   Number of worker threads executing requests
+     * @param eventLoops Number of event loop threads the connections are spread over
+     * @return new or existing TCP modbus slave associated with the port
+     *
+     * @throws ModbusException If a problem occurs e.g. port already in use
+     */
+    public static synchronized ModbusSlave createNIOTCPSlave(InetAddress address, int port, int poolSize, int eventLoops) throws ModbusException {
+        String key = ModbusSlaveType.TCP.getKey(port);
+        if (slaves.containsKey(key)) {
+            return slaves.get(key);
+        }
+        else {
+            ModbusSlave slave = new ModbusSlave(address, port, poolSize, eventLoops);
+            slaves.put(key, slave);
+            return slave;
+        }
+    }
+
     /**
      * Creates a UDP modbus slave or returns the one already allocated to this port
      *
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+import com.ghgande.j2mod.modbus.io.ModbusTransaction;
+import com.ghgande.j2mod.modbus.util.HashedTimerWheel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates {@link Alarm}s incrementally from the change sets of a
+ * {@link TagDatabase} or {@link RegisterDiff}.
+ * <p>
+ * A reverse index from input to alarms means that only the alarms on inputs
+ * that were reported are evaluated, so a quiet poll costs nothing.  On and
+ * off delays are run on a {@link HashedTimerWheel}, and rate of change alarms
+ * that are raised are re-checked once their input has been quiet for the rate
+ * timeout, since a value that stops changing produces no more change sets.
+ * <p>
+ * Raised and cleared transitions are published on a lock free queue that
+ * consumers drain from their own thread with {@link #pollEvent()}.
+ */
+public class AlarmEngine implements ChangeSetListener {
+
+    /**
+     * Default time an input of a raised rate alarm may be quiet before its rate is taken as zero (=<tt>1000</tt>)
+     */
+    public static final long DEFAULT_RATE_TIMEOUT = 1000;
+
+    private final HashedTimerWheel wheel;
+    private final ConcurrentLinkedQueue<AlarmEvent> events = new ConcurrentLinkedQueue<AlarmEvent>();
+    private Alarm[] alarms = new Alarm[0];
+    private Alarm[][] byInput = new Alarm[0][];
+    private long rateTimeout = DEFAULT_RATE_TIMEOUT;
+    private int activeCount;
+    private long evaluations;
+
+    /**
+     * Creates an engine using the timer wheel shared with the transactions
+     */
+    public AlarmEngine() {
+        this(ModbusTransaction.getTimerWheel());
+    }
+
+    /**
+     * Creates an engine
+     *
+     * @param wheel Timer wheel for the delays
+     */
+    public AlarmEngine(HashedTimerWheel wheel) {
+        this.wheel = wheel;
+    }
+
+    /**
+     * Subscribes the engine to the change sets of a database
+     *
+     * @param database Database to watch
+     */
+    public void attach(TagDatabase database) {
+        database.addChangeSetListener(this);
+    }
+
+    /**
+     * Adds an alarm
+     *
+     * @param alarm Alarm to add
+     * @return The alarm
+     */
+    public synchronized Alarm addAlarm(Alarm alarm) {
+        if (alarm.added) {
+            throw new IllegalArgumentException("Alarm " + alarm.getName() + " has already been added to an engine");
+        }
+        if (alarm.getInput() < 0) {
+            throw new IllegalArgumentException("Alarm " + alarm.getName() + " has no input");
+        }
+        alarm.added = true;
+        alarms = Arrays.copyOf(alarms, alarms.length + 1);
+        alarms[alarms.length - 1] = alarm;
+        int input = alarm.getInput();
+        if (input >= byInput.length) {
+            byInput = Arrays.copyOf(byInput, Math.max(input + 1, byInput.length * 2));
+        }
+        Alarm[] list = byInput[input];
+        if (list == null) {
+            list = new Alarm[]{alarm};
+        }
+        else {
+            list = Arrays.copyOf(list, list.length + 1);
+            list[list.length - 1] = alarm;
+        }
+        byInput[input] = list;
+        return alarm;
+    }
+
+    /**
+     * Returns all of the alarms
+     *
+     * @return List of alarms
+     */
+    public synchronized List<Alarm> getAlarms() {
+        return new ArrayList<Alarm>(Arrays.asList(alarms));
+    }
+
+    /**
+     * Returns the alarms that are raised
+     *
+     * @return List of active alarms
+     */
+    public synchronized List<Alarm> getActiveAlarms() {
+        List<Alarm> list = new ArrayList<Alarm>();
+        for (Alarm alarm : alarms) {
+            if (alarm.active) {
+                list.add(alarm);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the number of alarms that are raised
+     *
+     * @return Active count
+     */
+    public synchronized int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * Returns the number of alarm evaluations made
+     *
+     * @return Evaluation count
+     */
+    public synchronized long getEvaluationCount() {
+        return evaluations;
+    }
+
+    /**
+     * Returns the time an input of a raised rate alarm may be quiet before its rate is taken as zero
+     *
+     * @return Timeout in milliseconds
+     */
+    public synchronized long getRateTimeout() {
+        return rateTimeout;
+    }
+
+    /**
+     * Sets the time an input of a raised rate alarm may be quiet before its
+     * rate is taken as zero.  Should be longer than the poll interval.
+     *
+     * @param rateTimeout Timeout in milliseconds
+     */
+    public synchronized void setRateTimeout(long rateTimeout) {
+        this.rateTimeout = Math.max(1, rateTimeout);
+    }
+
+    /**
+     * Takes the next transition from the queue
+     *
+     * @return Event or null if there are none
+     */
+    public AlarmEvent pollEvent() {
+        return events.poll();
+    }
+
+    /**
+     * Moves all of the queued transitions into a collection
+     *
+     * @param dest Collection to add to
+     * @return Number of events moved
+     */
+    public int drainEvents(Collection<AlarmEvent> dest) {
+        int count = 0;
+        AlarmEvent event;
+        while ((event = events.poll()) != null) {
+            dest.add(event);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void changed(ChangeSet changes) {
+        Alarm[][] index = byInput;
+        for (int i = 0; i < changes.size; i++) {
+            int input = changes.indexes[i];
+            if (input < index.length && index[input] != null) {
+                for (Alarm alarm : index[input]) {
+                    process(alarm, changes.values[i], changes.timestamp);
+                }
+            }
+        }
+    }
+
+    /**
+     * Feeds a single value from a source other than a change set
+     *
+     * @param input     Tag index or register address
+     * @param value     New value
+     * @param timestamp Time of the value in milliseconds
+     */
+    public synchronized void update(int input, double value, long timestamp) {
+        if (input < byInput.length && byInput[input] != null) {
+            for (Alarm alarm : byInput[input]) {
+                process(alarm, value, timestamp);
+            }
+        }
+    }
+
+    /**
+     * Evaluates an alarm against a new value, starting or cancelling its delay
+     * timer or changing its state.  The caller must hold the lock.
+     *
+     * @param alarm     Alarm to evaluate
+     * @param value     New value
+     * @param timestamp Time of the value
+     */
+    private void process(final Alarm alarm, double value, long timestamp) {
+        evaluations++;
+        boolean desired = alarm.evaluate(value, timestamp);
+        if (alarm.getType() == Alarm.Type.RATE) {
+            armQuietTimer(alarm, desired || alarm.active);
+        }
+        if (desired == alarm.active) {
+            cancelDelay(alarm);
+            return;
+        }
+        long delay = desired ? alarm.getOnDelay() : alarm.getOffDelay();
+        if (delay <= 0) {
+            cancelDelay(alarm);
+            transition(alarm, desired, value, timestamp);
+        }
+        else if (alarm.pending == null) {
+            final int generation = ++alarm.generation;
+            alarm.pending = wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (AlarmEngine.this) {
+                        if (alarm.generation == generation) {
+                            alarm.pending = null;
+                            transition(alarm, !alarm.active, alarm.value, System.currentTimeMillis());
+                        }
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Cancels a pending on or off delay
+     *
+     * @param alarm Alarm
+     */
+    private void cancelDelay(Alarm alarm) {
+        if (alarm.pending != null) {
+            alarm.generation++;
+            alarm.pending.cancel();
+            alarm.pending = null;
+        }
+    }
+
+    /**
+     * Re-arms the timer that re-evaluates a rate alarm once its input goes quiet
+     *
+     * @param alarm Rate alarm
+     * @param needed True if the alarm is raised or about to be
+     */
+    private void armQuietTimer(final Alarm alarm, boolean needed) {
+        if (alarm.quiet != null) {
+            alarm.quiet.cancel();
+            alarm.quiet = null;
+        }
+        if (needed) {
+            final long lastTime = alarm.lastTime;
+            alarm.quiet = wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (AlarmEngine.this) {
+                        if (alarm.lastTime == lastTime) {
+                            alarm.quiet = null;
+                            process(alarm, alarm.lastValue, System.currentTimeMillis());
+                        }
+                    }
+                }
+            }, rateTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Changes the state of an alarm and publishes the transition
+     *
+     * @param alarm     Alarm
+     * @param raised    New state
+     * @param value     Value that caused the change
+     * @param timestamp Time of the change
+     */
+    private void transition(Alarm alarm, boolean raised, double value, long timestamp) {
+        alarm.active = raised;
+        activeCount += raised ? 1 : -1;
+        events.add(new AlarmEvent(alarm, raised, value, timestamp));
+    }
+}
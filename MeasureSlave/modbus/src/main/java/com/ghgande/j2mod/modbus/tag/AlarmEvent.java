@@ -0,0 +1,75 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+/**
+ * A transition of an {@link Alarm} published by the {@link AlarmEngine}
+ */
+public class AlarmEvent {
+
+    private final Alarm alarm;
+    private final boolean raised;
+    private final double value;
+    private final long timestamp;
+
+    AlarmEvent(Alarm alarm, boolean raised, double value, long timestamp) {
+        this.alarm = alarm;
+        this.raised = raised;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Returns the alarm that changed state
+     *
+     * @return Alarm
+     */
+    public Alarm getAlarm() {
+        return alarm;
+    }
+
+    /**
+     * Returns true if the alarm was raised, false if it was cleared
+     *
+     * @return True if raised
+     */
+    public boolean isRaised() {
+        return raised;
+    }
+
+    /**
+     * Returns the input value that caused the transition
+     *
+     * @return Value
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the time of the transition
+     *
+     * @return Time in milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s (%s)", alarm.getName(), raised ? "raised" : "cleared", value);
+    }
+}
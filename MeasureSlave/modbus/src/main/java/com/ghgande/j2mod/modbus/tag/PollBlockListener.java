@@ -0,0 +1,33 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+/**
+ * Interface implemented by consumers of the raw items of every poll
+ */
+public interface PollBlockListener {
+
+    /**
+     * Called on the polling thread each time a block has been read, before it
+     * is decoded and whether or not it changed.  The items array is reused
+     * and is only valid for the duration of the call.
+     *
+     * @param block     Block that was read
+     * @param items     One 16-bit word or bit per item of the block
+     * @param timestamp Time of the read in milliseconds
+     */
+    void blockPolled(PollBlock block, int[] items, long timestamp);
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+import android.util.Log;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.facade.AbstractModbusMaster;
+import com.ghgande.j2mod.modbus.facade.RegisterMap.Table;
+import com.ghgande.j2mod.modbus.facade.WriteListener;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the blocks of a {@link TagDatabase} on a thread of its own, each at
+ * an interval that adapts to how often its values change.
+ * <p>
+ * Every block has a minimum and maximum interval.  A read that reports a
+ * change (outside the tag deadbands) halves the interval of the block, and a
+ * read that reports nothing lengthens it by a quarter, so static blocks drift
+ * out to their maximum interval and the bus time goes to the blocks that
+ * move.  A write to the addresses of a block polls it straight away at its
+ * minimum interval.  While the scheduler runs it listens to the writes made
+ * through its master, including those sent by a
+ * {@link com.ghgande.j2mod.modbus.facade.StoreAndForwardQueue} on it; writes
+ * made any other way can be announced with {@link #notifyWrite}.
+ * <p>
+ * The blocks are taken from the database when the scheduler is created.  A
+ * block that fails to read keeps its interval.
+ */
+public class PollScheduler {
+
+    private static final String TAG = "PollScheduler";
+
+    /**
+     * Factor applied to the interval of a block after a read with changes (=<tt>0.5</tt>)
+     */
+    public static final double SPEED_UP = 0.5;
+
+    /**
+     * Factor applied to the interval of a block after a read without changes (=<tt>1.25</tt>)
+     */
+    public static final double SLOW_DOWN = 1.25;
+
+    private final TagDatabase database;
+    private final AbstractModbusMaster master;
+    private final PollBlock[] blocks;
+    private final long[] minInterval;
+    private final long[] maxInterval;
+    private final long[] interval;
+    private final long[] due;
+    private final boolean[] written;
+    private final long[] pollCounts;
+    private final WriteListener writeListener = new WriteListener() {
+        @Override
+        public void written(int unitId, Table table, int ref, int count) {
+            notifyWrite(unitId, table, ref, count);
+        }
+    };
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Creates a scheduler for all of the blocks of a database
+     *
+     * @param database    Database to poll
+     * @param master      Master to read with
+     * @param minInterval Shortest interval of a block in milliseconds
+     * @param maxInterval Longest interval of a block in milliseconds
+     */
+    public PollScheduler(TagDatabase database, AbstractModbusMaster master, long minInterval, long maxInterval) {
+        checkIntervals(minInterval, maxInterval);
+        this.database = database;
+        this.master = master;
+        blocks = database.getBlocks();
+        this.minInterval = new long[blocks.length];
+        this.maxInterval = new long[blocks.length];
+        interval = new long[blocks.length];
+        due = new long[blocks.length];
+        written = new boolean[blocks.length];
+        pollCounts = new long[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            this.minInterval[i] = minInterval;
+            this.maxInterval[i] = maxInterval;
+            interval[i] = minInterval;
+        }
+    }
+
+    /**
+     * Sets the interval bounds of one block
+     *
+     * @param block       Block of the database
+     * @param minInterval Shortest interval in milliseconds
+     * @param maxInterval Longest interval in milliseconds
+     */
+    public synchronized void setInterval(PollBlock block, long minInterval, long maxInterval) {
+        checkIntervals(minInterval, maxInterval);
+        int i = indexOf(block);
+        this.minInterval[i] = minInterval;
+        this.maxInterval[i] = maxInterval;
+        interval[i] = Math.max(minInterval, Math.min(maxInterval, interval[i]));
+    }
+
+    /**
+     * Returns the interval a block is currently polled at
+     *
+     * @param block Block of the database
+     * @return Interval in milliseconds
+     */
+    public synchronized long getInterval(PollBlock block) {
+        return interval[indexOf(block)];
+    }
+
+    /**
+     * Returns the number of times a block has been read
+     *
+     * @param block Block of the database
+     * @return Poll count
+     */
+    public synchronized long getPollCount(PollBlock block) {
+        return pollCounts[indexOf(block)];
+    }
+
+    /**
+     * Starts polling and listening to the writes made through the master
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        master.addWriteListener(writeListener);
+        long now = now();
+        for (int i = 0; i < blocks.length; i++) {
+            due[i] = now;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, "Modbus Poll Scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops polling, waiting for a read in progress to finish
+     */
+    public void stop() {
+        master.removeWriteListener(writeListener);
+        Thread current;
+        synchronized (this) {
+            current = thread;
+            running = false;
+            notifyAll();
+        }
+        if (current != null) {
+            try {
+                current.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Polls the blocks overlapping a range of addresses that has just been
+     * written as soon as possible, and at their minimum interval from then on
+     *
+     * @param unitId Unit identifier written to
+     * @param table  Table written to
+     * @param ref    First address written
+     * @param count  Number of items written
+     */
+    public synchronized void notifyWrite(int unitId, Table table, int ref, int count) {
+        long now = now();
+        boolean found = false;
+        for (int i = 0; i < blocks.length; i++) {
+            PollBlock block = blocks[i];
+            if (block.getUnitId() == unitId && block.getTable() == table
+                    && ref < block.getRef() + block.getCount() && ref + count > block.getRef()) {
+                interval[i] = minInterval[i];
+                due[i] = now;
+                written[i] = true;
+                found = true;
+            }
+        }
+        if (found) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Polls the block of a tag that has just been written as soon as possible
+     *
+     * @param tag Tag written
+     */
+    public void notifyWrite(Tag tag) {
+        if (!tag.isVirtual()) {
+            notifyWrite(tag.getUnitId(), tag.getTable(), tag.getAddress(), tag.getItemCount());
+        }
+    }
+
+    /**
+     * Poll loop; reads the block that is due first and adapts its interval
+     */
+    private void poll() {
+        try {
+            while (running) {
+                int next;
+                synchronized (this) {
+                    next = 0;
+                    for (int i = 1; i < blocks.length; i++) {
+                        if (due[i] < due[next]) {
+                            next = i;
+                        }
+                    }
+                    long wait = blocks.length == 0 ? 1000 : due[next] - now();
+                    if (wait > 0) {
+                        wait(wait);
+                        continue;
+                    }
+                    written[next] = false;
+                }
+                int reported = -1;
+                try {
+                    reported = database.poll(master, blocks[next]);
+                }
+                catch (ModbusException e) {
+                    Log.d(TAG, "Poll of block " + next + " failed - " + e.getMessage());
+                }
+                synchronized (this) {
+                    pollCounts[next]++;
+                    if (reported > 0) {
+                        interval[next] = Math.max(minInterval[next], (long) (interval[next] * SPEED_UP));
+                    }
+                    else if (reported == 0) {
+                        interval[next] = Math.min(maxInterval[next], (long) Math.ceil(interval[next] * SLOW_DOWN));
+                    }
+
+                    // A write during the read may not have been seen by it, so leave the block due
+                    if (!written[next]) {
+                        due[next] = now() + interval[next];
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Log.d(TAG, "Poll scheduler interrupted");
+        }
+        finally {
+            synchronized (this) {
+                thread = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the position of a block in the schedule
+     */
+    private int indexOf(PollBlock block) {
+        int i = block.getIndex();
+        if (i < 0 || i >= blocks.length || blocks[i] != block) {
+            throw new IllegalArgumentException("Block is not scheduled");
+        }
+        return i;
+    }
+
+    /**
+     * Checks a pair of interval bounds
+     */
+    private static void checkIntervals(long minInterval, long maxInterval) {
+        if (minInterval < 1 || maxInterval < minInterval) {
+            throw new IllegalArgumentException("Invalid poll intervals " + minInterval + "-" + maxInterval);
+        }
+    }
+
+    /**
+     * Monotonic time in milliseconds, unaffected by changes to the clock
+     */
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+import com.ghgande.j2mod.modbus.procimg.InputRegister;
+
+/**
+ * Report-by-exception filter for a block of raw registers polled without a
+ * {@link TagDatabase}.
+ * <p>
+ * Each poll of the block is compared word by word with the previous one and
+ * only registers that moved outside their deadband since they were last
+ * reported are returned in the change set.  A register whose raw word is
+ * unchanged is skipped without any further work, so a block from a slowly
+ * varying plant costs one integer comparison per register.
+ * <p>
+ * Deadbands are either absolute or a percentage of the last reported value
+ * and are applied to the register as an unsigned value unless the filter is
+ * set to treat registers as signed.  A deadband of zero reports every change.
+ */
+public class RegisterDiff {
+
+    private final int ref;
+    private final int count;
+    private final int[] last;
+    private final double[] reported;
+    private final double[] deadbands;
+    private final boolean[] percent;
+    private final ChangeSet changes;
+    private boolean signed;
+    private boolean primed;
+
+    /**
+     * Creates a filter for a block of registers
+     *
+     * @param ref   Address of the first register
+     * @param count Number of registers
+     */
+    public RegisterDiff(int ref, int count) {
+        this.ref = ref;
+        this.count = count;
+        last = new int[count];
+        reported = new double[count];
+        deadbands = new double[count];
+        percent = new boolean[count];
+        changes = new ChangeSet(count);
+    }
+
+    /**
+     * Returns the address of the first register
+     *
+     * @return Address
+     */
+    public int getRef() {
+        return ref;
+    }
+
+    /**
+     * Returns the number of registers
+     *
+     * @return Count
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Sets whether registers are compared as signed 16-bit values
+     *
+     * @param signed True for signed
+     */
+    public synchronized void setSigned(boolean signed) {
+        this.signed = signed;
+        primed = false;
+    }
+
+    /**
+     * Sets the deadband of every register
+     *
+     * @param deadband Deadband, zero to report every change
+     * @param percent  True if the deadband is a percentage of the last reported value
+     */
+    public synchronized void setDeadband(double deadband, boolean percent) {
+        for (int i = 0; i < count; i++) {
+            deadbands[i] = Math.abs(deadband);
+            this.percent[i] = percent;
+        }
+    }
+
+    /**
+     * Sets the deadband of one register
+     *
+     * @param address  Register address
+     * @param deadband Deadband, zero to report every change
+     * @param percent  True if the deadband is a percentage of the last reported value
+     */
+    public synchronized void setDeadband(int address, double deadband, boolean percent) {
+        deadbands[address - ref] = Math.abs(deadband);
+        this.percent[address - ref] = percent;
+    }
+
+    /**
+     * Forgets the previous poll so that the next one reports every register
+     */
+    public synchronized void reset() {
+        primed = false;
+    }
+
+    /**
+     * Compares a poll of the block with the previous one
+     *
+     * @param registers Registers read, at least {@link #getCount()} of them
+     * @param timestamp Time of the poll in milliseconds
+     * @return Registers that changed; reused by the next call
+     */
+    public synchronized ChangeSet diff(InputRegister[] registers, long timestamp) {
+        changes.reset(timestamp);
+        for (int i = 0; i < count; i++) {
+            check(i, registers[i].toUnsignedShort());
+        }
+        primed = true;
+        return changes;
+    }
+
+    /**
+     * Compares a poll of the block with the previous one
+     *
+     * @param words     Unsigned register values, at least {@link #getCount()} of them
+     * @param timestamp Time of the poll in milliseconds
+     * @return Registers that changed; reused by the next call
+     */
+    public synchronized ChangeSet diff(int[] words, long timestamp) {
+        changes.reset(timestamp);
+        for (int i = 0; i < count; i++) {
+            check(i, words[i] & 0xffff);
+        }
+        primed = true;
+        return changes;
+    }
+
+    /**
+     * Checks one register and adds it to the change set if it moved outside its deadband
+     *
+     * @param i    Register offset
+     * @param word Unsigned register value
+     */
+    private void check(int i, int word) {
+        if (primed && word == last[i]) {
+            return;
+        }
+        last[i] = word;
+        double value = signed ? (short)word : word;
+        if (primed) {
+            double band = percent[i] ? deadbands[i] * Math.abs(reported[i]) / 100 : deadbands[i];
+            if (Math.abs(value - reported[i]) <= band && band > 0) {
+                return;
+            }
+        }
+        changes.add(ref + i, value, primed ? reported[i] : Double.NaN);
+        reported[i] = value;
+    }
+}
@@ -0,0 +1,765 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+import android.util.Log;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.facade.AbstractModbusMaster;
+import com.ghgande.j2mod.modbus.facade.RegisterMap.Table;
+import com.ghgande.j2mod.modbus.procimg.InputRegister;
+import com.ghgande.j2mod.modbus.util.BitVector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of named tags read from one or more slaves through a master.
+ * <p>
+ * Before the first poll the tags are compiled into {@link PollBlock}s: tags
+ * of the same unit and table whose addresses are close together are merged
+ * into a single read, and each block carries a decode plan of precomputed
+ * offsets, types and scaling.  Tag values are held in primitive arrays indexed
+ * by tag, so a poll is one request per block followed by a tight decode loop.
+ * <p>
+ * Updates are reported by exception.  A block whose raw items are the same as
+ * in the previous poll is not decoded at all, and a tag is only reported once
+ * its value moves outside its deadband from the value last reported.  Tag
+ * listeners are called for each reported tag and {@link ChangeSetListener}s
+ * receive all of the tags reported by an update as one compact
+ * {@link ChangeSet}.  Both are called on the polling thread.
+ * <p>
+ * Virtual tags have no block; their value is set by the application with
+ * {@link #setValue(Tag, double)} and they are reported in the same way, which
+ * lets values derived from other tags take part in everything built on the
+ * database.
+ * <p>
+ * Polls are serialised; the values can be read from any thread.  Polls
+ * synchronize on the master, so an application sharing the master should do
+ * the same.
+ */
+public class TagDatabase {
+
+    private static final String TAG = "TagDatabase";
+
+    /**
+     * Default number of unused items allowed between two tags in the same block (=<tt>8</tt>)
+     */
+    public static final int DEFAULT_MAX_GAP = 8;
+
+    private final List<Tag> tags = new ArrayList<Tag>();
+    private final Map<String, Tag> names = new HashMap<String, Tag>();
+    private final int[] maxBlockSize = new int[Table.values().length];
+    private final Object pollLock = new Object();
+    private int maxGap = DEFAULT_MAX_GAP;
+    private PollBlock[] blocks = new PollBlock[0];
+    private boolean compiled = true;
+
+    // Tag state indexed by tag
+    private Tag[] tagArray = new Tag[0];
+    private double[] values = new double[0];
+    private long[] timestamps = new long[0];
+    private boolean[] valid = new boolean[0];
+    private double[] reported = new double[0];
+
+    // The changes found by one update, and how deeply listeners are nested
+    private final ChangeSet changes = new ChangeSet(16);
+    private int firing;
+    private volatile ChangeSetListener[] changeListeners = new ChangeSetListener[0];
+    private volatile PollBlockListener[] blockListeners = new PollBlockListener[0];
+
+    /**
+     * Creates an empty database
+     */
+    public TagDatabase() {
+        for (Table table : Table.values()) {
+            maxBlockSize[table.ordinal()] = table.getMaxBlockSize();
+        }
+    }
+
+    /**
+     * Parses and adds a tag
+     *
+     * @param spec Tag specification, see {@link Tag}
+     * @return The new tag
+     * @throws IllegalArgumentException If the specification is invalid or the name is in use
+     */
+    public Tag addTag(String spec) {
+        return addTag(Tag.parse(spec));
+    }
+
+    /**
+     * Adds a tag
+     *
+     * @param tag Tag to add
+     * @return The tag
+     * @throws IllegalArgumentException If the name is already in use or the tag belongs to another database
+     */
+    public synchronized Tag addTag(Tag tag) {
+        if (tag.database != null) {
+            throw new IllegalArgumentException("Tag " + tag.getName() + " already belongs to a database");
+        }
+        if (names.containsKey(tag.getName())) {
+            throw new IllegalArgumentException("Duplicate tag name " + tag.getName());
+        }
+        tag.database = this;
+        tag.index = tags.size();
+        tags.add(tag);
+        names.put(tag.getName(), tag);
+        ensureCapacity(tags.size());
+        tagArray[tag.index] = tag;
+        if (!tag.isVirtual()) {
+            compiled = false;
+        }
+        return tag;
+    }
+
+    /**
+     * Adds a virtual tag whose value is set with {@link #setValue(Tag, double)}
+     *
+     * @param name Name of the tag
+     * @return The new tag
+     */
+    public Tag addVirtualTag(String name) {
+        return addTag(new Tag(name));
+    }
+
+    /**
+     * Reads tag specifications, one per line.  Blank lines and lines starting
+     * with <tt>#</tt> are ignored.
+     *
+     * @param in Reader to read from
+     * @return Number of tags added
+     * @throws IOException If the reader fails or a specification is invalid
+     */
+    public int load(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        int added = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                addTag(line);
+                added++;
+            }
+            catch (IllegalArgumentException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Returns the tag with the given name
+     *
+     * @param name Tag name
+     * @return Tag or null if not found
+     */
+    public synchronized Tag getTag(String name) {
+        return names.get(name);
+    }
+
+    /**
+     * Returns the tag with the given index
+     *
+     * @param index Tag index
+     * @return Tag
+     */
+    public synchronized Tag getTag(int index) {
+        return tagArray[index];
+    }
+
+    /**
+     * Returns all of the tags in index order
+     *
+     * @return List of tags
+     */
+    public synchronized List<Tag> getTags() {
+        return new ArrayList<Tag>(tags);
+    }
+
+    /**
+     * Returns the number of tags
+     *
+     * @return Tag count
+     */
+    public synchronized int getTagCount() {
+        return tags.size();
+    }
+
+    /**
+     * Returns the number of unused items allowed between two tags in the same block
+     *
+     * @return Maximum gap
+     */
+    public synchronized int getMaxGap() {
+        return maxGap;
+    }
+
+    /**
+     * Sets the number of unused items allowed between two tags in the same
+     * block.  A larger gap means fewer, longer requests.
+     *
+     * @param maxGap Maximum gap
+     */
+    public synchronized void setMaxGap(int maxGap) {
+        this.maxGap = Math.max(0, maxGap);
+        compiled = false;
+    }
+
+    /**
+     * Sets the largest number of items read from the table in one request,
+     * e.g. from a discovered {@link com.ghgande.j2mod.modbus.facade.RegisterMap}
+     *
+     * @param table     Table
+     * @param blockSize Block size, limited to the protocol maximum
+     */
+    public synchronized void setMaxBlockSize(Table table, int blockSize) {
+        maxBlockSize[table.ordinal()] = Math.max(1, Math.min(blockSize, table.getMaxBlockSize()));
+        compiled = false;
+    }
+
+    /**
+     * Adds a listener that receives the change set of every update with changes
+     *
+     * @param listener Listener to add
+     */
+    public synchronized void addChangeSetListener(ChangeSetListener listener) {
+        ChangeSetListener[] updated = Arrays.copyOf(changeListeners, changeListeners.length + 1);
+        updated[changeListeners.length] = listener;
+        changeListeners = updated;
+    }
+
+    /**
+     * Removes a change set listener
+     *
+     * @param listener Listener to remove
+     */
+    public synchronized void removeChangeSetListener(ChangeSetListener listener) {
+        List<ChangeSetListener> list = new ArrayList<ChangeSetListener>(Arrays.asList(changeListeners));
+        list.remove(listener);
+        changeListeners = list.toArray(new ChangeSetListener[list.size()]);
+    }
+
+    /**
+     * Adds a listener that receives the raw items of every block read
+     *
+     * @param listener Listener to add
+     */
+    public synchronized void addPollBlockListener(PollBlockListener listener) {
+        PollBlockListener[] updated = Arrays.copyOf(blockListeners, blockListeners.length + 1);
+        updated[blockListeners.length] = listener;
+        blockListeners = updated;
+    }
+
+    /**
+     * Removes a poll block listener
+     *
+     * @param listener Listener to remove
+     */
+    public synchronized void removePollBlockListener(PollBlockListener listener) {
+        List<PollBlockListener> list = new ArrayList<PollBlockListener>(Arrays.asList(blockListeners));
+        list.remove(listener);
+        blockListeners = list.toArray(new PollBlockListener[list.size()]);
+    }
+
+    /**
+     * Called when a tag setting used by the decode plans has changed
+     */
+    synchronized void planChanged() {
+        compiled = false;
+    }
+
+    /**
+     * Groups the tags into poll blocks and builds their decode plans.
+     * Called automatically by the first poll after tags have been added.
+     *
+     * @throws IllegalStateException If a tag is larger than the block size of its table
+     */
+    public synchronized void compile() {
+        List<Tag> sorted = new ArrayList<Tag>();
+        for (Tag tag : tags) {
+            if (!tag.isVirtual()) {
+                sorted.add(tag);
+            }
+        }
+        Collections.sort(sorted, new Comparator<Tag>() {
+            @Override
+            public int compare(Tag a, Tag b) {
+                if (a.getUnitId() != b.getUnitId()) {
+                    return a.getUnitId() < b.getUnitId() ? -1 : 1;
+                }
+                if (a.getTable() != b.getTable()) {
+                    return a.getTable().ordinal() - b.getTable().ordinal();
+                }
+                return a.getAddress() < b.getAddress() ? -1 : a.getAddress() == b.getAddress() ? 0 : 1;
+            }
+        });
+
+        List<PollBlock> list = new ArrayList<PollBlock>();
+        List<Tag> members = new ArrayList<Tag>();
+        int start = 0;
+        int end = 0;
+        for (Tag tag : sorted) {
+            int blockSize = maxBlockSize[tag.getTable().ordinal()];
+            if (tag.getItemCount() > blockSize) {
+                throw new IllegalStateException(String.format("Tag %s needs %d items but blocks of %s are limited to %d",
+                        tag.getName(), tag.getItemCount(), tag.getTable(), blockSize));
+            }
+            if (!members.isEmpty()) {
+                Tag first = members.get(0);
+                int newEnd = Math.max(end, tag.getAddress() + tag.getItemCount());
+                if (tag.getUnitId() != first.getUnitId() || tag.getTable() != first.getTable() ||
+                        tag.getAddress() > end + maxGap || newEnd - start > blockSize) {
+                    list.add(new PollBlock(list.size(), first.getUnitId(), first.getTable(), start, end - start, members));
+                    members.clear();
+                }
+                else {
+                    end = newEnd;
+                }
+            }
+            if (members.isEmpty()) {
+                start = tag.getAddress();
+                end = start + tag.getItemCount();
+            }
+            members.add(tag);
+        }
+        if (!members.isEmpty()) {
+            Tag first = members.get(0);
+            list.add(new PollBlock(list.size(), first.getUnitId(), first.getTable(), start, end - start, members));
+        }
+        blocks = list.toArray(new PollBlock[list.size()]);
+        compiled = true;
+        Log.d(TAG, String.format("Compiled %d tags into %d blocks", sorted.size(), blocks.length));
+    }
+
+    /**
+     * Returns the compiled poll blocks, compiling first if needed
+     *
+     * @return Poll blocks
+     */
+    public synchronized PollBlock[] getBlocks() {
+        if (!compiled) {
+            compile();
+        }
+        return blocks.clone();
+    }
+
+    /**
+     * Reads every block and updates the tags.  A block that fails is marked
+     * invalid and the remaining blocks are still read.
+     *
+     * @param master Master to read with
+     * @return Number of tags reported
+     * @throws ModbusException The last error if any block failed
+     */
+    public int poll(AbstractModbusMaster master) throws ModbusException {
+        PollBlock[] current;
+        synchronized (this) {
+            if (!compiled) {
+                compile();
+            }
+            current = blocks;
+        }
+        int total = 0;
+        ModbusException error = null;
+        for (PollBlock block : current) {
+            try {
+                total += poll(master, block);
+            }
+            catch (ModbusException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return total;
+    }
+
+    /**
+     * Reads a single block and updates its tags.  The tags are marked invalid
+     * if the read fails.
+     *
+     * @param master Master to read with
+     * @param block  Block to read
+     * @return Number of tags reported
+     * @throws ModbusException If the read fails
+     */
+    public int poll(AbstractModbusMaster master, PollBlock block) throws ModbusException {
+        synchronized (pollLock) {
+            int[] words = block.words;
+            try {
+                synchronized (master) {
+                    switch (block.getTable()) {
+                        case COILS:
+                            copyBits(master.readCoils(block.getUnitId(), block.getRef(), block.getCount()), words);
+                            break;
+                        case DISCRETE_INPUTS:
+                            copyBits(master.readInputDiscretes(block.getUnitId(), block.getRef(), block.getCount()), words);
+                            break;
+                        case INPUT_REGISTERS:
+                            copyRegisters(master.readInputRegisters(block.getUnitId(), block.getRef(), block.getCount()), words);
+                            break;
+                        default:
+                            copyRegisters(master.readMultipleRegisters(block.getUnitId(), block.getRef(), block.getCount()), words);
+                            break;
+                    }
+                }
+            }
+            catch (ModbusException e) {
+                invalidate(block);
+                Log.d(TAG, String.format("Poll of unit %d %s %d-%d failed - %s", block.getUnitId(), block.getTable(),
+                        block.getRef(), block.getRef() + block.getCount() - 1, e.getMessage()));
+                throw e;
+            }
+            return update(block, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Updates the tags of a block from raw items obtained elsewhere, e.g. from
+     * a process image or a recording
+     *
+     * @param block     Block the items belong to
+     * @param items     One 16-bit word or bit per item of the block
+     * @param timestamp Time of the values in milliseconds
+     * @return Number of tags reported
+     */
+    public int update(PollBlock block, int[] items, long timestamp) {
+        synchronized (pollLock) {
+            System.arraycopy(items, 0, block.words, 0, block.getCount());
+            return update(block, timestamp);
+        }
+    }
+
+    /**
+     * Hands the raw items to the poll block listeners, then decodes the block
+     * if it has changed and tells the listeners of the tags that moved outside
+     * their deadband.  The caller must hold the poll lock.
+     *
+     * @param block     Block to decode
+     * @param timestamp Time of the values
+     * @return Number of tags reported
+     */
+    private int update(PollBlock block, long timestamp) {
+        for (PollBlockListener listener : blockListeners) {
+            try {
+                listener.blockPolled(block, block.words, timestamp);
+            }
+            catch (RuntimeException e) {
+                Log.w(TAG, "Poll block listener failed", e);
+            }
+        }
+        ChangeSet set;
+        Tag[] tagsNow;
+        synchronized (this) {
+            set = changeSet();
+            set.reset(timestamp);
+            if (!block.isChanged()) {
+                return 0;
+            }
+            block.decode(values, valid, reported, set);
+            block.primed = true;
+            for (int i = 0; i < set.size; i++) {
+                timestamps[set.indexes[i]] = timestamp;
+            }
+            tagsNow = tagArray;
+        }
+        fireChanges(tagsNow, set);
+        return set.size;
+    }
+
+    /**
+     * Returns the lock that serialises updates.  Components that call back
+     * into the database from their own lock take this one first, the same
+     * order as the polling thread.
+     *
+     * @return Poll lock
+     */
+    Object getPollLock() {
+        return pollLock;
+    }
+
+    /**
+     * Sets the value of a virtual tag, notifying its listeners if it changed
+     *
+     * @param tag   Virtual tag
+     * @param value New value
+     * @return True if the value changed
+     */
+    public boolean setValue(Tag tag, double value) {
+        checkVirtual(tag);
+        synchronized (pollLock) {
+            long timestamp = System.currentTimeMillis();
+            ChangeSet set;
+            Tag[] tagsNow;
+            synchronized (this) {
+                set = changeSet();
+                set.reset(timestamp);
+                apply(tag, value, set);
+                tagsNow = tagArray;
+            }
+            fireChanges(tagsNow, set);
+            return set.size > 0;
+        }
+    }
+
+    /**
+     * Sets the values of several virtual tags as one update, so their
+     * listeners receive a single change set
+     *
+     * @param tags   Virtual tags
+     * @param values New values
+     * @param count  Number of entries to use from the arrays
+     * @return Number of tags reported
+     */
+    public int setValues(Tag[] tags, double[] values, int count) {
+        for (int i = 0; i < count; i++) {
+            checkVirtual(tags[i]);
+        }
+        synchronized (pollLock) {
+            long timestamp = System.currentTimeMillis();
+            ChangeSet set;
+            Tag[] tagsNow;
+            synchronized (this) {
+                set = changeSet();
+                set.reset(timestamp);
+                for (int i = 0; i < count; i++) {
+                    apply(tags[i], values[i], set);
+                }
+                tagsNow = tagArray;
+            }
+            fireChanges(tagsNow, set);
+            return set.size;
+        }
+    }
+
+    /**
+     * Checks that a tag is a virtual tag of this database
+     *
+     * @param tag Tag
+     */
+    private void checkVirtual(Tag tag) {
+        if (tag.database != this || !tag.isVirtual()) {
+            throw new IllegalArgumentException("Tag " + tag.getName() + " is not a virtual tag of this database");
+        }
+    }
+
+    /**
+     * Stores the value of a virtual tag and adds it to the change set if it
+     * moved outside its deadband.  The caller must hold both locks.
+     *
+     * @param tag   Virtual tag
+     * @param value New value
+     * @param set   Change set being built
+     */
+    private void apply(Tag tag, double value, ChangeSet set) {
+        int index = tag.index;
+        values[index] = value;
+        if (!valid[index]) {
+            valid[index] = true;
+            set.add(index, value, Double.NaN);
+        }
+        else if (PollBlock.isOutside(value, reported[index], tag.getDeadband(), tag.isDeadbandPercent())) {
+            set.add(index, value, reported[index]);
+        }
+        else {
+            return;
+        }
+        reported[index] = value;
+        timestamps[index] = set.timestamp;
+    }
+
+    /**
+     * Sets the value of a virtual tag by name
+     *
+     * @param name  Name of the virtual tag
+     * @param value New value
+     * @return True if the value changed
+     */
+    public boolean setValue(String name, double value) {
+        Tag tag = getTag(name);
+        if (tag == null) {
+            throw new IllegalArgumentException("Unknown tag " + name);
+        }
+        return setValue(tag, value);
+    }
+
+    /**
+     * Returns the value of a tag
+     *
+     * @param index Tag index
+     * @return Value or <tt>NaN</tt> if the tag has no valid value
+     */
+    public synchronized double getValue(int index) {
+        return valid[index] ? values[index] : Double.NaN;
+    }
+
+    /**
+     * Returns the time the value of a tag was last reported
+     *
+     * @param index Tag index
+     * @return Time in milliseconds or 0 if never
+     */
+    public synchronized long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    /**
+     * Returns true if the tag has a valid value
+     *
+     * @param index Tag index
+     * @return True if valid
+     */
+    public synchronized boolean isValid(int index) {
+        return valid[index];
+    }
+
+    /**
+     * Copies the current value of every tag into the array
+     *
+     * @param dest Array of at least {@link #getTagCount()} entries; invalid tags are <tt>NaN</tt>
+     */
+    public synchronized void getValues(double[] dest) {
+        int count = tags.size();
+        for (int i = 0; i < count; i++) {
+            dest[i] = valid[i] ? values[i] : Double.NaN;
+        }
+    }
+
+    /**
+     * Marks the tags of a block as having no valid value
+     *
+     * @param block Block that could not be read
+     */
+    private synchronized void invalidate(PollBlock block) {
+        for (int tag : block.tags) {
+            valid[tag] = false;
+        }
+        block.primed = false;
+    }
+
+    /**
+     * Returns the change set for an update.  An update made by a listener
+     * while another is being delivered gets a set of its own, so the one the
+     * other listeners are still reading is left alone.  The caller must hold
+     * both locks.
+     *
+     * @return Empty change set with room for every tag
+     */
+    private ChangeSet changeSet() {
+        return firing == 0 ? changes : new ChangeSet(Math.max(1, tags.size()));
+    }
+
+    /**
+     * Calls the listeners of the reported tags and then the change set
+     * listeners.  Must be called with the poll lock held.
+     *
+     * @param tagsNow Tag array
+     * @param set     Changes to deliver
+     */
+    private void fireChanges(Tag[] tagsNow, ChangeSet set) {
+        int count = set.size;
+        if (count == 0) {
+            return;
+        }
+        firing++;
+        try {
+            for (int i = 0; i < count; i++) {
+                Tag tag = tagsNow[set.indexes[i]];
+                TagListener[] listeners = tag.listeners;
+                for (TagListener listener : listeners) {
+                    try {
+                        listener.tagChanged(tag, set.previous[i], set.values[i], set.timestamp);
+                    }
+                    catch (RuntimeException e) {
+                        Log.w(TAG, "Listener of " + tag.getName() + " failed", e);
+                    }
+                }
+            }
+            for (ChangeSetListener listener : changeListeners) {
+                try {
+                    listener.changed(set);
+                }
+                catch (RuntimeException e) {
+                    Log.w(TAG, "Change set listener failed", e);
+                }
+            }
+        }
+        finally {
+            firing--;
+        }
+    }
+
+    /**
+     * Grows the state arrays to hold the number of tags
+     *
+     * @param size Number of tags
+     */
+    private void ensureCapacity(int size) {
+        if (size > values.length) {
+            int capacity = Math.max(size, values.length * 2);
+            tagArray = Arrays.copyOf(tagArray, capacity);
+            values = Arrays.copyOf(values, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            valid = Arrays.copyOf(valid, capacity);
+            reported = Arrays.copyOf(reported, capacity);
+            changes.ensureCapacity(capacity);
+        }
+    }
+
+    /**
+     * Copies bits into the item buffer
+     *
+     * @throws ModbusException If the slave returned fewer bits than were asked for
+     */
+    private static void copyBits(BitVector bits, int[] words) throws ModbusException {
+        if (bits.size() < words.length) {
+            throw new ModbusException("Slave returned %d bits, expected %d", bits.size(), words.length);
+        }
+        for (int i = 0; i < words.length; i++) {
+            words[i] = bits.getBit(i) ? 1 : 0;
+        }
+    }
+
+    /**
+     * Copies registers into the item buffer
+     *
+     * @throws ModbusException If the slave returned fewer registers than were asked for
+     */
+    private static void copyRegisters(InputRegister[] registers, int[] words) throws ModbusException {
+        if (registers.length < words.length) {
+            throw new ModbusException("Slave returned %d registers, expected %d", registers.length, words.length);
+        }
+        for (int i = 0; i < words.length; i++) {
+            words[i] = registers[i].toUnsignedShort();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2002-2016 jamod & j2mod development teams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ghgande.j2mod.modbus.tag;
+
+/**
+ * The data types a tag can be decoded as, with the number of 16-bit words
+ * each one occupies.  Bits read from the coil and discrete input tables
+ * occupy one item.
+ */
+public enum TagType {
+    BOOL("bool", 1),
+    INT16("int16", 1),
+    UINT16("uint16", 1),
+    INT32("int32", 2),
+    UINT32("uint32", 2),
+    FLOAT32("float32", 2),
+    INT64("int64", 4),
+    FLOAT64("float64", 4);
+
+    private final String key;
+    private final int wordCount;
+
+    TagType(String key, int wordCount) {
+        this.key = key;
+        this.wordCount = wordCount;
+    }
+
+    /**
+     * Returns the number of registers occupied by a value of this type
+     *
+     * @return Number of words
+     */
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    /**
+     * Returns the name of the type as used in tag specifications
+     *
+     * @return Type name
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the type with the given name, ignoring case
+     *
+     * @param key Type name e.g. <tt>float32</tt>
+     * @return Type
+     * @throws IllegalArgumentException If the name is unknown
+     */
+    public static TagType forKey(String key) {
+        for (TagType type : values()) {
+            if (type.key.equalsIgnoreCase(key)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown tag type " + key);
+    }
+}